@@ -0,0 +1,174 @@
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Benchmark workloads over a generated knowledge base. The prover lives in the default package, which JMH cannot
+ * generate benchmark code for, so the benchmark classes look this class up by name and only see the workloads.
+ */
+public class HomeworkWorkloads {
+
+    public static final String TOKENISE = "tokenise";
+
+    public static final String TO_CNF = "toCNF";
+
+    public static final String OR = "or";
+
+    public static final String FLATTEN = "flatten";
+
+    public static final String GET_SUBSTITUTION = "getSubstitution";
+
+    public static final String APPLY = "apply";
+
+    public static final String FINGERPRINT = "fingerprint";
+
+    public static final String PROVE = "prove";
+
+    private final homework.Tokeniser tokeniser = new homework.Tokeniser();
+
+    private final homework.AlgebraHandler handler = new homework.AlgebraHandler();
+
+    private final homework.ExpressionParser parser = new homework.ExpressionParser(tokeniser, handler);
+
+    private final homework.Unifier unifier = new homework.Unifier();
+
+    private final homework.Configuration configuration;
+
+    private final List<String> lines = new ArrayList<>();
+
+    private final List<homework.Sentence> sentences = new ArrayList<>();
+
+    private final List<homework.Clause> clauses = new ArrayList<>();
+
+    private final List<homework.Predicate[]> pairs = new ArrayList<>();
+
+    private final List<homework.Clause> pairClauses = new ArrayList<>();
+
+    private final homework.KnowledgeBase base;
+
+    private HomeworkWorkloads(int size) {
+        this.configuration = getConfiguration(size);
+        for (String fact : configuration.getFacts()) {
+            lines.add(fact);
+            sentences.add(parser.toCNF(fact));
+        }
+        this.base = new homework.KnowledgeBase(configuration, parser, handler);
+        clauses.addAll(base.getDisjunctions());
+        addPairs();
+    }
+
+    /**
+     * Workloads by name, each running once over every fact of a knowledge base with the given number of facts
+     */
+    public static Map<String, Consumer<Blackhole>> of(int size) {
+        HomeworkWorkloads workloads = new HomeworkWorkloads(size);
+        Map<String, Consumer<Blackhole>> result = new LinkedHashMap<>();
+        result.put(TOKENISE, workloads::tokenise);
+        result.put(TO_CNF, workloads::toCNF);
+        result.put(OR, workloads::or);
+        result.put(FLATTEN, workloads::flatten);
+        result.put(GET_SUBSTITUTION, workloads::getSubstitution);
+        result.put(APPLY, workloads::apply);
+        result.put(FINGERPRINT, workloads::fingerprint);
+        result.put(PROVE, workloads::prove);
+        return result;
+    }
+
+    /**
+     * A chain of rules Chain0(C0) ... Chain{n}(C{n}) linked by ground Edge facts, where every rule has a disjunctive
+     * premise so that the CNF conversion has to distribute. The query sits halfway down the chain and is provable. The
+     * input grammar has no parentheses, so the premise relies on AND binding tighter than OR.
+     */
+    static homework.Configuration getConfiguration(int size) {
+        int rules = Math.max(1, size / 2);
+        List<String> facts = new ArrayList<>();
+        facts.add("Chain0(C0)");
+        for (int i = 0; i < rules; i++) {
+            facts.add(String.format("Chain%d(x) & Edge%d(x,y) | Alt%d(x) => Chain%d(y)", i, i, i, i + 1));
+            facts.add(String.format("Edge%d(C%d,C%d)", i, i, i + 1));
+        }
+        String query = String.format("Chain%d(C%d)", rules / 2, rules / 2);
+        return new homework.Configuration(query, facts.size(), facts);
+    }
+
+    /**
+     * Pairs every literal with the first literal of the same symbol in another clause
+     */
+    private void addPairs() {
+        Map<Integer, homework.Predicate> first = new HashMap<>();
+        Map<Integer, homework.Clause> owners = new HashMap<>();
+        for (homework.Clause clause : clauses) {
+            for (int i = 0; i < clause.size(); i++) {
+                homework.Predicate literal = clause.get(i);
+                homework.Predicate other = first.putIfAbsent(literal.getSymbol(), literal);
+                owners.putIfAbsent(literal.getSymbol(), clause);
+                if (Objects.nonNull(other) && owners.get(literal.getSymbol()) != clause) {
+                    pairs.add(new homework.Predicate[]{other, literal});
+                    pairClauses.add(clause);
+                }
+            }
+        }
+    }
+
+    private void tokenise(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(tokeniser.tokenise(line));
+        }
+    }
+
+    private void toCNF(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(parser.toCNF(line));
+        }
+    }
+
+    private void or(Blackhole blackhole) {
+        for (int i = 1; i < sentences.size(); i++) {
+            blackhole.consume(handler.or(sentences.get(i - 1), sentences.get(i)));
+        }
+    }
+
+    private void flatten(Blackhole blackhole) {
+        for (homework.Sentence sentence : sentences) {
+            blackhole.consume(handler.flatten(sentence));
+        }
+    }
+
+    private void getSubstitution(Blackhole blackhole) {
+        for (homework.Predicate[] pair : pairs) {
+            blackhole.consume(unifier.getSubstitution(pair[0], pair[1]));
+        }
+    }
+
+    private void apply(Blackhole blackhole) {
+        for (int i = 0; i < pairs.size(); i++) {
+            Map<String, homework.Predicate.Argument> substitution = unifier.getSubstitution(pairs.get(i)[0], pairs.get(i)[1]);
+            if (Objects.nonNull(substitution)) {
+                blackhole.consume(unifier.apply(pairClauses.get(i), substitution));
+            }
+        }
+    }
+
+    private void fingerprint(Blackhole blackhole) {
+        for (homework.Clause clause : clauses) {
+            blackhole.consume(homework.FingerprintSet.fingerprint(clause));
+        }
+    }
+
+    private void prove(Blackhole blackhole) {
+        try {
+            blackhole.consume(new homework.KnowledgeBase(configuration, parser, handler).prove());
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
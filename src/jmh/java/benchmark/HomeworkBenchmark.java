@@ -0,0 +1,128 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hot paths of the prover over knowledge bases of increasing size. Build and run with
+ * <pre>
+ *     mvn -B -P benchmark package -DskipTests
+ *     java -jar target/benchmarks.jar [JMH options]
+ * </pre>
+ * The GC profiler is always attached, so every result comes with its allocation rate per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HomeworkBenchmark {
+
+    private static final String WORKLOADS = "HomeworkWorkloads";
+
+    @Param({"10", "100", "1000"})
+    private int facts;
+
+    private Consumer<Blackhole> tokenise;
+
+    private Consumer<Blackhole> toCNF;
+
+    private Consumer<Blackhole> or;
+
+    private Consumer<Blackhole> flatten;
+
+    private Consumer<Blackhole> getSubstitution;
+
+    private Consumer<Blackhole> apply;
+
+    private Consumer<Blackhole> fingerprint;
+
+    private Consumer<Blackhole> prove;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws ReflectiveOperationException {
+        Map<String, Consumer<Blackhole>> workloads = (Map<String, Consumer<Blackhole>>) Class.forName(WORKLOADS)
+                .getMethod("of", int.class)
+                .invoke(null, facts);
+        this.tokenise = workloads.get("tokenise");
+        this.toCNF = workloads.get("toCNF");
+        this.or = workloads.get("or");
+        this.flatten = workloads.get("flatten");
+        this.getSubstitution = workloads.get("getSubstitution");
+        this.apply = workloads.get("apply");
+        this.fingerprint = workloads.get("fingerprint");
+        this.prove = workloads.get("prove");
+    }
+
+    @Benchmark
+    public void tokenise(Blackhole blackhole) {
+        tokenise.accept(blackhole);
+    }
+
+    @Benchmark
+    public void toCNF(Blackhole blackhole) {
+        toCNF.accept(blackhole);
+    }
+
+    @Benchmark
+    public void or(Blackhole blackhole) {
+        or.accept(blackhole);
+    }
+
+    @Benchmark
+    public void flatten(Blackhole blackhole) {
+        flatten.accept(blackhole);
+    }
+
+    @Benchmark
+    public void getSubstitution(Blackhole blackhole) {
+        getSubstitution.accept(blackhole);
+    }
+
+    @Benchmark
+    public void apply(Blackhole blackhole) {
+        apply.accept(blackhole);
+    }
+
+    @Benchmark
+    public void fingerprint(Blackhole blackhole) {
+        fingerprint.accept(blackhole);
+    }
+
+    @Benchmark
+    public void prove(Blackhole blackhole) {
+        prove.accept(blackhole);
+    }
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(options).addProfiler(GCProfiler.class);
+        if (options.getIncludes().isEmpty()) {
+            builder.include(HomeworkBenchmark.class.getSimpleName());
+        }
+        new Runner(builder.build()).run();
+    }
+}
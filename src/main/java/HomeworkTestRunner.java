@@ -26,10 +26,9 @@ public class HomeworkTestRunner {
         homework.Tokeniser tokeniser = new homework.Tokeniser();
         homework.AlgebraHandler handler = new homework.AlgebraHandler();
         homework.ExpressionParser parser = new homework.ExpressionParser(tokeniser, handler);
-        homework.Unifier unifier = new homework.Unifier();
-        homework.KnowledgeBase base = new homework.KnowledgeBase(configuration, parser, handler, unifier);
+        homework.KnowledgeBase base = new homework.KnowledgeBase(configuration, parser, handler);
         if (printKB) {
-            for (homework.Sentence disjunction : base.getDisjunctions()) {
+            for (homework.Clause disjunction : base.getDisjunctions()) {
                 System.out.println(disjunction);
             }
         }
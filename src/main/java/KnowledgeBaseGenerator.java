@@ -0,0 +1,574 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Seeded generator of synthetic knowledge bases in the input format read by {@link homework.FileHandler#load}. The
+ * same family, parameters and seed always produce the same instance. Usage:
+ * <pre>
+ *     java KnowledgeBaseGenerator FAMILY DIRECTORY [predicates=4] [arity=2] [constants=4] [depth=3] [facts=20] [seed=0]
+ * </pre>
+ * The instance is written to DIRECTORY/input.txt, and the expected answer to DIRECTORY/output.txt whenever it is known.
+ */
+public class KnowledgeBaseGenerator {
+
+    private static final int MAX_ATTEMPTS = 100;
+
+    private static final String MISSING = "Missing";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException(String.format("Expected a family (one of %s) and an output directory",
+                    Arrays.toString(Family.values())));
+        }
+        Family family = Family.valueOf(args[0].toUpperCase());
+        Parameters parameters = Parameters.defaults();
+        for (int i = 2; i < args.length; i++) {
+            parameters = parameters.with(args[i]);
+        }
+        Instance instance = generate(family, parameters);
+        write(instance, args[1]);
+        System.out.printf("%s: %d facts, expected %s%n", family, instance.getFacts().size(),
+                instance.isExpectedKnown() ? instance.getExpected() : "unknown");
+    }
+
+    public static Instance generate(Family family, Parameters parameters) {
+        Random random = new Random(parameters.getSeed());
+        switch (family) {
+            case CHAIN:
+                return generateChains(parameters, random);
+            case TABLE:
+                return generateTable(parameters, random);
+            case HORN:
+                return generateRules(parameters, random, false);
+            case NON_HORN:
+                return generateRules(parameters, random, true);
+            case PIGEONHOLE:
+                return generatePigeonhole(parameters);
+            default:
+                throw new UnsupportedOperationException(String.format("Unsupported family %s", family));
+        }
+    }
+
+    /**
+     * Writes the instance as DIRECTORY/input.txt, and its expected answer as DIRECTORY/output.txt if it is known
+     */
+    public static void write(Instance instance, String directory) throws IOException {
+        File folder = new File(directory);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException(String.format("Cannot create directory %s", directory));
+        }
+        BufferedWriter writer = new BufferedWriter(new FileWriter(new File(folder, homework.Constants.INPUT_PATH), false));
+        writer.write(instance.getQuery());
+        writer.newLine();
+        writer.write(String.valueOf(instance.getFacts().size()));
+        writer.newLine();
+        for (String fact : instance.getFacts()) {
+            writer.write(fact);
+            writer.newLine();
+        }
+        writer.close();
+        if (instance.isExpectedKnown()) {
+            new homework.FileHandler().writeOutput(instance.getExpected(), new File(folder, homework.Constants.OUTPUT_PATH).getPath());
+        }
+    }
+
+    /**
+     * Independent implication chains, one per predicate, each of the given depth. Every step rotates the arguments, so
+     * the query has to follow the whole chain to find the right tuple. Either the last step of a chain (true) or a
+     * tuple with a constant that appears nowhere in the knowledge base (false) is queried.
+     */
+    private static Instance generateChains(Parameters parameters, Random random) {
+        List<String> facts = new ArrayList<>();
+        List<int[]> tuples = new ArrayList<>();
+        for (int k = 0; k < parameters.getPredicates(); k++) {
+            int[] tuple = getTuple(parameters, random);
+            tuples.add(tuple);
+            facts.add(getAtom(getStep(k, 0), tuple));
+            for (int i = 0; i < parameters.getDepth(); i++) {
+                int[] variables = new int[parameters.getArity()];
+                int[] rotated = new int[parameters.getArity()];
+                for (int j = 0; j < variables.length; j++) {
+                    variables[j] = ~j;
+                    rotated[j] = ~((j + 1) % variables.length);
+                }
+                facts.add(String.format("%s => %s", getAtom(getStep(k, i), variables), getAtom(getStep(k, i + 1), rotated)));
+            }
+        }
+        int k = random.nextInt(parameters.getPredicates());
+        int[] tuple = tuples.get(k);
+        int[] last = new int[tuple.length];
+        for (int j = 0; j < tuple.length; j++) {
+            last[j] = tuple[(j + parameters.getDepth()) % tuple.length];
+        }
+        String query = getAtom(getStep(k, parameters.getDepth()), last);
+        if (random.nextBoolean()) {
+            return new Instance(query, facts, true);
+        }
+        return new Instance(query.replaceFirst("\\(C\\d+", "(" + MISSING), facts, false);
+    }
+
+    /**
+     * Ground facts only, drawn at random. The query is either one of them (true) or a ground atom that is not among
+     * them (false).
+     */
+    private static Instance generateTable(Parameters parameters, Random random) {
+        Set<String> table = new LinkedHashSet<>();
+        for (int i = 0; i < parameters.getFacts() * MAX_ATTEMPTS && table.size() < parameters.getFacts(); i++) {
+            table.add(getAtom(getRelation(random.nextInt(parameters.getPredicates())), getTuple(parameters, random)));
+        }
+        List<String> facts = new ArrayList<>(table);
+        String query = getQuery(facts, table, parameters, random);
+        return new Instance(query, facts, table.contains(query));
+    }
+
+    /**
+     * Half ground facts and half rules whose bodies have up to depth literals. Horn rule sets are evaluated bottom-up,
+     * so the answer is known for every query. In the non-Horn family every other rule concludes a disjunction, and the
+     * answer is only known when the query already follows from the Horn rules.
+     */
+    private static Instance generateRules(Parameters parameters, Random random, boolean disjunctive) {
+        Set<String> base = new LinkedHashSet<>();
+        Map<Integer, Set<List<Integer>>> model = new HashMap<>();
+        for (int i = 0; i < parameters.getFacts() * MAX_ATTEMPTS && base.size() < parameters.getFacts() / 2; i++) {
+            int predicate = random.nextInt(parameters.getPredicates());
+            int[] tuple = getTuple(parameters, random);
+            if (base.add(getAtom(getRelation(predicate), tuple))) {
+                model.computeIfAbsent(predicate, key -> new LinkedHashSet<>()).add(toList(tuple));
+            }
+        }
+        List<String> facts = new ArrayList<>(base);
+        List<Rule> rules = new ArrayList<>();
+        for (int i = base.size(); i < parameters.getFacts(); i++) {
+            Rule rule = getRule(parameters, random);
+            if (disjunctive && i % 2 == 1) {
+                int[] alternative = Arrays.copyOf(rule.getHead(), rule.getHead().length);
+                int predicate = random.nextInt(parameters.getPredicates());
+                facts.add(String.format("%s | %s", rule, getAtom(getRelation(predicate), alternative)));
+            }
+            else {
+                rules.add(rule);
+                facts.add(rule.toString());
+            }
+        }
+        saturate(rules, model);
+        Set<String> derived = new LinkedHashSet<>();
+        for (Map.Entry<Integer, Set<List<Integer>>> entry : model.entrySet()) {
+            for (List<Integer> tuple : entry.getValue()) {
+                String atom = getAtom(getRelation(entry.getKey()), tuple.stream().mapToInt(Integer::intValue).toArray());
+                if (!base.contains(atom)) {
+                    derived.add(atom);
+                }
+            }
+        }
+        Set<String> entailed = new LinkedHashSet<>(base);
+        entailed.addAll(derived);
+        if (!derived.isEmpty() && random.nextBoolean()) {
+            return new Instance(get(derived, random), facts, true);
+        }
+        String query = getQuery(new ArrayList<>(entailed), entailed, parameters, random);
+        boolean known = entailed.contains(query) || !disjunctive;
+        return new Instance(query, facts, known ? entailed.contains(query) : null);
+    }
+
+    /**
+     * One more pigeon than there are holes (the constants parameter), every pigeon sits in some hole, and any two
+     * pigeons sharing a hole make the box overfull. The query asks whether the box is overfull, which always holds
+     * but takes exponentially long resolution proofs.
+     */
+    private static Instance generatePigeonhole(Parameters parameters) {
+        int holes = parameters.getConstants();
+        List<String> facts = new ArrayList<>();
+        for (int i = 0; i <= holes; i++) {
+            List<String> placements = new ArrayList<>();
+            for (int j = 0; j < holes; j++) {
+                placements.add(String.format("In(P%d,H%d)", i, j));
+            }
+            facts.add(String.join(" | ", placements));
+        }
+        for (int i = 0; i <= holes; i++) {
+            for (int k = i + 1; k <= holes; k++) {
+                facts.add(String.format("In(P%d,h) & In(P%d,h) => Overfull(Box)", i, k));
+            }
+        }
+        return new Instance("Overfull(Box)", facts, true);
+    }
+
+    /**
+     * Either one of the given facts, or a random ground atom. The expected answer is set when the candidates are
+     * exactly the entailed atoms, which holds for ground tables and Horn rule sets.
+     */
+    private static String getQuery(List<String> facts, Set<String> entailed, Parameters parameters, Random random) {
+        if (!facts.isEmpty() && random.nextBoolean()) {
+            return facts.get(random.nextInt(facts.size()));
+        }
+        String query = null;
+        for (int i = 0; i < MAX_ATTEMPTS && (Objects.isNull(query) || entailed.contains(query)); i++) {
+            query = getAtom(getRelation(random.nextInt(parameters.getPredicates())), getTuple(parameters, random));
+        }
+        return query;
+    }
+
+    private static Rule getRule(Parameters parameters, Random random) {
+        int length = 1 + random.nextInt(Math.max(1, parameters.getDepth()));
+        int[] predicates = new int[length];
+        int[][] body = new int[length][];
+        Set<Integer> variables = new LinkedHashSet<>();
+        for (int i = 0; i < length; i++) {
+            predicates[i] = random.nextInt(parameters.getPredicates());
+            body[i] = new int[parameters.getArity()];
+            for (int j = 0; j < parameters.getArity(); j++) {
+                if (random.nextInt(5) == 0) {
+                    body[i][j] = random.nextInt(parameters.getConstants());
+                }
+                else {
+                    body[i][j] = ~random.nextInt(parameters.getArity() + 1);
+                    variables.add(body[i][j]);
+                }
+            }
+        }
+        /* Head variables must occur in the body, so that every rule is range-restricted */
+        List<Integer> pool = new ArrayList<>(variables);
+        int[] head = new int[parameters.getArity()];
+        for (int j = 0; j < head.length; j++) {
+            head[j] = pool.isEmpty() || random.nextInt(5) == 0
+                    ? random.nextInt(parameters.getConstants())
+                    : pool.get(random.nextInt(pool.size()));
+        }
+        return new Rule(predicates, body, random.nextInt(parameters.getPredicates()), head);
+    }
+
+    /**
+     * Naive bottom-up evaluation of range-restricted Horn rules to their least fixpoint
+     */
+    private static void saturate(List<Rule> rules, Map<Integer, Set<List<Integer>>> model) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Rule rule : rules) {
+                List<int[]> heads = new ArrayList<>();
+                match(rule, 0, new HashMap<>(), model, heads);
+                for (int[] head : heads) {
+                    changed |= model.computeIfAbsent(rule.getPredicate(), key -> new LinkedHashSet<>()).add(toList(head));
+                }
+            }
+        }
+    }
+
+    private static void match(Rule rule, int position, Map<Integer, Integer> bindings,
+                              Map<Integer, Set<List<Integer>>> model, List<int[]> heads) {
+        if (position == rule.getBody().length) {
+            int[] head = new int[rule.getHead().length];
+            for (int j = 0; j < head.length; j++) {
+                head[j] = rule.getHead()[j] >= 0 ? rule.getHead()[j] : bindings.get(rule.getHead()[j]);
+            }
+            heads.add(head);
+            return;
+        }
+        int[] literal = rule.getBody()[position];
+        for (List<Integer> tuple : new ArrayList<>(model.getOrDefault(rule.getPredicates()[position], Set.of()))) {
+            Map<Integer, Integer> extended = new HashMap<>(bindings);
+            boolean matched = true;
+            for (int j = 0; j < literal.length && matched; j++) {
+                if (literal[j] >= 0) {
+                    matched = literal[j] == tuple.get(j);
+                }
+                else {
+                    Integer bound = extended.putIfAbsent(literal[j], tuple.get(j));
+                    matched = Objects.isNull(bound) || bound.equals(tuple.get(j));
+                }
+            }
+            if (matched) {
+                match(rule, position + 1, extended, model, heads);
+            }
+        }
+    }
+
+    private static int[] getTuple(Parameters parameters, Random random) {
+        int[] tuple = new int[parameters.getArity()];
+        for (int j = 0; j < tuple.length; j++) {
+            tuple[j] = random.nextInt(parameters.getConstants());
+        }
+        return tuple;
+    }
+
+    private static List<Integer> toList(int[] tuple) {
+        return Arrays.stream(tuple).boxed().collect(Collectors.toList());
+    }
+
+    private static String get(Set<String> atoms, Random random) {
+        return new ArrayList<>(atoms).get(random.nextInt(atoms.size()));
+    }
+
+    private static String getStep(int chain, int step) {
+        return String.format("Chain%dStep%d", chain, step);
+    }
+
+    private static String getRelation(int predicate) {
+        return String.format("Rel%d", predicate);
+    }
+
+    /**
+     * Non-negative codes are constants C0, C1, ..., negative codes ~i are variables x0, x1, ...
+     */
+    private static String getAtom(String name, int[] arguments) {
+        return String.format("%s(%s)", name, Arrays.stream(arguments)
+                .mapToObj(code -> code >= 0 ? "C" + code : "x" + ~code)
+                .collect(Collectors.joining(",")));
+    }
+
+    public enum Family {
+        CHAIN,
+        TABLE,
+        HORN,
+        NON_HORN,
+        PIGEONHOLE
+    }
+
+    public static class Instance {
+
+        private final String query;
+
+        private final List<String> facts;
+
+        private final Boolean expected;
+
+        public Instance(String query, List<String> facts, Boolean expected) {
+            this.query = query;
+            this.facts = facts;
+            this.expected = expected;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public List<String> getFacts() {
+            return facts;
+        }
+
+        public boolean isExpectedKnown() {
+            return Objects.nonNull(expected);
+        }
+
+        public boolean getExpected() {
+            if (Objects.isNull(expected)) {
+                throw new IllegalStateException(String.format("The answer to %s is not known", query));
+            }
+            return expected;
+        }
+
+        public homework.Configuration toConfiguration() {
+            return new homework.Configuration(query, facts.size(), facts);
+        }
+    }
+
+    public static class Parameters {
+
+        public static final int DEFAULT_PREDICATES = 4;
+
+        public static final int DEFAULT_ARITY = 2;
+
+        public static final int DEFAULT_CONSTANTS = 4;
+
+        public static final int DEFAULT_DEPTH = 3;
+
+        public static final int DEFAULT_FACTS = 20;
+
+        private int predicates;
+
+        private int arity;
+
+        private int constants;
+
+        private int depth;
+
+        private int facts;
+
+        private long seed;
+
+        private Parameters() {
+            this.predicates = DEFAULT_PREDICATES;
+            this.arity = DEFAULT_ARITY;
+            this.constants = DEFAULT_CONSTANTS;
+            this.depth = DEFAULT_DEPTH;
+            this.facts = DEFAULT_FACTS;
+            this.seed = 0;
+        }
+
+        private Parameters(Parameters other) {
+            this.predicates = other.predicates;
+            this.arity = other.arity;
+            this.constants = other.constants;
+            this.depth = other.depth;
+            this.facts = other.facts;
+            this.seed = other.seed;
+        }
+
+        public static Parameters defaults() {
+            return new Parameters();
+        }
+
+        /**
+         * Sets a parameter from a name=value pair, as given on the command line
+         */
+        public Parameters with(String assignment) {
+            String[] parts = assignment.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(String.format("Expected name=value, got %s", assignment));
+            }
+            switch (parts[0]) {
+                case "predicates":
+                    return withPredicates(Integer.parseInt(parts[1]));
+                case "arity":
+                    return withArity(Integer.parseInt(parts[1]));
+                case "constants":
+                    return withConstants(Integer.parseInt(parts[1]));
+                case "depth":
+                    return withDepth(Integer.parseInt(parts[1]));
+                case "facts":
+                    return withFacts(Integer.parseInt(parts[1]));
+                case "seed":
+                    return withSeed(Long.parseLong(parts[1]));
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown parameter %s", parts[0]));
+            }
+        }
+
+        /**
+         * Number of relations, or of independent chains for the chain family
+         */
+        public Parameters withPredicates(int predicates) {
+            Parameters copy = new Parameters(this);
+            copy.predicates = requirePositive("predicates", predicates);
+            return copy;
+        }
+
+        public Parameters withArity(int arity) {
+            Parameters copy = new Parameters(this);
+            copy.arity = requirePositive("arity", arity);
+            return copy;
+        }
+
+        /**
+         * Number of constants, or of holes for the pigeonhole family
+         */
+        public Parameters withConstants(int constants) {
+            Parameters copy = new Parameters(this);
+            copy.constants = requirePositive("constants", constants);
+            return copy;
+        }
+
+        /**
+         * Length of every chain, or the longest rule body for the rule families
+         */
+        public Parameters withDepth(int depth) {
+            Parameters copy = new Parameters(this);
+            copy.depth = requirePositive("depth", depth);
+            return copy;
+        }
+
+        /**
+         * Number of ground facts and rules for the table and rule families
+         */
+        public Parameters withFacts(int facts) {
+            Parameters copy = new Parameters(this);
+            copy.facts = requirePositive("facts", facts);
+            return copy;
+        }
+
+        public Parameters withSeed(long seed) {
+            Parameters copy = new Parameters(this);
+            copy.seed = seed;
+            return copy;
+        }
+
+        public int getPredicates() {
+            return predicates;
+        }
+
+        public int getArity() {
+            return arity;
+        }
+
+        public int getConstants() {
+            return constants;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public int getFacts() {
+            return facts;
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        private static int requirePositive(String name, int value) {
+            if (value <= 0) {
+                throw new IllegalArgumentException(String.format("Parameter %s must be positive, got %d", name, value));
+            }
+            return value;
+        }
+    }
+
+    /**
+     * A Horn rule over relation indices, with arguments coded as in {@link #getAtom}
+     */
+    private static class Rule {
+
+        private final int[] predicates;
+
+        private final int[][] body;
+
+        private final int predicate;
+
+        private final int[] head;
+
+        private Rule(int[] predicates, int[][] body, int predicate, int[] head) {
+            this.predicates = predicates;
+            this.body = body;
+            this.predicate = predicate;
+            this.head = head;
+        }
+
+        public int[] getPredicates() {
+            return predicates;
+        }
+
+        public int[][] getBody() {
+            return body;
+        }
+
+        public int getPredicate() {
+            return predicate;
+        }
+
+        public int[] getHead() {
+            return head;
+        }
+
+        @Override
+        public String toString() {
+            List<String> literals = new ArrayList<>();
+            for (int i = 0; i < body.length; i++) {
+                literals.add(getAtom(getRelation(predicates[i]), body[i]));
+            }
+            return String.format("%s => %s", String.join(" & ", literals), getAtom(getRelation(predicate), head));
+        }
+    }
+}
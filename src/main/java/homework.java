@@ -1,950 +1,5324 @@
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
+import java.io.Closeable;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.ObjIntConsumer;
 import java.util.stream.Collectors;
 
 public class homework {
 
     public static void main(String[] args) throws IOException {
         FileHandler fileHandler = new FileHandler();
-        Configuration configuration = fileHandler.load(Constants.INPUT_PATH);
         Tokeniser tokeniser = new Tokeniser();
         AlgebraHandler handler = new AlgebraHandler();
         ExpressionParser parser = new ExpressionParser(tokeniser, handler);
-        Unifier unifier = new Unifier();
-        KnowledgeBase base = new KnowledgeBase(configuration, parser, handler, unifier);
-        boolean result = base.prove();
+        SearchOptions options = SearchOptions.defaults();
+        List<String> queries = new ArrayList<>();
+        CompiledKnowledgeBase compiled = CompiledKnowledgeBase.load(Constants.INPUT_PATH, queries, parser, handler,
+                options.isParallelLoading() ? options.getParallelism() : 1);
+        if (options.isUnitPropagation()) {
+            compiled.propagateUnits(options.getPropagationRounds(), options.getPropagationUnits());
+        }
+        if (queries.size() > 1) {
+            fileHandler.writeOutput(compiled.proveAll(queries, options), Constants.OUTPUT_PATH);
+            return;
+        }
+        boolean result = compiled.newSession(queries.get(0)).prove();
         fileHandler.writeOutput(result, Constants.OUTPUT_PATH);
     }
 
-    public static class KnowledgeBase {
+    /**
+     * Clauses and indexes compiled once from a list of facts and shared by any number of query sessions, see
+     * {@link KnowledgeBase}. Searches only read the compiled part, so sessions can run concurrently. Adding or
+     * retracting facts must not overlap with a running search.
+     */
+    public static class CompiledKnowledgeBase {
+
+        /**
+         * Standardisation index reserved for queries; fact clauses are numbered from the next one
+         */
+        static final int QUERY_INDEX = 0;
 
-        private static final int TIME_LIMIT = 1140;
+        /**
+         * Facts converted by one task when compiling in parallel
+         */
+        static final int COMPILE_BATCH = 256;
 
-        private static final boolean DEFAULT_ANSWER = true;
+        /**
+         * Facts read from an input file before a parallel load compiles them
+         */
+        static final int LOAD_BATCH = 1 << 14;
 
-        private final Configuration configuration;
+        private static final String DERIVED_VARIABLE = "_u";
 
         private final ExpressionParser parser;
 
         private final AlgebraHandler handler;
 
-        private final Unifier unifier;
+        private final ClauseIndex clauseIndex;
+
+        private final SubsumptionIndex subsumptionIndex;
+
+        private final UnitIndex unitIndex;
 
-        private final Sentence negatedQuery;
+        private final TrailUnifier bindings;
 
-        private final Map<String, List<Sentence>> positives;
+        private final Set<Clause> disjunctions;
 
-        private final Map<String, List<Sentence>> negatives;
+        private final Map<String, List<Clause>> facts;
 
-        private final Set<String> visited;
+        private final Map<Clause, List<Clause>> suppressed;
 
-        private final List<Sentence> disjunctions;
+        private final Map<Clause, Clause> suppressors;
+
+        /* Clauses derived by unit propagation, each with the clauses it was derived from */
+        private final Map<Clause, List<Clause>> justifications;
+
+        /* The derived clauses that each clause was used to derive */
+        private final Map<Clause, List<Clause>> dependents;
+
+        private LemmaCache lemmas;
 
         private int size;
 
-        public KnowledgeBase(Configuration configuration, ExpressionParser parser, AlgebraHandler handler, Unifier unifier) {
-            this.configuration = configuration;
-            this.parser = parser;
-            this.handler = handler;
-            this.unifier = unifier;
-            this.negatedQuery = getNegatedQuery();
-            this.positives = new HashMap<>();
-            this.negatives = new HashMap<>();
-            this.visited = new HashSet<>();
-            this.disjunctions = new ArrayList<>();
-            this.size = 0;
-            this.populateIndex();
-        }
+        private int maxLiterals;
 
-        public boolean prove() throws IOException {
-            return prove(this.negatedQuery, null, System.currentTimeMillis() / 1000, 0);
-        }
+        private int propagationRounds;
 
-        public boolean proveLogged() throws IOException {
-            BufferedWriter logWriter = new BufferedWriter(new FileWriter(Constants.OUTPUT_PATH, false));
-            boolean r = prove(this.negatedQuery, logWriter, System.currentTimeMillis() / 1000, 0);
-            logWriter.write(r ? Constants.TRUE : Constants.FALSE);
-            logWriter.close();
-            return r;
-        }
+        private int propagationUnits;
 
-        public List<Sentence> getDisjunctions() {
-            return disjunctions;
-        }
+        private int fresh;
 
-        private Sentence getNegatedQuery() {
-            Predicate query = (Predicate) parser.fromString(configuration.getQuery());
-            Predicate negation = handler.negatePredicate(query);
-            return handler.flatten(negation);
+        public CompiledKnowledgeBase(List<String> facts, ExpressionParser parser, AlgebraHandler handler) {
+            this.parser = parser;
+            this.handler = handler;
+            this.clauseIndex = new ClauseIndex();
+            this.subsumptionIndex = new SubsumptionIndex();
+            this.unitIndex = new UnitIndex();
+            this.bindings = new TrailUnifier(parser.getSymbols());
+            this.disjunctions = new LinkedHashSet<>();
+            this.facts = new HashMap<>();
+            this.suppressed = new IdentityHashMap<>();
+            this.suppressors = new IdentityHashMap<>();
+            this.justifications = new IdentityHashMap<>();
+            this.dependents = new IdentityHashMap<>();
+            this.lemmas = new LemmaCache();
+            this.size = QUERY_INDEX + 1;
+            this.maxLiterals = 0;
+            this.propagationRounds = 0;
+            this.propagationUnits = 0;
+            this.fresh = 0;
+            for (String fact : facts) {
+                addFact(fact);
+            }
         }
 
-        private void populateIndex() {
-            index(this.negatedQuery);
-            for (String fact : configuration.getFacts()) {
-                List<Sentence> disjunctions = getDisjunctions(fact);
-                for (Sentence disjunction : disjunctions) {
-                    index(disjunction);
-                }
-            }
+        /**
+         * Streams the facts of an input file into a new knowledge base, compiling each one as it is read, see
+         * {@link FileHandler#stream}. The queries of the file are added to the given list. The text of the facts is
+         * not kept, so they cannot be retracted, and repeated facts are only dropped through subsumption.
+         */
+        public static CompiledKnowledgeBase load(String path, List<String> queries, ExpressionParser parser, AlgebraHandler handler) throws IOException {
+            CompiledKnowledgeBase compiled = new CompiledKnowledgeBase(Collections.emptyList(), parser, handler);
+            queries.addAll(new FileHandler().stream(path, compiled::compile));
+            return compiled;
         }
 
-        private void index(Sentence disjunction) {
-            Sentence standardised = this.parser.standardise(disjunction, this.size);
-            this.disjunctions.add(standardised);
-            List<Predicate> predicates = extractPredicates(standardised);
-            for (Predicate predicate : predicates) {
-                String name = predicate.getName();
-                if (predicate.isNegated()) {
-                    this.negatives.putIfAbsent(name, new ArrayList<>());
-                    this.negatives.get(name).add(standardised);
-                }
-                else {
-                    this.positives.putIfAbsent(name, new ArrayList<>());
-                    this.positives.get(name).add(standardised);
-                }
+        /**
+         * Like {@link #load(String, List, ExpressionParser, AlgebraHandler)}, but reads the facts in batches of
+         * {@link #LOAD_BATCH} and compiles each batch on up to the given number of threads, see {@link #addFacts}. The
+         * clauses are only stored once the whole file has compiled, so a fact that fails to parse leaves the parser's
+         * definitions and the queries untouched.
+         */
+        public static CompiledKnowledgeBase load(String path, List<String> queries, ExpressionParser parser, AlgebraHandler handler,
+                                                 int parallelism) throws IOException {
+            if (parallelism <= 1) {
+                return load(path, queries, parser, handler);
             }
-            this.size++;
+            CompiledKnowledgeBase compiled = new CompiledKnowledgeBase(Collections.emptyList(), parser, handler);
+            Compilation compilation = compiled.newCompilation();
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            List<String> fileQueries;
+            try {
+                List<String> batch = new ArrayList<>(LOAD_BATCH);
+                int[] lines = new int[LOAD_BATCH];
+                fileQueries = new FileHandler().stream(path, (fact, line) -> {
+                    lines[batch.size()] = line;
+                    batch.add(fact.toString());
+                    if (batch.size() == LOAD_BATCH) {
+                        compiled.compile(batch, executor, index -> String.format("%s, line %d", path, lines[index]), compilation);
+                        batch.clear();
+                    }
+                });
+                compiled.compile(batch, executor, index -> String.format("%s, line %d", path, lines[index]), compilation);
+            }
+            finally {
+                executor.shutdownNow();
+            }
+            compiled.commit(compilation);
+            compiled.lemmas.clear();
+            queries.addAll(fileQueries);
+            return compiled;
         }
 
-        private List<Predicate> extractPredicates(Sentence sentence) {
-            return sentence.getExpressions().stream()
-                    .filter(expression -> expression.getType() == ExpressionType.PREDICATE)
-                    .map(expression -> (Predicate) expression)
-                    .collect(Collectors.toList());
+        /**
+         * Creates a session that answers one query against these clauses
+         */
+        public KnowledgeBase newSession(String query) {
+            return new KnowledgeBase(this, query);
         }
 
-        private boolean prove(Sentence current, BufferedWriter writer, long startTime, int depth) throws IOException {
-            if (timeLimitElapsed(startTime)) {
-                return DEFAULT_ANSWER;
-            }
-            if (depth > getMaxDepth()) {
-                return false;
+        /**
+         * Answers every query against these clauses, running up to the configured parallelism sessions at a time.
+         * Answers are returned in query order.
+         */
+        public List<Boolean> proveAll(List<String> queries, SearchOptions options) throws IOException {
+            List<KnowledgeBase> sessions = new ArrayList<>();
+            for (String query : queries) {
+                sessions.add(newSession(query));
             }
-            if (isContradiction(current)) {
-                return true;
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, options.getParallelism()));
+            try {
+                List<Future<Boolean>> futures = new ArrayList<>();
+                for (KnowledgeBase session : sessions) {
+                    futures.add(executor.submit(() -> session.prove(options)));
+                }
+                List<Boolean> answers = new ArrayList<>();
+                for (Future<Boolean> future : futures) {
+                    answers.add(future.get());
+                }
+                return answers;
             }
-            String key = getKey(current);
-            if (visited.contains(key)) {
-                return false;
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Batch proof was interrupted", ex);
             }
-            visited.add(key);
-            List<ResolutionResult> resolutionResults = new ArrayList<>();
-            for (Predicate p : extractPredicates(current)) {
-                List<Sentence> candidates = getResolutionCandidates(p);
-                for (Sentence candidate : candidates) {
-                    for (Predicate q : extractPredicates(candidate)) {
-                        if (p.getName().equals(q.getName())) {
-                            Map<String, Predicate.Argument> substitution = unifier.getSubstitution(p, q);
-                            if (Objects.nonNull(substitution) && !substitution.isEmpty()) {
-                                Predicate pSigma = unifier.apply(p, substitution);
-                                Predicate qSigma = unifier.apply(q, substitution);
-                                if (pSigma.equals(qSigma)) {
-                                    Sentence alpha = unifier.apply(current, substitution);
-                                    Sentence gamma = unifier.apply(candidate, substitution);
-                                    Sentence resolved = resolve(alpha, gamma, pSigma);
-                                    if (Objects.nonNull(resolved)) {
-                                        resolutionResults.add(ResolutionResult.of(candidate, resolved));
-                                    }
-                                }
-                            }
-                        }
-                    }
+            catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
                 }
+                throw new IllegalStateException("Batch proof failed", ex.getCause());
             }
-            resolutionResults.sort(Comparator.comparing(result -> result.getResolved().getExpressions().size()));
-            for (ResolutionResult result : resolutionResults) {
-                if (result.getResolved().getExpressions().size() <= getMaxLength()) {
-                    log(writer, current, result.getCandidate(), result.getResolved());
-                    if (prove(result.getResolved(), writer, startTime, depth + 1)) {
-                        return true;
-                    }
-                }
+            finally {
+                executor.shutdownNow();
             }
-            return false;
         }
 
-        private boolean timeLimitElapsed(long startTime) {
-            long elapsed = System.currentTimeMillis() / 1000 - startTime;
-            return elapsed > TIME_LIMIT;
+        public List<Clause> getDisjunctions() {
+            return new ArrayList<>(disjunctions);
         }
 
-        private int getMaxDepth() {
-            return getDisjunctions().size();
+        public ClauseIndex getClauseIndex() {
+            return clauseIndex;
         }
 
-        private boolean isContradiction(Sentence sentence) {
-            if (!isUnary(sentence)) {
-                return false;
-            }
-            Predicate p = (Predicate) sentence.getExpressions().get(0);
-            List<Sentence> candidates = getContradictionCandidates(p);
-            for (Sentence candidate : candidates) {
-                Predicate q = (Predicate) candidate.getExpressions().get(0);
-                if (Objects.nonNull(unifier.getSubstitution(p, q))) {
-                    return true;
-                }
-            }
-            return false;
+        /**
+         * Symbols of the parser the facts were compiled with, which every clause of the knowledge base refers to
+         */
+        public SymbolTable getSymbols() {
+            return parser.getSymbols();
+        }
+
+        public UnitIndex getUnitIndex() {
+            return unitIndex;
+        }
+
+        /**
+         * Number of stored clauses
+         */
+        public int size() {
+            return disjunctions.size();
         }
 
-        private boolean isUnary(Sentence sentence) {
-            return sentence.getExpressions().size() == 1;
+        /**
+         * Number of indexed clauses, counting those that are only left out because a stored clause subsumes them
+         */
+        public int getIndexedCount() {
+            return disjunctions.size() + suppressors.size();
+        }
+
+        /**
+         * Lemmas recorded by searches that have {@link SearchOptions#withLemmas} set; cleared whenever a fact is added
+         * or retracted
+         */
+        public LemmaCache getLemmaCache() {
+            return lemmas;
+        }
+
+        /**
+         * Replaces the lemma cache, e.g. with one of a different capacity or eviction policy
+         */
+        public void setLemmaCache(LemmaCache lemmas) {
+            this.lemmas = lemmas;
         }
 
-        private List<Sentence> getContradictionCandidates(Predicate predicate) {
-            if (predicate.isNegated()) {
-                return Utils.emptyIfNull(this.positives.get(predicate.getName())).stream()
-                        .filter(this::isUnary)
-                        .collect(Collectors.toList());
+        /**
+         * Adds a fact, converting it to clauses and indexing them in place; earlier clauses keep their standardised
+         * variables. Returns false if the fact is already in the knowledge base.
+         */
+        public boolean addFact(String fact) {
+            if (facts.containsKey(fact)) {
+                return false;
+            }
+            List<Clause> clauses = new ArrayList<>();
+            for (Sentence disjunction : getDisjunctions(fact)) {
+                clauses.add(index(disjunction));
             }
-            return Utils.emptyIfNull(this.negatives.get(predicate.getName())).stream()
-                    .filter(this::isUnary)
-                    .collect(Collectors.toList());
+            facts.put(fact, clauses);
+            lemmas.clear();
+            if (propagationRounds > 0) {
+                propagate(clauses);
+            }
+            return true;
         }
 
-        String getKey(Sentence sentence) {
-            Map<String, String> varnames = new HashMap<>();
-            List<Predicate> predicates = extractPredicates(sentence);
-            predicates.sort(Comparator.comparing(Predicate::getName));
-            StringBuilder builder = new StringBuilder();
-            for (Predicate predicate : predicates) {
-                String arguments = predicate.getArguments().stream()
-                        .map(argument -> getArgumentKey(argument, varnames))
-                        .collect(Collectors.joining(","));
-                if (predicate.isNegated()) {
-                    builder.append("~");
+        /**
+         * Adds facts like {@link #addFact}, converting them to CNF on up to the given number of threads. Clauses are
+         * standardised and stored in fact order, so the knowledge base ends up with the same clauses, standardisation
+         * indices and definitions, in the same order, as adding the facts one by one; only the order in which new
+         * symbols are interned can differ. No fact is added if any of them fails to parse. Unit propagation, if
+         * enabled, continues from all the new clauses at once. Returns the number of facts added.
+         */
+        public int addFacts(List<String> facts, int parallelism) {
+            List<String> added = new ArrayList<>();
+            List<Integer> positions = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < facts.size(); i++) {
+                if (!this.facts.containsKey(facts.get(i)) && seen.add(facts.get(i))) {
+                    added.add(facts.get(i));
+                    positions.add(i);
                 }
-                builder.append(String.format("%s(%s)", predicate.getName(), arguments));
             }
-            return builder.toString();
+            ExecutorService executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+            List<Clause> seeds = new ArrayList<>();
+            try {
+                Compilation compilation = newCompilation();
+                compile(added, executor, index -> String.format("Fact %d", positions.get(index) + 1), compilation);
+                List<List<Clause>> clauses = commit(compilation);
+                for (int i = 0; i < added.size(); i++) {
+                    this.facts.put(added.get(i), clauses.get(i));
+                    seeds.addAll(clauses.get(i));
+                }
+            }
+            finally {
+                if (Objects.nonNull(executor)) {
+                    executor.shutdownNow();
+                }
+            }
+            lemmas.clear();
+            if (propagationRounds > 0) {
+                propagate(seeds);
+            }
+            return added.size();
         }
 
-        private String getArgumentKey(Predicate.Argument argument, Map<String, String> varnames) {
-            if (argument.getArgumentType() == Predicate.ArgumentType.CONSTANT) {
-                return argument.getName();
+        /**
+         * Compiles facts in two steps, without touching the knowledge base. First the facts are converted to CNF in
+         * batches, each batch with its own parser, since tokenisers and definition counters are not shared. Then
+         * every fact is given its standardisation indices and definition numbers in fact order, continuing from the
+         * compilation, and its clauses are standardised, again in batches. Without an executor the batches run on the
+         * calling thread. A fact that fails to parse is reported through the locator, and the compilation is left as
+         * it was. The clauses are only stored once the compilation is committed, see {@link #commit}.
+         */
+        private void compile(List<String> facts, ExecutorService executor, IntFunction<String> locator, Compilation compilation) {
+            List<Callable<List<Conversion>>> conversions = new ArrayList<>();
+            for (int start = 0; start < facts.size(); start += COMPILE_BATCH) {
+                List<String> batch = facts.subList(start, Math.min(facts.size(), start + COMPILE_BATCH));
+                conversions.add(() -> convert(batch));
+            }
+            List<Conversion> converted = new ArrayList<>(facts.size());
+            for (List<Conversion> batch : invokeAll(conversions, executor)) {
+                converted.addAll(batch);
+            }
+            for (int i = 0; i < converted.size(); i++) {
+                Conversion conversion = converted.get(i);
+                if (Objects.nonNull(conversion.error)) {
+                    throw new IllegalArgumentException(String.format("%s: %s", locator.apply(i), conversion.error.getMessage()), conversion.error);
+                }
+            }
+            for (Conversion conversion : converted) {
+                conversion.index = compilation.index;
+                conversion.offset = compilation.definitions;
+                compilation.index += conversion.disjunctions.size();
+                compilation.definitions += conversion.definitions;
+            }
+            List<Callable<List<List<Clause>>>> standardisations = new ArrayList<>();
+            for (int start = 0; start < converted.size(); start += COMPILE_BATCH) {
+                List<Conversion> batch = converted.subList(start, Math.min(converted.size(), start + COMPILE_BATCH));
+                standardisations.add(() -> standardise(batch));
             }
-            else if (varnames.containsKey(argument.getName())) {
-                return varnames.get(argument.getName());
+            for (List<List<Clause>> batch : invokeAll(standardisations, executor)) {
+                compilation.clauses.addAll(batch);
             }
-            varnames.put(argument.getName(), Constants.VAR + varnames.size());
-            return varnames.get(argument.getName());
         }
 
-        private List<Sentence> getResolutionCandidates(Predicate predicate) {
-            if (predicate.isNegated()) {
-                return Utils.emptyIfNull(this.positives.get(predicate.getName()));
+        /**
+         * Starts a compilation at the next free standardisation index and definition number
+         */
+        private Compilation newCompilation() {
+            Compilation compilation = new Compilation();
+            compilation.index = size;
+            compilation.definitions = parser.getDefinitions();
+            return compilation;
+        }
+
+        /**
+         * Stores the clauses of a compilation one by one in fact order, so that subsumption between them plays out as
+         * in a sequential run, and claims its standardisation indices and definition numbers. Returns the clauses of
+         * each fact.
+         */
+        private List<List<Clause>> commit(Compilation compilation) {
+            size = compilation.index;
+            parser.reserveDefinitions(compilation.definitions - parser.getDefinitions());
+            for (List<Clause> factClauses : compilation.clauses) {
+                for (Clause clause : factClauses) {
+                    store(clause);
+                }
             }
-            return Utils.emptyIfNull(this.negatives.get(predicate.getName()));
+            return compilation.clauses;
         }
 
-        private int getMaxLength() {
-            int maxLength = getDisjunctions().stream()
-                    .map(sentence -> sentence.getExpressions().size())
-                    .reduce(Integer::max)
-                    .orElse(0);
-            return 2 * maxLength - 1;
+        private List<Conversion> convert(List<String> facts) {
+            ExpressionParser converter = new ExpressionParser(new Tokeniser(parser.getSymbols()), handler, parser.getDefinitionThreshold());
+            List<Conversion> conversions = new ArrayList<>(facts.size());
+            for (String fact : facts) {
+                Conversion conversion = new Conversion();
+                conversion.first = converter.getDefinitions();
+                try {
+                    conversion.disjunctions = converter.splitAndCleanup(converter.toCNF(fact));
+                }
+                catch (IllegalArgumentException ex) {
+                    conversion.error = ex;
+                }
+                conversion.definitions = converter.getDefinitions() - conversion.first;
+                conversions.add(conversion);
+            }
+            return conversions;
         }
 
-        private void log(Writer writer, Sentence current, Sentence candidate, Sentence resolved) throws IOException {
-            if (Objects.nonNull(writer)) {
-                writer.write("-----------------------------------\n");
-                writer.write(current + " , " + candidate + " , " + resolved + "\n");
-                writer.write("-----------------------------------\n");
+        private List<List<Clause>> standardise(List<Conversion> conversions) {
+            List<List<Clause>> clauses = new ArrayList<>(conversions.size());
+            for (Conversion conversion : conversions) {
+                List<Clause> factClauses = new ArrayList<>(conversion.disjunctions.size());
+                int index = conversion.index;
+                Map<Integer, String> renumbering = Collections.emptyMap();
+                if (conversion.definitions > 0 && conversion.first != conversion.offset) {
+                    renumbering = parser.renumbering(conversion.first, conversion.definitions, conversion.offset);
+                }
+                for (Sentence disjunction : conversion.disjunctions) {
+                    if (!renumbering.isEmpty()) {
+                        parser.renumberDefinitions(disjunction, renumbering);
+                    }
+                    factClauses.add(Clause.of(parser.standardise(disjunction, index++)));
+                }
+                clauses.add(factClauses);
             }
+            return clauses;
         }
 
-        Sentence resolve(Sentence a, Sentence b, Predicate predicate) {
-            List<Predicate> aPredicates = extractPredicates(a).stream()
-                    .filter(p -> !p.equals(predicate))
-                    .collect(Collectors.toList());
-            List<Predicate> bPredicates = extractPredicates(b).stream()
-                    .filter(p -> !p.equals(predicate))
-                    .collect(Collectors.toList());
-            List<Expression> expressions = new ArrayList<>();
-            Iterator<Predicate> iterator = aPredicates.iterator();
-            if (iterator.hasNext()) {
-                expressions.add(iterator.next());
-                while (iterator.hasNext()) {
-                    expressions.add(Operator.OR);
-                    expressions.add(iterator.next());
+        /**
+         * Runs the tasks on the executor, or in order on the calling thread without one, and returns their results
+         * in task order
+         */
+        private static <T> List<T> invokeAll(List<Callable<T>> tasks, ExecutorService executor) {
+            List<T> results = new ArrayList<>(tasks.size());
+            try {
+                if (Objects.isNull(executor)) {
+                    for (Callable<T> task : tasks) {
+                        results.add(task.call());
+                    }
+                    return results;
+                }
+                for (Future<T> future : executor.invokeAll(tasks)) {
+                    results.add(future.get());
                 }
+                return results;
             }
-            if (!expressions.isEmpty()) {
-                expressions.add(Operator.OR);
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Compilation was interrupted", ex);
             }
-            iterator = bPredicates.iterator();
-            if (iterator.hasNext()) {
-                expressions.add(iterator.next());
-                while (iterator.hasNext()) {
-                    expressions.add(Operator.OR);
-                    expressions.add(iterator.next());
+            catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
                 }
+                throw new IllegalStateException("Compilation failed", ex.getCause());
             }
-            if (expressions.isEmpty()) {
-                return null;
+            catch (RuntimeException ex) {
+                throw ex;
+            }
+            catch (Exception ex) {
+                throw new IllegalStateException("Compilation failed", ex);
             }
-            return parser.cleanup(new Sentence(expressions));
         }
 
-        private List<Sentence> getDisjunctions(String line) {
-            Sentence cnf = parser.toCNF(line);
-            return parser.splitAndCleanup(cnf);
-        }
+        /**
+         * State of one propagation pass, see {@link #propagate(List)}
+         */
+        private static class Propagation {
 
-        private static class ResolutionResult {
+            private final List<Clause> units;
 
-            private final Sentence candidate;
+            private final List<Clause> simplified;
 
-            private final Sentence resolved;
+            /* Clauses waiting to be taken up, in this round's frontier or the next */
+            private final Set<Clause> pending;
 
-            private ResolutionResult(Sentence candidate, Sentence resolved) {
-                this.candidate = candidate;
-                this.resolved = resolved;
-            }
+            private List<Clause> frontier;
 
-            public static ResolutionResult of(Sentence candidate, Sentence resolved) {
-                return new ResolutionResult(candidate, resolved);
-            }
+            private boolean inconsistent;
 
-            public Sentence getCandidate() {
-                return candidate;
+            private Propagation(List<Clause> seeds) {
+                this.units = new ArrayList<>();
+                this.simplified = new ArrayList<>();
+                this.pending = Collections.newSetFromMap(new IdentityHashMap<>());
+                this.pending.addAll(seeds);
+                this.frontier = new ArrayList<>(seeds);
+                this.inconsistent = false;
             }
 
-            public Sentence getResolved() {
-                return resolved;
+            private void enqueue(Clause clause) {
+                pending.add(clause);
+                frontier.add(clause);
             }
         }
 
-        @Override
-        public String toString() {
-            StringBuilder builder = new StringBuilder();
-            for (Sentence disjunction : disjunctions) {
-                builder.append(String.format("%s\n", disjunction.toString()));
-            }
-            return builder.toString();
+        /**
+         * Clauses compiled but not yet stored, with the standardisation index and definition number that the next
+         * compiled fact starts at, see {@link #commit}
+         */
+        private static class Compilation {
+
+            private final List<List<Clause>> clauses = new ArrayList<>();
+
+            private int index;
+
+            private int definitions;
         }
-    }
 
-    public static class Configuration {
+        /**
+         * One fact converted to CNF by a parser of its own, see {@link #compile}
+         */
+        private static class Conversion {
 
-        private final String query;
+            private List<Sentence> disjunctions;
 
-        private final int size;
+            private IllegalArgumentException error;
 
-        private final List<String> facts;
+            /* Number of the first definition, as named by the converting parser */
+            private int first;
 
-        public Configuration(String query, int size, List<String> facts) {
-            this.size = size;
-            this.query = query;
-            this.facts = facts;
-        }
+            private int definitions;
 
-        public String getQuery() {
-            return query;
-        }
+            /* Standardisation index of the first clause and number of the first definition in fact order */
+            private int index;
 
-        public List<String> getFacts() {
-            return facts;
+            private int offset;
         }
 
-        @Override
-        public String toString() {
-            StringBuilder builder = new StringBuilder();
-            builder.append(String.format("%s\n", query));
-            builder.append(String.format("%d\n", size));
-            for (String fact : facts) {
-                builder.append(String.format("%s\n", fact));
+        /**
+         * Converts a fact to clauses and indexes them, without recording the fact
+         */
+        private void compile(CharSequence fact) {
+            for (Sentence disjunction : getDisjunctions(fact)) {
+                index(disjunction);
             }
-            return builder.toString();
+            lemmas.clear();
         }
-    }
-
-    public static class ExpressionParser {
-
-        private final Tokeniser tokeniser;
-
-        private final AlgebraHandler handler;
 
-        public ExpressionParser(Tokeniser tokeniser, AlgebraHandler handler) {
-            this.tokeniser = tokeniser;
-            this.handler = handler;
+        /**
+         * Removes a fact, together with its clauses and the clauses propagation derived from them. Clauses that were
+         * only left out because a removed clause subsumed them are indexed again, and propagation continues from them.
+         * Returns false if the fact is not in the knowledge base.
+         */
+        public boolean retractFact(String fact) {
+            List<Clause> clauses = facts.remove(fact);
+            if (Objects.isNull(clauses)) {
+                return false;
+            }
+            List<Clause> restored = retract(invalidate(clauses));
+            lemmas.clear();
+            if (propagationRounds > 0) {
+                propagate(restored);
+            }
+            return true;
         }
 
-        public List<Sentence> splitAndCleanup(Sentence cnf) {
-            List<Sentence> disjunctions = new ArrayList<>();
-            for (Expression cnfExpression : cnf.getExpressions()) {
-                if (cnfExpression.getType() == ExpressionType.OPERATOR) {
-                    if (cnfExpression == Operator.OR) {
-                        throw new UnsupportedOperationException(String.format("Sentence %s is not in CNF", cnf));
-                    }
-                    else {
-                        continue;
-                    }
+        /**
+         * Returns the clauses together with every derived clause that depends on them, directly or through other
+         * derived clauses, and forgets how those were derived
+         */
+        private List<Clause> invalidate(List<Clause> clauses) {
+            Set<Clause> invalid = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<Clause> stack = new ArrayDeque<>(clauses);
+            List<Clause> result = new ArrayList<>();
+            while (!stack.isEmpty()) {
+                Clause clause = stack.pop();
+                if (!invalid.add(clause)) {
+                    continue;
                 }
-                if (cnfExpression.getType() == ExpressionType.PREDICATE) {
-                    Predicate predicate = (Predicate) cnfExpression;
-                    Sentence disjunction = new Sentence(predicate);
-                    disjunctions.add(disjunction);
+                result.add(clause);
+                for (Clause dependent : Utils.emptyIfNull(dependents.remove(clause))) {
+                    stack.push(dependent);
                 }
-                else if (cnfExpression.getType() == ExpressionType.SENTENCE) {
-                    Sentence cleanup = cleanup((Sentence) cnfExpression);
-                    if (Objects.nonNull(cleanup)) {
-                        disjunctions.add(cleanup);
+                for (Clause parent : Utils.emptyIfNull(justifications.remove(clause))) {
+                    List<Clause> siblings = dependents.get(parent);
+                    if (Objects.nonNull(siblings)) {
+                        siblings.removeIf(other -> other == clause);
+                        if (siblings.isEmpty()) {
+                            dependents.remove(parent);
+                        }
                     }
                 }
             }
-            return disjunctions;
+            return result;
         }
 
-        public Sentence standardise(Sentence sentence, int index) {
-            for (int i = 0; i < sentence.getExpressions().size(); i++) {
-                Expression expression = sentence.getExpressions().get(i);
-                if (expression.getType() == ExpressionType.SENTENCE) {
-                    throw new IllegalArgumentException(String.format("Sentence %s is not a pure disjunction", sentence));
+        /**
+         * Removes clauses, re-storing those that were only left out because a removed clause subsumed them. Returns
+         * the clauses that were stored again.
+         */
+        private List<Clause> retract(List<Clause> clauses) {
+            Set<Clause> retracted = Collections.newSetFromMap(new IdentityHashMap<>());
+            retracted.addAll(clauses);
+            List<Clause> released = new ArrayList<>();
+            for (Clause clause : clauses) {
+                Clause suppressor = suppressors.remove(clause);
+                if (Objects.nonNull(suppressor)) {
+                    suppressed.get(suppressor).removeIf(other -> other == clause);
+                    continue;
                 }
-                else if (expression.getType() == ExpressionType.PREDICATE) {
-                    sentence.getExpressions().set(i, standardise((Predicate) expression, index));
+                remove(clause);
+                for (Clause other : Utils.emptyIfNull(suppressed.remove(clause))) {
+                    suppressors.remove(other);
+                    released.add(other);
                 }
             }
-            return sentence;
-        }
-
-        public Sentence toCNF(String line) {
-            List<Atom> atoms = tokeniser.tokenise(line.replaceAll("\\s", ""));
-            Operand operand = (Operand) fromAtoms(atoms);
-            return toCNF(operand);
-        }
-
-        Expression fromString(String line) {
-            List<Atom> atoms = tokeniser.tokenise(line.replaceAll("\\s", ""));
-            return fromAtoms(atoms);
+            List<Clause> restored = new ArrayList<>();
+            for (Clause clause : released) {
+                if (!retracted.contains(clause) && store(clause)) {
+                    restored.add(clause);
+                }
+            }
+            return restored;
         }
 
-        Sentence toCNF(Operand operand) {
-            if (handler.isCNF(operand)) {
-                return handler.flatten(operand);
-            }
-            Sentence sentence = (Sentence) operand;
-            List<Expression> postfixExpressions = toPostfix(sentence.getExpressions());
-            Stack<Expression> stack = new Stack<>();
-            for (Expression postfix : postfixExpressions) {
-                switch (postfix.getType()) {
-                    case PREDICATE:
-                    case SENTENCE:
-                        stack.add(postfix);
-                        break;
-                    case OPERATOR:
-                        Operand second = (Operand) stack.pop();
-                        Operand first = (Operand) stack.pop();
-                        Operator operator = (Operator) postfix;
-                        Expression operated = handleOperator(first, second, operator);
-                        stack.add(operated);
-                        break;
+        /**
+         * Preprocesses the stored clauses with unit-resulting resolution and unit deletion, round by round, until no
+         * new unit is derived or a bound is hit. In each round every unit from the previous round is resolved against
+         * the clauses it can refute a literal of: when the unit is at least as general as that literal, the literal
+         * is deleted and the shorter clause replaces the original through subsumption; otherwise, when units refute
+         * all but one of the clause's other literals, the remaining literal is derived as a new unit. The bounds are
+         * kept, and whenever facts change propagation continues from the clauses that were added or stored again,
+         * while clauses derived from retracted ones are removed with them.
+         */
+        public PropagationReport propagateUnits(int maxRounds, int maxUnits) {
+            this.propagationRounds = maxRounds;
+            this.propagationUnits = maxUnits;
+            List<Clause> units = new ArrayList<>();
+            for (Clause clause : disjunctions) {
+                if (clause.isUnit()) {
+                    units.add(clause);
                 }
             }
-            return handler.flatten((Operand) stack.pop());
+            return propagate(units);
         }
 
-        public Sentence cleanup(Sentence disjunction) {
-            Map<String, Predicate> predicates = new HashMap<>();
-            for (Expression expression : disjunction.getExpressions()) {
-                if (expression == Operator.AND) {
-                    throw new IllegalArgumentException("Disjunction should not contain any ANDs");
+        /**
+         * Propagates from newly stored clauses within the kept bounds. A unit is resolved against the stored clauses it
+         * can refute a literal of, and a longer clause against the stored units that can refute one of its literals.
+         * When both clauses of a pair are still waiting, the pair is left to whichever is taken up second, so every
+         * pair is tried once.
+         */
+        private PropagationReport propagate(List<Clause> seeds) {
+            Propagation propagation = new Propagation(seeds);
+            int round = 0;
+            while (!propagation.frontier.isEmpty() && round < propagationRounds && propagation.units.size() < propagationUnits
+                    && !propagation.inconsistent) {
+                round++;
+                List<Clause> frontier = propagation.frontier;
+                propagation.frontier = new ArrayList<>();
+                for (Clause clause : frontier) {
+                    propagation.pending.remove(clause);
+                    if (!isStored(clause)) {
+                        continue;
+                    }
+                    if (clause.isUnit()) {
+                        for (DiscriminationTree.Occurrence occurrence : clauseIndex.getUnifiableCandidates(clause.get(0))) {
+                            if (!propagation.pending.contains(occurrence.getClause()) && isStored(occurrence.getClause())) {
+                                propagate(clause, occurrence.getClause(), occurrence.getPosition(), propagation);
+                            }
+                        }
+                        continue;
+                    }
+                    for (int position = 0; position < clause.size(); position++) {
+                        for (Clause unit : new ArrayList<>(unitIndex.getComplementary(clause.get(position), clause.isNegated(position)))) {
+                            if (!propagation.pending.contains(unit) && isStored(unit) && isStored(clause)) {
+                                propagate(unit, clause, position, propagation);
+                            }
+                        }
+                    }
                 }
-                else if (expression.getType() == ExpressionType.SENTENCE) {
-                    throw new IllegalArgumentException("Sentence must be a pure disjunction");
+            }
+            if (!propagation.units.isEmpty() || !propagation.simplified.isEmpty()) {
+                lemmas.clear();
+            }
+            return new PropagationReport(propagation.units, propagation.simplified, round, propagation.frontier.isEmpty(),
+                    propagation.inconsistent);
+        }
+
+        /**
+         * Resolves a unit against the literal at the given position of a stored clause
+         */
+        private void propagate(Clause unit, Clause clause, int position, Propagation propagation) {
+            int mark = bindings.mark();
+            if (clause.isUnit()) {
+                /* Candidates ignore repeated variables, so only a unifier proves the units complementary */
+                if (bindings.unify(unit.get(0), clause.get(position)) == TrailUnifier.UNIFIED) {
+                    bindings.undo(mark);
+                    propagation.inconsistent = true;
                 }
-                else if (expression.getType() == ExpressionType.PREDICATE) {
-                    Predicate predicate = (Predicate) expression;
-                    String key = predicate.getKey();
-                    Predicate existing = predicates.get(key);
-                    if (Objects.nonNull(existing) && existing.isNegation(predicate)) {
-                        return null;
+                return;
+            }
+            if (bindings.match(unit.get(0), clause.get(position)) == TrailUnifier.UNIFIED) {
+                bindings.undo(mark);
+                Clause shorter = delete(clause, position);
+                justify(shorter, Arrays.asList(unit, clause));
+                if (store(shorter)) {
+                    propagation.simplified.add(shorter);
+                    if (shorter.isUnit()) {
+                        propagation.units.add(shorter);
                     }
-                    else {
-                        predicates.put(key, predicate);
+                    propagation.enqueue(shorter);
+                }
+                return;
+            }
+            List<Predicate> results = new ArrayList<>();
+            List<List<Clause>> parents = new ArrayList<>();
+            if (bindings.unify(unit.get(0), clause.get(position)) == TrailUnifier.UNIFIED) {
+                Deque<Clause> used = new ArrayDeque<>();
+                used.push(unit);
+                for (int target = 0; target < clause.size(); target++) {
+                    if (target != position) {
+                        resolveUnits(clause, position, target, 0, used, results, parents);
                     }
                 }
+                bindings.undo(mark);
             }
-            List<Expression> expressions = new ArrayList<>();
-            Iterator<Predicate> iterator = predicates.values().iterator();
-            expressions.add(iterator.next());
-            while (iterator.hasNext()) {
-                Predicate predicate = iterator.next();
-                expressions.add(Operator.OR);
-                expressions.add(predicate);
+            for (int i = 0; i < results.size() && propagation.units.size() < propagationUnits; i++) {
+                Clause result = rename(results.get(i));
+                propagation.inconsistent |= unitIndex.isContradiction(result, bindings);
+                justify(result, parents.get(i));
+                if (store(result)) {
+                    propagation.units.add(result);
+                    propagation.enqueue(result);
+                }
             }
-            return new Sentence(expressions);
         }
 
-        private Predicate standardise(Predicate predicate, int index) {
-            List<Predicate.Argument> standardisedArguments = new ArrayList<>();
-            for (Predicate.Argument argument : predicate.getArguments()) {
-                if (argument.getArgumentType() == Predicate.ArgumentType.CONSTANT) {
-                    standardisedArguments.add(argument);
+        private void justify(Clause clause, List<Clause> parents) {
+            justifications.put(clause, parents);
+            for (Clause parent : parents) {
+                dependents.computeIfAbsent(parent, key -> new ArrayList<>()).add(clause);
+            }
+        }
+
+        /**
+         * Whether the clause is stored, as opposed to removed or suppressed by a subsuming clause
+         */
+        private boolean isStored(Clause clause) {
+            return disjunctions.contains(clause) && !suppressors.containsKey(clause);
+        }
+
+        /**
+         * Resolves the literals of a clause from the given position on with unit clauses, skipping the trigger and
+         * target positions, and collects the target literal under every complete set of bindings, together with the
+         * clauses it was derived from. A non-ground unit is used at most once per derivation, since its variables are
+         * not renamed apart.
+         */
+        private void resolveUnits(Clause clause, int trigger, int target, int position, Deque<Clause> used, List<Predicate> results,
+                                  List<List<Clause>> parents) {
+            if (position == clause.size()) {
+                results.add(bindings.apply(clause.get(target)));
+                List<Clause> justification = new ArrayList<>(used);
+                justification.add(clause);
+                parents.add(justification);
+                return;
+            }
+            if (position == trigger || position == target) {
+                resolveUnits(clause, trigger, target, position + 1, used, results, parents);
+                return;
+            }
+            Predicate literal = bindings.apply(clause.get(position));
+            for (Clause unit : unitIndex.getComplementary(literal, clause.isNegated(position))) {
+                boolean ground = UnitIndex.isGround(unit.get(0));
+                if (!ground && used.stream().anyMatch(other -> other == unit)) {
+                    continue;
                 }
-                else {
-                    String standardisedName = String.format("%s%d", argument.getName(), index);
-                    standardisedArguments.add(new Predicate.Variable(standardisedName));
+                int mark = bindings.mark();
+                if (bindings.unify(literal, unit.get(0)) == TrailUnifier.UNIFIED) {
+                    used.push(unit);
+                    resolveUnits(clause, trigger, target, position + 1, used, results, parents);
+                    used.pop();
+                    bindings.undo(mark);
                 }
             }
-            return new Predicate(predicate.getName(), standardisedArguments, predicate.isNegated());
+        }
+
+        private Clause delete(Clause clause, int position) {
+            Predicate[] literals = new Predicate[clause.size() - 1];
+            for (int i = 0, j = 0; i < clause.size(); i++) {
+                if (i != position) {
+                    literals[j++] = clause.get(i);
+                }
+            }
+            return new Clause(literals);
         }
 
         /**
-         * Generates a sentence from a list of atoms
+         * Gives the variables of a derived unit fresh names, which cannot clash with parsed variables
          */
-        private Expression fromAtoms(List<Atom> atoms) {
-            List<Expression> expressions = new ArrayList<>(atoms);
-            Stack<Expression> stack = new Stack<>();
-            List<Expression> postfix = toPostfix(expressions);
-            for (Expression expression : postfix) {
-                switch (expression.getType()) {
-                    case PREDICATE:
-                        stack.add(expression);
-                        break;
-                    case OPERATOR:
-                        Operator operator = (Operator) expression;
-                        Expression first = stack.pop();
-                        Expression second = stack.pop();
-                        Sentence next = new Sentence(Arrays.asList(second, operator, first));
-                        stack.add(next);
-                        break;
-                    default:
-                        throw new UnsupportedOperationException(String.format("Expression type %s is not an atom", expression.getType()));
+        private Clause rename(Predicate literal) {
+            int[] codes = literal.getArgumentCodes();
+            Map<Integer, Integer> renamed = new HashMap<>();
+            for (int i = 0; i < codes.length; i++) {
+                if (codes[i] < 0) {
+                    codes[i] = renamed.computeIfAbsent(codes[i], key -> parser.getSymbols().variable(DERIVED_VARIABLE + fresh++).getCode());
                 }
             }
-            return stack.pop();
+            return new Clause(new Predicate(literal, codes));
         }
 
-        private List<Expression> toPostfix(List<Expression> expressions) {
-            Stack<Operator> stack = new Stack<>();
-            List<Expression> postfix = new ArrayList<>();
-            for (Expression expression : expressions) {
-                switch (expression.getType()) {
-                    case SENTENCE:
-                    case PREDICATE:
-                        postfix.add(expression);
-                        break;
-                    case OPERATOR:
-                        Operator operator = (Operator) expression;
-                        while (!stack.isEmpty() && operator.getPrecedence() <= stack.peek().getPrecedence()) {
-                            Operator next = stack.pop();
-                            postfix.add(next);
-                        }
-                        stack.add(operator);
-                        break;
-                    default:
-                        throw new IllegalArgumentException(String.format("Expression cannot be of type %s", expression.getType()));
+        /**
+         * Forward subsumption against the stored clauses
+         */
+        boolean isSubsumed(Clause clause, TrailUnifier bindings) {
+            return subsumptionIndex.isSubsumed(clause, bindings);
+        }
+
+        /**
+         * Number of literals in the longest stored clause
+         */
+        int getMaxLiterals() {
+            return maxLiterals;
+        }
+
+        /**
+         * Parses a query and returns its standardised negation
+         */
+        Clause parseNegatedQuery(String query) {
+            Predicate predicate = (Predicate) parser.fromString(query);
+            Predicate negation = handler.negatePredicate(predicate);
+            return Clause.of(parser.standardise(handler.flatten(negation), QUERY_INDEX));
+        }
+
+        private List<Sentence> getDisjunctions(CharSequence line) {
+            Sentence cnf = parser.toCNF(line);
+            return parser.splitAndCleanup(cnf);
+        }
+
+        /**
+         * Standardises and stores a clause. Each clause gets the next standardisation index, so indices never change
+         * once assigned.
+         */
+        private Clause index(Sentence disjunction) {
+            Clause standardised = Clause.of(this.parser.standardise(disjunction, this.size));
+            this.size++;
+            store(standardised);
+            return standardised;
+        }
+
+        /**
+         * Stores a clause, unless a stored clause subsumes it. Stored clauses that the new clause subsumes are removed.
+         * Either way the subsumer remembers what it suppressed, so retracting it can bring those clauses back. Returns
+         * whether the clause was stored.
+         */
+        private boolean store(Clause clause) {
+            Clause subsumer = subsumptionIndex.getSubsumer(clause, bindings);
+            if (Objects.nonNull(subsumer)) {
+                suppress(subsumer, clause);
+                return false;
+            }
+            for (Clause subsumed : subsumptionIndex.getSubsumed(clause, bindings)) {
+                remove(subsumed);
+                suppress(clause, subsumed);
+                for (Clause other : Utils.emptyIfNull(suppressed.remove(subsumed))) {
+                    suppress(clause, other);
                 }
             }
-            while (!stack.isEmpty()) {
-                Operator next = stack.pop();
-                postfix.add(next);
+            this.disjunctions.add(clause);
+            this.clauseIndex.add(clause);
+            this.subsumptionIndex.add(clause);
+            this.unitIndex.add(clause);
+            this.maxLiterals = Math.max(this.maxLiterals, clause.size());
+            return true;
+        }
+
+        private void suppress(Clause subsumer, Clause clause) {
+            suppressed.computeIfAbsent(subsumer, key -> new ArrayList<>()).add(clause);
+            suppressors.put(clause, subsumer);
+        }
+
+        private void remove(Clause clause) {
+            this.disjunctions.remove(clause);
+            this.clauseIndex.remove(clause);
+            this.subsumptionIndex.remove(clause);
+            this.unitIndex.remove(clause);
+        }
+    }
+
+    /**
+     * What a unit propagation pass derived, see {@link CompiledKnowledgeBase#propagateUnits}
+     */
+    public static class PropagationReport {
+
+        private final List<Clause> units;
+
+        private final List<Clause> simplified;
+
+        private final int rounds;
+
+        private final boolean fixpoint;
+
+        private final boolean inconsistent;
+
+        PropagationReport(List<Clause> units, List<Clause> simplified, int rounds, boolean fixpoint, boolean inconsistent) {
+            this.units = units;
+            this.simplified = simplified;
+            this.rounds = rounds;
+            this.fixpoint = fixpoint;
+            this.inconsistent = inconsistent;
+        }
+
+        /**
+         * Unit clauses added by unit-resulting resolution or by deleting literals down to one
+         */
+        public List<Clause> getUnits() {
+            return Collections.unmodifiableList(units);
+        }
+
+        /**
+         * Clauses shortened by unit deletion, which replaced the clauses they came from
+         */
+        public List<Clause> getSimplified() {
+            return Collections.unmodifiableList(simplified);
+        }
+
+        public int getRounds() {
+            return rounds;
+        }
+
+        /**
+         * Whether propagation stopped because nothing new was derived, rather than at a bound
+         */
+        public boolean isFixpoint() {
+            return fixpoint;
+        }
+
+        /**
+         * Whether two complementary units were found, in which case every query holds
+         */
+        public boolean isInconsistent() {
+            return inconsistent;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("Derived %d units and simplified %d clauses in %d rounds%s\n", units.size(),
+                    simplified.size(), rounds, fixpoint ? "" : " (bound reached)"));
+            for (Clause clause : simplified) {
+                builder.append(String.format("%s\n", clause));
             }
-            return postfix;
+            for (Clause unit : units) {
+                if (!simplified.contains(unit)) {
+                    builder.append(String.format("%s\n", unit));
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * A query session: one negated query over a compiled knowledge base that may be shared with other sessions. The
+     * negated query lives in a small index of its own, which resolution and contradiction checks consult next to the
+     * shared one.
+     */
+    public static class KnowledgeBase {
+
+        private final CompiledKnowledgeBase compiled;
+
+        private final Clause negatedQuery;
+
+        private final ClauseIndex queryIndex;
+
+        private final UnitIndex queryUnits;
+
+        public KnowledgeBase(Configuration configuration, ExpressionParser parser, AlgebraHandler handler) {
+            this(new CompiledKnowledgeBase(configuration.getFacts(), parser, handler), configuration.getQuery());
+        }
+
+        KnowledgeBase(CompiledKnowledgeBase compiled, String query) {
+            this.compiled = compiled;
+            this.negatedQuery = compiled.parseNegatedQuery(query);
+            this.queryIndex = new ClauseIndex();
+            this.queryIndex.add(negatedQuery);
+            this.queryUnits = new UnitIndex();
+            this.queryUnits.add(negatedQuery);
+        }
+
+        public boolean prove() throws IOException {
+            return prove(SearchOptions.defaults());
+        }
+
+        public boolean prove(SearchOptions options) throws IOException {
+            return newSearch(options, null).search(this.negatedQuery);
+        }
+
+        public boolean proveLogged() throws IOException {
+            BufferedWriter logWriter = new BufferedWriter(new FileWriter(Constants.OUTPUT_PATH, false));
+            boolean r = newSearch(SearchOptions.defaults(), logWriter).search(this.negatedQuery);
+            logWriter.write(r ? Constants.TRUE : Constants.FALSE);
+            logWriter.close();
+            return r;
         }
 
         /**
-         * Operates on two expressions already in CNF
+         * The negated query followed by the clauses of the compiled knowledge base
          */
-        private Expression handleOperator(Operand first, Operand second, Operator operator) {
-            switch (operator) {
-                case AND:
-                    return handleAnd(first, second);
-                case OR:
-                    return handleOr(first, second);
-                case IMPLIES:
-                    return handleImplication(first, second);
+        public List<Clause> getDisjunctions() {
+            List<Clause> disjunctions = new ArrayList<>(compiled.size() + 1);
+            disjunctions.add(negatedQuery);
+            disjunctions.addAll(compiled.getDisjunctions());
+            return disjunctions;
+        }
+
+        /**
+         * See {@link CompiledKnowledgeBase#addFact}; this changes the knowledge base of every session sharing it
+         */
+        public boolean addFact(String fact) {
+            return compiled.addFact(fact);
+        }
+
+        /**
+         * See {@link CompiledKnowledgeBase#retractFact}; this changes the knowledge base of every session sharing it
+         */
+        public boolean retractFact(String fact) {
+            return compiled.retractFact(fact);
+        }
+
+        public Clause getNegatedQuery() {
+            return negatedQuery;
+        }
+
+        public CompiledKnowledgeBase getCompiled() {
+            return compiled;
+        }
+
+        public ClauseIndex getClauseIndex() {
+            return compiled.getClauseIndex();
+        }
+
+        public SymbolTable getSymbols() {
+            return compiled.getSymbols();
+        }
+
+        /**
+         * Creates a search over this knowledge base using the strategy selected in the options
+         */
+        public ProofSearch newSearch(SearchOptions options, Writer writer) {
+            switch (options.getStrategy()) {
+                case DEPTH_FIRST:
+                    return new DepthFirstSearch(this, options, writer);
+                case SATURATION:
+                    return new SaturationSearch(this, options, writer);
+                case BREADTH_FIRST:
+                    return new BreadthFirstSearch(this, options, writer);
+                case PARALLEL:
+                    return new ParallelSearch(this, options, writer);
+                case PORTFOLIO:
+                    return new PortfolioSearch(this, options, writer);
+                case ITERATIVE_DEEPENING:
+                    return new IterativeDeepeningSearch(this, options, writer);
                 default:
-                    throw new UnsupportedOperationException(String.format("Cannot apply operator %s on operables %s and %s", operator, first, second));
+                    throw new UnsupportedOperationException(String.format("Search strategy %s is not supported", options.getStrategy()));
             }
         }
 
-        private Expression handleAnd(Operand first, Operand second) {
-            Operand cnfFirst = toCNF(first);
-            Operand cnfSecond = toCNF(second);
-            return handler.and(cnfFirst, cnfSecond);
+        /**
+         * Forward subsumption against the clauses stored in the compiled knowledge base
+         */
+        boolean isSubsumed(Clause clause, TrailUnifier bindings) {
+            return compiled.isSubsumed(clause, bindings);
         }
 
-        private Expression handleOr(Operand first, Operand second) {
-            Operand cnfFirst = toCNF(first);
-            Operand cnfSecond = toCNF(second);
-            return handler.or(cnfFirst, cnfSecond);
+        /**
+         * Resolves the clause against every candidate in the knowledge base and returns the resolvents, smallest first
+         */
+        List<ResolutionResult> getResolvents(Clause current, TrailUnifier bindings) {
+            List<ResolutionResult> resolutionResults = new ArrayList<>();
+            addResolvents(current, this.queryIndex, bindings, resolutionResults);
+            addResolvents(current, compiled.getClauseIndex(), bindings, resolutionResults);
+            resolutionResults.sort(Comparator.comparingInt(ResolutionResult::size));
+            return resolutionResults;
         }
 
-        private Expression handleImplication(Operand first, Operand second) {
-            Expression negated = handler.negate(first);
-            return handleOr((Operand) negated, second);
+        /**
+         * Resolves the clause against every candidate in the given index, adding the resolvents to the results
+         */
+        void addResolvents(Clause current, ClauseIndex index, TrailUnifier bindings, List<ResolutionResult> resolutionResults) {
+            for (int i = 0; i < current.size(); i++) {
+                Predicate p = current.get(i);
+                for (DiscriminationTree.Occurrence occurrence : index.getUnifiableCandidates(p)) {
+                    Clause candidate = occurrence.getClause();
+                    int mark = bindings.mark();
+                    if (bindings.unify(p, occurrence.getLiteral()) == TrailUnifier.UNIFIED) {
+                        int size = getResolventSize(current, i, candidate, occurrence.getPosition(), bindings);
+                        if (size > 0) {
+                            resolutionResults.add(ResolutionResult.of(current, i, candidate, occurrence.getPosition(), bindings.capture(), size));
+                        }
+                        bindings.undo(mark);
+                    }
+                }
+            }
         }
-    }
 
-    public static class Tokeniser {
+        /**
+         * Default depth bound, used when the search options do not set one. Clauses left out by subsumption still
+         * count, so subsumption does not tighten the bound.
+         */
+        int getMaxDepth() {
+            return compiled.getIndexedCount() + 1;
+        }
 
-        public List<Atom> tokenise(String line) {
-            List<Atom> expressions = new ArrayList<>();
-            int i = 0;
-            while (i < line.length()) {
-                Character c = line.charAt(i);
-                if (Operator.isOperator(c)) {
-                    i = parseOperator(line, expressions, i);
+        /**
+         * Checks whether a unit clause is refuted by a complementary unit fact or by the negated query
+         */
+        boolean isContradiction(Clause clause, TrailUnifier bindings) {
+            return compiled.getUnitIndex().isContradiction(clause, bindings) || queryUnits.isContradiction(clause, bindings);
+        }
+
+        /**
+         * Default resolvent length bound, used when the search options do not set one
+         */
+        int getMaxLength() {
+            return 2 * getMaxLiterals() - 1;
+        }
+
+        /**
+         * Number of literals in the longest clause, the negated query included
+         */
+        int getMaxLiterals() {
+            return Math.max(compiled.getMaxLiterals(), negatedQuery.size());
+        }
+
+        /**
+         * Default resolvent length bound, or the one set in the options
+         */
+        int getMaxLength(SearchOptions options) {
+            return options.getMaxLength() == SearchOptions.DERIVED ? getMaxLength() : options.getMaxLength();
+        }
+
+        /**
+         * Default depth bound, or the one set in the options
+         */
+        int getMaxDepth(SearchOptions options) {
+            return options.getMaxDepth() == SearchOptions.DERIVED ? getMaxDepth() : options.getMaxDepth();
+        }
+
+        static void log(Writer writer, Clause current, Clause candidate, Clause resolved) throws IOException {
+            if (Objects.nonNull(writer)) {
+                synchronized (writer) {
+                    writer.write("-----------------------------------\n");
+                    writer.write(current + " , " + candidate + " , " + resolved + "\n");
+                    writer.write("-----------------------------------\n");
                 }
-                else {
-                    i = parsePredicate(line, expressions, i, false);
+            }
+        }
+
+        /**
+         * Resolves two clauses on the literals at the given positions, which must already be unified. Besides the
+         * resolved literals only their duplicates of the same sign are dropped, a literal of the other sign is kept.
+         * Returns null if the resolvent is empty or a tautology.
+         */
+        static Clause resolve(Clause a, int position, Clause b, int candidatePosition) {
+            Predicate[] literals = new Predicate[a.size() + b.size()];
+            int length = 0;
+            for (Clause clause : new Clause[]{a, b}) {
+                Predicate resolved = clause == a ? a.get(position) : b.get(candidatePosition);
+                for (int i = 0; i < clause.size(); i++) {
+                    Predicate literal = clause.get(i);
+                    if (literal.equals(resolved) && literal.isNegated() == resolved.isNegated()) {
+                        continue;
+                    }
+                    int existing = indexOf(literals, length, literal);
+                    if (existing < 0) {
+                        literals[length++] = literal;
+                    }
+                    else if (literals[existing].isNegated() != literal.isNegated()) {
+                        return null;
+                    }
+                }
+            }
+            if (length == 0) {
+                return null;
+            }
+            return new Clause(Arrays.copyOf(literals, length));
+        }
+
+        /**
+         * Number of literals in the resolvent {@link #resolve} would build from the two clauses under the current
+         * bindings, without applying them. Returns -1 if the resolvent is empty or a tautology.
+         */
+        static int getResolventSize(Clause a, int position, Clause b, int candidatePosition, TrailUnifier bindings) {
+            int total = a.size() + b.size();
+            int size = 0;
+            for (int i = 0; i < total; i++) {
+                Predicate literal = i < a.size() ? a.get(i) : b.get(i - a.size());
+                Predicate resolved = i < a.size() ? a.get(position) : b.get(candidatePosition);
+                if (literal.isNegated() == resolved.isNegated() && bindings.isEqual(literal, resolved)) {
+                    continue;
+                }
+                boolean duplicate = false;
+                for (int j = 0; j < i && !duplicate; j++) {
+                    Predicate earlier = j < a.size() ? a.get(j) : b.get(j - a.size());
+                    if (bindings.isEqual(earlier, literal)) {
+                        if (earlier.isNegated() != literal.isNegated()) {
+                            return -1;
+                        }
+                        duplicate = true;
+                    }
+                }
+                if (!duplicate) {
+                    size++;
+                }
+            }
+            return size == 0 ? -1 : size;
+        }
+
+        private static int indexOf(Predicate[] literals, int length, Predicate literal) {
+            for (int i = 0; i < length; i++) {
+                if (literals[i].equals(literal)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * A resolvent kept as its two parent clauses plus the bindings of the resolution step. The clause itself is
+         * only built when {@link #getResolved()} is first called, so resolvents dropped by the length bound are never
+         * copied.
+         */
+        static class ResolutionResult {
+
+            private final Clause current;
+
+            private final Clause candidate;
+
+            private final int position;
+
+            private final int candidatePosition;
+
+            private final Substitution substitution;
+
+            private final int size;
+
+            private Clause resolved;
+
+            private ResolutionResult(Clause current, int position, Clause candidate, int candidatePosition,
+                                     Substitution substitution, int size, Clause resolved) {
+                this.current = current;
+                this.position = position;
+                this.candidate = candidate;
+                this.candidatePosition = candidatePosition;
+                this.substitution = substitution;
+                this.size = size;
+                this.resolved = resolved;
+            }
+
+            public static ResolutionResult of(Clause candidate, Clause resolved) {
+                return new ResolutionResult(null, -1, candidate, -1, null, resolved.size(), resolved);
+            }
+
+            public static ResolutionResult of(Clause current, int position, Clause candidate, int candidatePosition,
+                                              Substitution substitution, int size) {
+                return new ResolutionResult(current, position, candidate, candidatePosition, substitution, size, null);
+            }
+
+            public Clause getCandidate() {
+                return candidate;
+            }
+
+            /**
+             * Number of literals in the resolvent, known without building it
+             */
+            public int size() {
+                return size;
+            }
+
+            public boolean isMaterialized() {
+                return Objects.nonNull(resolved);
+            }
+
+            public Clause getResolved() {
+                if (Objects.isNull(resolved)) {
+                    resolved = resolve(substitution.apply(current), position, substitution.apply(candidate), candidatePosition);
+                }
+                return resolved;
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (Clause disjunction : getDisjunctions()) {
+                builder.append(String.format("%s\n", disjunction.toString()));
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Unit clauses indexed for contradiction checks. Ground units are kept in hash sets, one per sign, so checking a
+     * ground unit against them is a single lookup. Every unit is also filed under its symbol, sign and first argument,
+     * with units whose first argument is a variable under a shared wildcard, so a non-ground check only unifies with
+     * units that can match on the first argument.
+     */
+    public static class UnitIndex {
+
+        private static final int WILDCARD = Integer.MIN_VALUE;
+
+        private final Set<Predicate> groundPositives;
+
+        private final Set<Predicate> groundNegatives;
+
+        private final Map<Long, List<Clause>> ground;
+
+        private final Map<Long, List<Clause>> open;
+
+        private final Map<Integer, List<Clause>> bySymbol;
+
+        private int size;
+
+        public UnitIndex() {
+            this.groundPositives = new HashSet<>();
+            this.groundNegatives = new HashSet<>();
+            this.ground = new HashMap<>();
+            this.open = new HashMap<>();
+            this.bySymbol = new HashMap<>();
+            this.size = 0;
+        }
+
+        /**
+         * Adds a clause if it is a unit; other clauses are ignored
+         */
+        public void add(Clause clause) {
+            if (!clause.isUnit()) {
+                return;
+            }
+            Predicate literal = clause.get(0);
+            boolean negated = clause.isNegated(0);
+            if (isGround(literal)) {
+                (negated ? groundNegatives : groundPositives).add(literal);
+                ground.computeIfAbsent(getKey(literal, negated, getFirstArgument(literal)), key -> new ArrayList<>()).add(clause);
+            }
+            else {
+                open.computeIfAbsent(getKey(literal, negated, getFirstArgument(literal)), key -> new ArrayList<>()).add(clause);
+            }
+            bySymbol.computeIfAbsent(getRootKey(literal, negated), key -> new ArrayList<>()).add(clause);
+            size++;
+        }
+
+        public void remove(Clause clause) {
+            if (!clause.isUnit()) {
+                return;
+            }
+            Predicate literal = clause.get(0);
+            boolean negated = clause.isNegated(0);
+            if (isGround(literal)) {
+                (negated ? groundNegatives : groundPositives).remove(literal);
+                removeFrom(ground, getKey(literal, negated, getFirstArgument(literal)), clause);
+            }
+            else {
+                removeFrom(open, getKey(literal, negated, getFirstArgument(literal)), clause);
+            }
+            if (removeFrom(bySymbol, getRootKey(literal, negated), clause)) {
+                size--;
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Checks whether a unit clause is refuted by a complementary unit in the index
+         */
+        public boolean isContradiction(Clause clause, TrailUnifier bindings) {
+            if (!clause.isUnit()) {
+                return false;
+            }
+            Predicate literal = clause.get(0);
+            boolean opposite = !clause.isNegated(0);
+            int first = getFirstArgument(literal);
+            if (isGround(literal)) {
+                if ((opposite ? groundNegatives : groundPositives).contains(literal)) {
+                    return true;
+                }
+                return unifiesWithAny(literal, open.get(getKey(literal, opposite, first)), bindings)
+                        || unifiesWithAny(literal, open.get(getKey(literal, opposite, WILDCARD)), bindings);
+            }
+            if (first == WILDCARD) {
+                return unifiesWithAny(literal, bySymbol.get(getRootKey(literal, opposite)), bindings);
+            }
+            return unifiesWithAny(literal, ground.get(getKey(literal, opposite, first)), bindings)
+                    || unifiesWithAny(literal, open.get(getKey(literal, opposite, first)), bindings)
+                    || unifiesWithAny(literal, open.get(getKey(literal, opposite, WILDCARD)), bindings);
+        }
+
+        /**
+         * Units of the opposite sign that may unify with the literal, judged by symbol and first argument
+         */
+        public List<Clause> getComplementary(Predicate literal, boolean negated) {
+            boolean opposite = !negated;
+            int first = getFirstArgument(literal);
+            if (first == WILDCARD) {
+                return Utils.emptyIfNull(bySymbol.get(getRootKey(literal, opposite)));
+            }
+            List<Clause> units = new ArrayList<>(Utils.emptyIfNull(ground.get(getKey(literal, opposite, first))));
+            units.addAll(Utils.emptyIfNull(open.get(getKey(literal, opposite, first))));
+            units.addAll(Utils.emptyIfNull(open.get(getKey(literal, opposite, WILDCARD))));
+            return units;
+        }
+
+        private boolean unifiesWithAny(Predicate literal, List<Clause> units, TrailUnifier bindings) {
+            for (Clause unit : Utils.emptyIfNull(units)) {
+                int mark = bindings.mark();
+                boolean unified = bindings.unify(literal, unit.get(0)) == TrailUnifier.UNIFIED;
+                bindings.undo(mark);
+                if (unified) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static <K> boolean removeFrom(Map<K, List<Clause>> map, K key, Clause clause) {
+            List<Clause> clauses = map.get(key);
+            if (Objects.isNull(clauses) || !clauses.removeIf(other -> other == clause)) {
+                return false;
+            }
+            if (clauses.isEmpty()) {
+                map.remove(key);
+            }
+            return true;
+        }
+
+        static boolean isGround(Predicate literal) {
+            for (int i = 0; i < literal.getArity(); i++) {
+                if (literal.getArgumentCode(i) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Code of the first argument if it is a constant, otherwise the wildcard
+         */
+        private static int getFirstArgument(Predicate literal) {
+            if (literal.getArity() == 0 || literal.getArgumentCode(0) < 0) {
+                return WILDCARD;
+            }
+            return literal.getArgumentCode(0);
+        }
+
+        private static int getRootKey(Predicate literal, boolean negated) {
+            return (literal.getSymbol() << 1) | (negated ? 1 : 0);
+        }
+
+        private static long getKey(Predicate literal, boolean negated, int first) {
+            return ((long) getRootKey(literal, negated) << 32) | (first & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * Clauses indexed by every one of their literals in a discrimination tree for unification-based retrieval
+     */
+    public static class ClauseIndex {
+
+        private final DiscriminationTree tree;
+
+        public ClauseIndex() {
+            this.tree = new DiscriminationTree();
+        }
+
+        public void add(Clause clause) {
+            for (int i = 0; i < clause.size(); i++) {
+                tree.add(clause, i);
+            }
+        }
+
+        public void remove(Clause clause) {
+            for (int i = 0; i < clause.size(); i++) {
+                tree.remove(clause, i);
+            }
+        }
+
+        /**
+         * Returns the literals of opposite sign whose arguments do not clash with the predicate's constants
+         */
+        public List<DiscriminationTree.Occurrence> getUnifiableCandidates(Predicate predicate) {
+            return tree.getUnifiable(predicate, !predicate.isNegated());
+        }
+    }
+
+    /**
+     * Discrimination tree over literals. Each literal is filed under the path formed by its symbol and sign followed
+     * by its arguments, with every variable collapsed into a single wildcard edge. Retrieval walks the query down the
+     * tree: a constant follows its own edge and the wildcard edge, a variable follows every edge. Only literals whose
+     * constants are compatible with the query come back; repeated variables are left to the unifier.
+     */
+    public static class DiscriminationTree {
+
+        private final Map<Integer, Node> roots;
+
+        public DiscriminationTree() {
+            this.roots = new HashMap<>();
+        }
+
+        public void add(Clause clause, int position) {
+            Predicate literal = clause.get(position);
+            Node node = roots.computeIfAbsent(getRootKey(literal.getSymbol(), clause.isNegated(position)), key -> new Node());
+            for (int i = 0; i < literal.getArity(); i++) {
+                node = node.child(literal.getArgumentCode(i));
+            }
+            node.getOccurrences().add(new Occurrence(clause, position));
+        }
+
+        public void remove(Clause clause, int position) {
+            Predicate literal = clause.get(position);
+            Node node = roots.get(getRootKey(literal.getSymbol(), clause.isNegated(position)));
+            for (int i = 0; i < literal.getArity() && Objects.nonNull(node); i++) {
+                node = node.find(literal.getArgumentCode(i));
+            }
+            if (Objects.nonNull(node)) {
+                node.getOccurrences().removeIf(occurrence -> occurrence.getClause().equals(clause) && occurrence.getPosition() == position);
+            }
+        }
+
+        /**
+         * Returns the stored literals with the given sign that may unify with the query
+         */
+        public List<Occurrence> getUnifiable(Predicate query, boolean negated) {
+            Node root = roots.get(getRootKey(query.getSymbol(), negated));
+            if (Objects.isNull(root)) {
+                return Collections.emptyList();
+            }
+            List<Occurrence> occurrences = new ArrayList<>();
+            collect(root, query, 0, occurrences);
+            return occurrences;
+        }
+
+        private void collect(Node node, Predicate query, int position, List<Occurrence> occurrences) {
+            if (position == query.getArity()) {
+                occurrences.addAll(node.getOccurrences());
+                return;
+            }
+            int code = query.getArgumentCode(position);
+            if (code < 0) {
+                for (Node child : node.getConstants().values()) {
+                    collect(child, query, position + 1, occurrences);
+                }
+            }
+            else {
+                Node child = node.getConstants().get(code);
+                if (Objects.nonNull(child)) {
+                    collect(child, query, position + 1, occurrences);
+                }
+            }
+            if (Objects.nonNull(node.getVariable())) {
+                collect(node.getVariable(), query, position + 1, occurrences);
+            }
+        }
+
+        private static int getRootKey(int symbol, boolean negated) {
+            return (symbol << 1) | (negated ? 1 : 0);
+        }
+
+        /**
+         * A literal stored in the tree, identified by its clause and its position in that clause
+         */
+        public static class Occurrence {
+
+            private final Clause clause;
+
+            private final int position;
+
+            private Occurrence(Clause clause, int position) {
+                this.clause = clause;
+                this.position = position;
+            }
+
+            public Clause getClause() {
+                return clause;
+            }
+
+            public int getPosition() {
+                return position;
+            }
+
+            public Predicate getLiteral() {
+                return clause.get(position);
+            }
+        }
+
+        private static class Node {
+
+            private final Map<Integer, Node> constants;
+
+            private final List<Occurrence> occurrences;
+
+            private Node variable;
+
+            private Node() {
+                this.constants = new HashMap<>();
+                this.occurrences = new ArrayList<>();
+            }
+
+            private Node child(int code) {
+                if (code < 0) {
+                    if (Objects.isNull(variable)) {
+                        variable = new Node();
+                    }
+                    return variable;
+                }
+                return constants.computeIfAbsent(code, key -> new Node());
+            }
+
+            private Node find(int code) {
+                return code < 0 ? variable : constants.get(code);
+            }
+
+            public Map<Integer, Node> getConstants() {
+                return constants;
+            }
+
+            public List<Occurrence> getOccurrences() {
+                return occurrences;
+            }
+
+            public Node getVariable() {
+                return variable;
+            }
+        }
+    }
+
+    /**
+     * Clause store supporting forward ("is this clause subsumed by a stored one") and backward ("which stored clauses
+     * does this clause subsume") subsumption. A clause C subsumes D if some substitution maps the literals of C onto
+     * distinct literals of D, so C can never have more occurrences of any feature than D. The features are the symbol
+     * and sign of every literal and every constant occurrence, and candidates that fail the feature comparison are
+     * pruned before any matching is attempted. For forward lookups each clause is filed under the feature that had the
+     * fewest clauses when it was added, which keeps buckets small for both predicate-heavy and constant-heavy stores.
+     */
+    public static class SubsumptionIndex {
+
+        private final Map<Clause, FeatureVector> vectors;
+
+        /* Forward lookup: every clause under one of its features */
+        private final Map<Integer, Set<Clause>> byKey;
+
+        /* Backward lookup: every clause under all of its features */
+        private final Map<Integer, Set<Clause>> byFeature;
+
+        public SubsumptionIndex() {
+            this.vectors = new HashMap<>();
+            this.byKey = new HashMap<>();
+            this.byFeature = new HashMap<>();
+        }
+
+        public void add(Clause clause) {
+            if (vectors.containsKey(clause)) {
+                return;
+            }
+            FeatureVector vector = FeatureVector.of(clause);
+            int smallest = Integer.MAX_VALUE;
+            for (int feature : vector.getFeatures()) {
+                int size = Utils.emptyIfNull(byFeature.get(feature)).size();
+                if (size < smallest) {
+                    smallest = size;
+                    vector.setKey(feature);
+                }
+            }
+            vectors.put(clause, vector);
+            byKey.computeIfAbsent(vector.getKey(), key -> new LinkedHashSet<>()).add(clause);
+            for (int feature : vector.getFeatures()) {
+                byFeature.computeIfAbsent(feature, key -> new LinkedHashSet<>()).add(clause);
+            }
+        }
+
+        public void remove(Clause clause) {
+            FeatureVector vector = vectors.remove(clause);
+            if (Objects.isNull(vector)) {
+                return;
+            }
+            byKey.get(vector.getKey()).remove(clause);
+            for (int feature : vector.getFeatures()) {
+                byFeature.get(feature).remove(clause);
+            }
+        }
+
+        public int size() {
+            return vectors.size();
+        }
+
+        /**
+         * Forward subsumption: returns true if a stored clause subsumes the given one
+         */
+        public boolean isSubsumed(Clause clause, TrailUnifier bindings) {
+            return Objects.nonNull(getSubsumer(clause, bindings));
+        }
+
+        /**
+         * Forward subsumption: returns a stored clause that subsumes the given one, or null if there is none
+         */
+        public Clause getSubsumer(Clause clause, TrailUnifier bindings) {
+            FeatureVector vector = FeatureVector.of(clause);
+            for (int feature : vector.getFeatures()) {
+                for (Clause candidate : Utils.emptyIfNull(byKey.get(feature))) {
+                    if (vectors.get(candidate).isCoveredBy(vector) && subsumes(candidate, clause, bindings)) {
+                        return candidate;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Backward subsumption: returns the stored clauses that the given clause subsumes
+         */
+        public List<Clause> getSubsumed(Clause clause, TrailUnifier bindings) {
+            FeatureVector vector = FeatureVector.of(clause);
+            Set<Clause> smallest = null;
+            for (int feature : vector.getFeatures()) {
+                Set<Clause> clauses = byFeature.get(feature);
+                if (Objects.isNull(clauses)) {
+                    return Collections.emptyList();
+                }
+                if (Objects.isNull(smallest) || clauses.size() < smallest.size()) {
+                    smallest = clauses;
+                }
+            }
+            List<Clause> subsumed = new ArrayList<>();
+            for (Clause candidate : Utils.emptyIfNull(smallest)) {
+                if (vector.isCoveredBy(vectors.get(candidate)) && subsumes(clause, candidate, bindings)) {
+                    subsumed.add(candidate);
+                }
+            }
+            return subsumed;
+        }
+
+        /**
+         * Returns true if some substitution of the variables of c maps its literals onto distinct literals of d
+         */
+        public static boolean subsumes(Clause c, Clause d, TrailUnifier bindings) {
+            if (c.size() > d.size()) {
+                return false;
+            }
+            int mark = bindings.mark();
+            boolean subsumes = match(c, d, 0, new boolean[d.size()], bindings);
+            bindings.undo(mark);
+            return subsumes;
+        }
+
+        private static boolean match(Clause c, Clause d, int position, boolean[] used, TrailUnifier bindings) {
+            if (position == c.size()) {
+                return true;
+            }
+            for (int j = 0; j < d.size(); j++) {
+                if (used[j] || c.isNegated(position) != d.isNegated(j)) {
+                    continue;
+                }
+                int mark = bindings.mark();
+                if (bindings.match(c.get(position), d.get(j)) == TrailUnifier.UNIFIED) {
+                    used[j] = true;
+                    if (match(c, d, position + 1, used, bindings)) {
+                        return true;
+                    }
+                    used[j] = false;
+                    bindings.undo(mark);
+                }
+            }
+            return false;
+        }
+
+        private static class FeatureVector {
+
+            private static final int LITERAL = 0;
+
+            private static final int NEGATED_LITERAL = 1;
+
+            private static final int CONSTANT = 2;
+
+            private final int[] features;
+
+            private final int[] counts;
+
+            private int key;
+
+            private FeatureVector(int[] features, int[] counts) {
+                this.features = features;
+                this.counts = counts;
+                this.key = features[0];
+            }
+
+            public static FeatureVector of(Clause clause) {
+                int total = 0;
+                for (int i = 0; i < clause.size(); i++) {
+                    total += 1 + clause.get(i).getArity();
+                }
+                int[] occurrences = new int[total];
+                int length = 0;
+                for (int i = 0; i < clause.size(); i++) {
+                    Predicate literal = clause.get(i);
+                    occurrences[length++] = (literal.getSymbol() << 2) | (clause.isNegated(i) ? NEGATED_LITERAL : LITERAL);
+                    for (int j = 0; j < literal.getArity(); j++) {
+                        int code = literal.getArgumentCode(j);
+                        if (code >= 0) {
+                            occurrences[length++] = (code << 2) | CONSTANT;
+                        }
+                    }
+                }
+                Arrays.sort(occurrences, 0, length);
+                int[] features = new int[length];
+                int[] counts = new int[length];
+                int distinct = 0;
+                for (int i = 0; i < length; i++) {
+                    if (distinct > 0 && features[distinct - 1] == occurrences[i]) {
+                        counts[distinct - 1]++;
+                    }
+                    else {
+                        features[distinct] = occurrences[i];
+                        counts[distinct++] = 1;
+                    }
+                }
+                return new FeatureVector(Arrays.copyOf(features, distinct), Arrays.copyOf(counts, distinct));
+            }
+
+            public int[] getFeatures() {
+                return features;
+            }
+
+            public int getKey() {
+                return key;
+            }
+
+            public void setKey(int key) {
+                this.key = key;
+            }
+
+            /**
+             * Returns true if the other vector has at least as many occurrences of every feature
+             */
+            public boolean isCoveredBy(FeatureVector other) {
+                int j = 0;
+                for (int i = 0; i < features.length; i++) {
+                    while (j < other.features.length && other.features[j] < features[i]) {
+                        j++;
+                    }
+                    if (j == other.features.length || other.features[j] != features[i] || other.counts[j] < counts[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    public enum SearchStrategy {
+
+        DEPTH_FIRST,
+        BREADTH_FIRST,
+        SATURATION,
+        PARALLEL,
+        PORTFOLIO,
+        ITERATIVE_DEEPENING
+    }
+
+    public enum SearchOutcome {
+
+        PROVED,
+        EXHAUSTED,
+        TIMED_OUT,
+        CANCELLED;
+
+        /**
+         * A proof, or a search space explored to the end within the configured bounds
+         */
+        public boolean isDefinitive() {
+            return this == PROVED || this == EXHAUSTED;
+        }
+
+        public boolean getAnswer() {
+            switch (this) {
+                case PROVED:
+                    return true;
+                case TIMED_OUT:
+                    return SearchOptions.DEFAULT_ANSWER;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    public interface ProofSearch {
+
+        /**
+         * Searches for a refutation of the goal clause and reports how the search ended
+         */
+        SearchOutcome run(Clause goal) throws IOException;
+
+        /**
+         * Asks a running search to stop; it then ends with {@link SearchOutcome#CANCELLED}. Safe to call from any thread.
+         */
+        void cancel();
+
+        /**
+         * Whether the last run discarded a clause because of the depth or length bound, in which case an exhausted
+         * search is only exhaustive up to those bounds
+         */
+        default boolean isBoundReached() {
+            return false;
+        }
+
+        /**
+         * Searches for a refutation of the goal clause, returning true if one is found
+         */
+        default boolean search(Clause goal) throws IOException {
+            return run(goal).getAnswer();
+        }
+    }
+
+    /**
+     * Limits and policies for a single proof search. Instances are immutable, every {@code with} method returns a copy.
+     */
+    public static class SearchOptions {
+
+        /**
+         * Marks a bound that is derived from the knowledge base instead of being set explicitly
+         */
+        public static final int DERIVED = -1;
+
+        public static final long DEFAULT_TIME_LIMIT = 1140;
+
+        public static final boolean DEFAULT_ANSWER = true;
+
+        public static final int DEFAULT_PICK_GIVEN_RATIO = 5;
+
+        public static final int DEFAULT_SPLIT_DEPTH = 3;
+
+        public static final int DEFAULT_DEEPENING_STEP = 2;
+
+        public static final int DEFAULT_VISITED_CAPACITY = 1 << 22;
+
+        public static final double DEFAULT_FALSE_POSITIVE_RATE = 1e-6;
+
+        public static final int DEFAULT_PROPAGATION_ROUNDS = 64;
+
+        public static final int DEFAULT_PROPAGATION_UNITS = 1 << 16;
+
+        private SearchStrategy strategy;
+
+        private int maxDepth;
+
+        private int maxLength;
+
+        private long timeLimit;
+
+        private int pickGivenRatio;
+
+        private boolean subsumption;
+
+        private int parallelism;
+
+        private int splitDepth;
+
+        private List<SearchOptions> portfolio;
+
+        private int deepeningStep;
+
+        private VisitedStoreType visitedStore;
+
+        private int visitedCapacity;
+
+        private double falsePositiveRate;
+
+        private boolean lemmas;
+
+        private boolean parallelLoading;
+
+        private boolean unitPropagation;
+
+        private int propagationRounds;
+
+        private int propagationUnits;
+
+        private SearchOptions() {
+            this.strategy = SearchStrategy.DEPTH_FIRST;
+            this.maxDepth = DERIVED;
+            this.maxLength = DERIVED;
+            this.timeLimit = DEFAULT_TIME_LIMIT;
+            this.pickGivenRatio = DEFAULT_PICK_GIVEN_RATIO;
+            this.subsumption = true;
+            this.parallelism = Runtime.getRuntime().availableProcessors();
+            this.splitDepth = DEFAULT_SPLIT_DEPTH;
+            this.portfolio = Collections.emptyList();
+            this.deepeningStep = DEFAULT_DEEPENING_STEP;
+            this.visitedStore = VisitedStoreType.FINGERPRINT;
+            this.visitedCapacity = DEFAULT_VISITED_CAPACITY;
+            this.falsePositiveRate = DEFAULT_FALSE_POSITIVE_RATE;
+            this.lemmas = false;
+            this.parallelLoading = false;
+            this.unitPropagation = false;
+            this.propagationRounds = DEFAULT_PROPAGATION_ROUNDS;
+            this.propagationUnits = DEFAULT_PROPAGATION_UNITS;
+        }
+
+        private SearchOptions(SearchOptions other) {
+            this.strategy = other.strategy;
+            this.maxDepth = other.maxDepth;
+            this.maxLength = other.maxLength;
+            this.timeLimit = other.timeLimit;
+            this.pickGivenRatio = other.pickGivenRatio;
+            this.subsumption = other.subsumption;
+            this.parallelism = other.parallelism;
+            this.splitDepth = other.splitDepth;
+            this.portfolio = other.portfolio;
+            this.deepeningStep = other.deepeningStep;
+            this.visitedStore = other.visitedStore;
+            this.visitedCapacity = other.visitedCapacity;
+            this.falsePositiveRate = other.falsePositiveRate;
+            this.lemmas = other.lemmas;
+            this.parallelLoading = other.parallelLoading;
+            this.unitPropagation = other.unitPropagation;
+            this.propagationRounds = other.propagationRounds;
+            this.propagationUnits = other.propagationUnits;
+        }
+
+        public static SearchOptions defaults() {
+            return new SearchOptions();
+        }
+
+        public SearchOptions withStrategy(SearchStrategy strategy) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.strategy = strategy;
+            return copy;
+        }
+
+        /**
+         * Maximum number of resolution steps along a single branch, or {@link #DERIVED} for the size of the knowledge base
+         */
+        public SearchOptions withMaxDepth(int maxDepth) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.maxDepth = maxDepth;
+            return copy;
+        }
+
+        /**
+         * Maximum number of literals in a resolvent, or {@link #DERIVED} for twice the longest clause in the knowledge base
+         */
+        public SearchOptions withMaxLength(int maxLength) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.maxLength = maxLength;
+            return copy;
+        }
+
+        /**
+         * Time limit in seconds, after which the search gives up and answers {@link #DEFAULT_ANSWER}
+         */
+        public SearchOptions withTimeLimit(long timeLimit) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.timeLimit = timeLimit;
+            return copy;
+        }
+
+        /**
+         * Saturation only: every n-th given clause is the oldest passive clause instead of the lightest one
+         */
+        public SearchOptions withPickGivenRatio(int pickGivenRatio) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.pickGivenRatio = pickGivenRatio;
+            return copy;
+        }
+
+        /**
+         * Whether the search discards clauses subsumed by clauses it has already kept
+         */
+        public SearchOptions withSubsumption(boolean subsumption) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.subsumption = subsumption;
+            return copy;
+        }
+
+        /**
+         * Parallel only: number of worker threads
+         */
+        public SearchOptions withParallelism(int parallelism) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.parallelism = parallelism;
+            return copy;
+        }
+
+        /**
+         * Parallel only: depth up to which every branch is forked as its own task. Below it a branch is searched
+         * depth-first on the thread that reached it.
+         */
+        public SearchOptions withSplitDepth(int splitDepth) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.splitDepth = splitDepth;
+            return copy;
+        }
+
+        /**
+         * Portfolio only: the configurations raced against each other. When empty, depth-first, breadth-first and
+         * saturation run with the bounds of these options.
+         */
+        public SearchOptions withPortfolio(List<SearchOptions> portfolio) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.portfolio = new ArrayList<>(portfolio);
+            return copy;
+        }
+
+        /**
+         * Iterative deepening only: how much the depth bound grows between iterations
+         */
+        public SearchOptions withDeepeningStep(int deepeningStep) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.deepeningStep = deepeningStep;
+            return copy;
+        }
+
+        /**
+         * Kind of store searches use to remember visited clauses, see {@link VisitedStore}
+         */
+        public SearchOptions withVisitedStore(VisitedStoreType visitedStore) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.visitedStore = visitedStore;
+            return copy;
+        }
+
+        /**
+         * Bounded and Bloom stores only: the number of clauses the store is sized for
+         */
+        public SearchOptions withVisitedCapacity(int visitedCapacity) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.visitedCapacity = visitedCapacity;
+            return copy;
+        }
+
+        /**
+         * Bloom store only: the false-positive rate wanted at full capacity
+         */
+        public SearchOptions withFalsePositiveRate(double falsePositiveRate) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.falsePositiveRate = falsePositiveRate;
+            return copy;
+        }
+
+        /**
+         * Depth-first searches only: whether to consult and fill the lemma cache of the compiled knowledge base
+         */
+        public SearchOptions withLemmas(boolean lemmas) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.lemmas = lemmas;
+            return copy;
+        }
+
+        /**
+         * Whether an input file is compiled on up to {@link #getParallelism} threads instead of fact by fact as it is
+         * read, see {@link CompiledKnowledgeBase#load(String, List, ExpressionParser, AlgebraHandler, int)}
+         */
+        public SearchOptions withParallelLoading(boolean parallelLoading) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.parallelLoading = parallelLoading;
+            return copy;
+        }
+
+        /**
+         * Whether the knowledge base is simplified by unit propagation once it is loaded, see
+         * {@link CompiledKnowledgeBase#propagateUnits}
+         */
+        public SearchOptions withUnitPropagation(boolean unitPropagation) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.unitPropagation = unitPropagation;
+            return copy;
+        }
+
+        /**
+         * Unit propagation only: maximum number of passes over the clauses
+         */
+        public SearchOptions withPropagationRounds(int propagationRounds) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.propagationRounds = propagationRounds;
+            return copy;
+        }
+
+        /**
+         * Unit propagation only: maximum number of units derived before propagation stops
+         */
+        public SearchOptions withPropagationUnits(int propagationUnits) {
+            SearchOptions copy = new SearchOptions(this);
+            copy.propagationUnits = propagationUnits;
+            return copy;
+        }
+
+        public SearchStrategy getStrategy() {
+            return strategy;
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public int getMaxLength() {
+            return maxLength;
+        }
+
+        public long getTimeLimit() {
+            return timeLimit;
+        }
+
+        public int getPickGivenRatio() {
+            return pickGivenRatio;
+        }
+
+        public boolean isSubsumption() {
+            return subsumption;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public int getSplitDepth() {
+            return splitDepth;
+        }
+
+        public List<SearchOptions> getPortfolio() {
+            return Collections.unmodifiableList(portfolio);
+        }
+
+        public int getDeepeningStep() {
+            return deepeningStep;
+        }
+
+        public VisitedStoreType getVisitedStore() {
+            return visitedStore;
+        }
+
+        public int getVisitedCapacity() {
+            return visitedCapacity;
+        }
+
+        public double getFalsePositiveRate() {
+            return falsePositiveRate;
+        }
+
+        public boolean isLemmas() {
+            return lemmas;
+        }
+
+        public boolean isParallelLoading() {
+            return parallelLoading;
+        }
+
+        public boolean isUnitPropagation() {
+            return unitPropagation;
+        }
+
+        public int getPropagationRounds() {
+            return propagationRounds;
+        }
+
+        public int getPropagationUnits() {
+            return propagationUnits;
+        }
+    }
+
+    /**
+     * Linear resolution driven by an explicit stack of frames instead of recursion, so the depth of a proof is bounded
+     * only by the search options and never by the thread stack. All search state lives in the instance.
+     */
+    public static class DepthFirstSearch implements ProofSearch {
+
+        private final KnowledgeBase base;
+
+        private final Writer writer;
+
+        private final TrailUnifier bindings;
+
+        private final VisitedStore visited;
+
+        private final SubsumptionIndex expanded;
+
+        private final boolean subsumption;
+
+        private final Deque<Frame> stack;
+
+        private final int maxDepth;
+
+        private final int maxLength;
+
+        private final long timeLimit;
+
+        private final BooleanSupplier cancelled;
+
+        private final Map<Clause, List<KnowledgeBase.ResolutionResult>> resolventCache;
+
+        private final LemmaCache lemmas;
+
+        private volatile boolean stopped;
+
+        private boolean boundReached;
+
+        private boolean proofUsesQuery;
+
+        private long startTime;
+
+        public DepthFirstSearch(KnowledgeBase base, SearchOptions options, Writer writer) {
+            this(base, options, writer, new TrailUnifier(base.getSymbols()), VisitedStore.of(options, false), () -> false, null);
+        }
+
+        /**
+         * Creates a search that shares its visited set with other searches and stops as soon as the cancellation check
+         * returns true. If a resolvent cache is given, expansions are looked up there first and stored for later
+         * searches.
+         */
+        DepthFirstSearch(KnowledgeBase base, SearchOptions options, Writer writer, TrailUnifier bindings, VisitedStore visited,
+                         BooleanSupplier cancelled, Map<Clause, List<KnowledgeBase.ResolutionResult>> resolventCache) {
+            this.base = base;
+            this.writer = writer;
+            this.bindings = bindings;
+            this.visited = visited;
+            this.cancelled = cancelled;
+            this.resolventCache = resolventCache;
+            this.lemmas = options.isLemmas() ? base.getCompiled().getLemmaCache() : null;
+            this.expanded = new SubsumptionIndex();
+            this.subsumption = options.isSubsumption();
+            this.stack = new ArrayDeque<>();
+            this.maxDepth = base.getMaxDepth(options);
+            this.maxLength = base.getMaxLength(options);
+            this.timeLimit = options.getTimeLimit();
+        }
+
+        @Override
+        public SearchOutcome run(Clause goal) throws IOException {
+            return run(goal, 0);
+        }
+
+        @Override
+        public void cancel() {
+            this.stopped = true;
+        }
+
+        /**
+         * Searches from a clause that was derived at the given depth
+         */
+        public SearchOutcome run(Clause goal, int depth) throws IOException {
+            this.startTime = System.currentTimeMillis();
+            this.stack.clear();
+            this.boundReached = false;
+            if (timeLimitElapsed()) {
+                return SearchOutcome.TIMED_OUT;
+            }
+            if (enter(goal, depth, false)) {
+                return SearchOutcome.PROVED;
+            }
+            while (!stack.isEmpty()) {
+                if (stopped || cancelled.getAsBoolean()) {
+                    return SearchOutcome.CANCELLED;
+                }
+                if (timeLimitElapsed()) {
+                    return SearchOutcome.TIMED_OUT;
+                }
+                Frame frame = stack.peek();
+                if (!frame.getCandidates().hasNext()) {
+                    stack.pop();
+                    recordFailure(frame);
+                    continue;
+                }
+                KnowledgeBase.ResolutionResult result = frame.getCandidates().next();
+                if (result.size() > maxLength) {
+                    boundReached = true;
+                    continue;
+                }
+                KnowledgeBase.log(writer, frame.getClause(), result.getCandidate(), result.getResolved());
+                boolean viaQuery = result.getCandidate() == base.getNegatedQuery();
+                if (enter(result.getResolved(), frame.getDepth() + 1, viaQuery)) {
+                    recordProof(proofUsesQuery || viaQuery);
+                    return SearchOutcome.PROVED;
+                }
+            }
+            return SearchOutcome.EXHAUSTED;
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public int getMaxLength() {
+            return maxLength;
+        }
+
+        @Override
+        public boolean isBoundReached() {
+            return boundReached;
+        }
+
+        /**
+         * Store of the clauses visited so far, which reports its occupancy and footprint
+         */
+        public VisitedStore getVisited() {
+            return visited;
+        }
+
+        /**
+         * Checks a newly derived clause and pushes a frame for it if it needs expanding. Returns true on a contradiction.
+         * A clause pruned because it was seen before marks its parent as incomplete, so the parent's failure is not
+         * recorded as a lemma.
+         */
+        private boolean enter(Clause clause, int depth, boolean viaQuery) {
+            if (depth > maxDepth) {
+                boundReached = true;
+                return false;
+            }
+            if (base.isContradiction(clause, bindings)) {
+                proofUsesQuery = !base.getCompiled().getUnitIndex().isContradiction(clause, bindings);
+                return true;
+            }
+            Clause query = base.getNegatedQuery();
+            if (Objects.nonNull(lemmas)) {
+                if (lemmas.isProved(query, clause)) {
+                    /* Counting the lemma as query dependent keeps every lemma recorded from it sound */
+                    proofUsesQuery = true;
+                    return true;
+                }
+                if (lemmas.isFailed(query, clause, maxDepth - depth, maxLength)) {
+                    return false;
+                }
+            }
+            if (!visited.add(clause) || (subsumption && expanded.isSubsumed(clause, bindings))) {
+                if (!stack.isEmpty()) {
+                    stack.peek().setIncomplete();
+                }
+                return false;
+            }
+            if (subsumption) {
+                expanded.add(clause);
+            }
+            stack.push(new Frame(clause, getResolvents(clause).iterator(), depth, viaQuery));
+            return false;
+        }
+
+        /**
+         * Records every clause on the current path as proved. Walking up from the contradiction, a clause's proof uses
+         * the negated query if any step below it did.
+         */
+        private void recordProof(boolean usesQuery) {
+            if (Objects.isNull(lemmas)) {
+                return;
+            }
+            for (Frame frame : stack) {
+                lemmas.recordProved(usesQuery ? base.getNegatedQuery() : null, frame.getClause());
+                usesQuery |= frame.isViaQuery();
+            }
+        }
+
+        /**
+         * Records a fully explored clause as failed within its remaining depth budget, unless pruning by the visited
+         * set or subsumption made the exploration incomplete; incompleteness carries over to the parent
+         */
+        private void recordFailure(Frame frame) {
+            if (Objects.isNull(lemmas)) {
+                return;
+            }
+            if (frame.isIncomplete()) {
+                if (!stack.isEmpty()) {
+                    stack.peek().setIncomplete();
+                }
+                return;
+            }
+            lemmas.recordFailed(base.getNegatedQuery(), frame.getClause(), maxDepth - frame.getDepth(), maxLength);
+        }
+
+        private List<KnowledgeBase.ResolutionResult> getResolvents(Clause clause) {
+            if (Objects.isNull(resolventCache)) {
+                return base.getResolvents(clause, bindings);
+            }
+            List<KnowledgeBase.ResolutionResult> resolvents = resolventCache.get(clause);
+            if (Objects.isNull(resolvents)) {
+                resolvents = base.getResolvents(clause, bindings);
+                resolventCache.put(clause, resolvents);
+            }
+            return resolvents;
+        }
+
+        private boolean timeLimitElapsed() {
+            long elapsed = (System.currentTimeMillis() - startTime) / 1000;
+            return elapsed > timeLimit;
+        }
+
+        private static class Frame {
+
+            private final Clause clause;
+
+            private final Iterator<KnowledgeBase.ResolutionResult> candidates;
+
+            private final int depth;
+
+            private final boolean viaQuery;
+
+            private boolean incomplete;
+
+            private Frame(Clause clause, Iterator<KnowledgeBase.ResolutionResult> candidates, int depth, boolean viaQuery) {
+                this.clause = clause;
+                this.candidates = candidates;
+                this.depth = depth;
+                this.viaQuery = viaQuery;
+                this.incomplete = false;
+            }
+
+            public Clause getClause() {
+                return clause;
+            }
+
+            public Iterator<KnowledgeBase.ResolutionResult> getCandidates() {
+                return candidates;
+            }
+
+            public int getDepth() {
+                return depth;
+            }
+
+            /**
+             * Whether this clause was derived using the negated query as the side clause
+             */
+            public boolean isViaQuery() {
+                return viaQuery;
+            }
+
+            public boolean isIncomplete() {
+                return incomplete;
+            }
+
+            public void setIncomplete() {
+                this.incomplete = true;
+            }
+        }
+    }
+
+    /**
+     * Linear resolution explored level by level, so the shortest refutation is found first
+     */
+    public static class BreadthFirstSearch implements ProofSearch {
+
+        private final KnowledgeBase base;
+
+        private final Writer writer;
+
+        private final TrailUnifier bindings;
+
+        private final VisitedStore visited;
+
+        private final Deque<Node> queue;
+
+        private final int maxDepth;
+
+        private final int maxLength;
+
+        private final long timeLimit;
+
+        private volatile boolean stopped;
+
+        private boolean boundReached;
+
+        public BreadthFirstSearch(KnowledgeBase base, SearchOptions options, Writer writer) {
+            this.base = base;
+            this.writer = writer;
+            this.bindings = new TrailUnifier(base.getSymbols());
+            this.visited = VisitedStore.of(options, false);
+            this.queue = new ArrayDeque<>();
+            this.maxDepth = base.getMaxDepth(options);
+            this.maxLength = base.getMaxLength(options);
+            this.timeLimit = options.getTimeLimit();
+        }
+
+        @Override
+        public SearchOutcome run(Clause goal) throws IOException {
+            long startTime = System.currentTimeMillis();
+            queue.clear();
+            boundReached = false;
+            queue.add(new Node(KnowledgeBase.ResolutionResult.of(null, goal), 0));
+            while (!queue.isEmpty()) {
+                if (stopped) {
+                    return SearchOutcome.CANCELLED;
+                }
+                if ((System.currentTimeMillis() - startTime) / 1000 > timeLimit) {
+                    return SearchOutcome.TIMED_OUT;
+                }
+                Node node = queue.poll();
+                Clause clause = node.getClause();
+                if (base.isContradiction(clause, bindings)) {
+                    return SearchOutcome.PROVED;
+                }
+                if (node.getDepth() >= maxDepth) {
+                    boundReached = true;
+                    continue;
+                }
+                if (!visited.add(clause)) {
+                    continue;
+                }
+                for (KnowledgeBase.ResolutionResult result : base.getResolvents(clause, bindings)) {
+                    if (result.size() > maxLength) {
+                        boundReached = true;
+                        continue;
+                    }
+                    /* The log needs the resolvent, so only a logged search builds it before it is dequeued */
+                    if (Objects.nonNull(writer)) {
+                        KnowledgeBase.log(writer, clause, result.getCandidate(), result.getResolved());
+                    }
+                    queue.add(new Node(result, node.getDepth() + 1));
+                }
+            }
+            return SearchOutcome.EXHAUSTED;
+        }
+
+        @Override
+        public void cancel() {
+            this.stopped = true;
+        }
+
+        @Override
+        public boolean isBoundReached() {
+            return boundReached;
+        }
+
+        /**
+         * Store of the clauses visited so far, which reports its occupancy and footprint
+         */
+        public VisitedStore getVisited() {
+            return visited;
+        }
+
+        /**
+         * A queued resolvent, which is only built once the node is dequeued, so the levels still waiting in the queue
+         * hold parents and bindings instead of copied clauses
+         */
+        private static class Node {
+
+            private final KnowledgeBase.ResolutionResult result;
+
+            private final int depth;
+
+            private Node(KnowledgeBase.ResolutionResult result, int depth) {
+                this.result = result;
+                this.depth = depth;
+            }
+
+            public Clause getClause() {
+                return result.getResolved();
+            }
+
+            public int getDepth() {
+                return depth;
+            }
+        }
+    }
+
+    /**
+     * Given-clause saturation loop with the negated query as the set of support. The negated query seeds the passive
+     * set; each iteration selects a given clause (the lightest one, or every few picks the oldest one), moves it to
+     * the active set and adds its resolvents with the active clauses back to the passive set. The knowledge base index
+     * serves as the initial active set, so only clauses derived during the search are indexed here.
+     */
+    public static class SaturationSearch implements ProofSearch {
+
+        private final KnowledgeBase base;
+
+        private final Writer writer;
+
+        private final TrailUnifier bindings;
+
+        private final ClauseIndex active;
+
+        private final SubsumptionIndex activeSubsumption;
+
+        private final UnitIndex activeUnits;
+
+        private final boolean subsumption;
+
+        private final PriorityQueue<PassiveClause> lightest;
+
+        private final Deque<PassiveClause> oldest;
+
+        private final VisitedStore seen;
+
+        private final int maxLength;
+
+        private final long timeLimit;
+
+        private final int pickGivenRatio;
+
+        private long age;
+
+        private long picks;
+
+        private long startTime;
+
+        private volatile boolean stopped;
+
+        private boolean boundReached;
+
+        public SaturationSearch(KnowledgeBase base, SearchOptions options, Writer writer) {
+            this.base = base;
+            this.writer = writer;
+            this.bindings = new TrailUnifier(base.getSymbols());
+            this.active = new ClauseIndex();
+            this.activeSubsumption = new SubsumptionIndex();
+            this.activeUnits = new UnitIndex();
+            this.subsumption = options.isSubsumption();
+            this.lightest = new PriorityQueue<>(Comparator.comparingInt(PassiveClause::getWeight).thenComparingLong(PassiveClause::getAge));
+            this.oldest = new ArrayDeque<>();
+            this.seen = VisitedStore.of(options, false);
+            this.maxLength = base.getMaxLength(options);
+            this.timeLimit = options.getTimeLimit();
+            this.pickGivenRatio = options.getPickGivenRatio();
+            this.age = 0;
+            this.picks = 0;
+        }
+
+        @Override
+        public SearchOutcome run(Clause goal) throws IOException {
+            this.startTime = System.currentTimeMillis();
+            this.boundReached = false;
+            if (isContradiction(goal)) {
+                return SearchOutcome.PROVED;
+            }
+            addPassive(goal);
+            List<KnowledgeBase.ResolutionResult> resolutionResults = new ArrayList<>();
+            while (!oldest.isEmpty()) {
+                if (stopped) {
+                    return SearchOutcome.CANCELLED;
+                }
+                if (timeLimitElapsed()) {
+                    return SearchOutcome.TIMED_OUT;
+                }
+                Clause given = select();
+                if (activeUnits.isContradiction(given, bindings)) {
+                    return SearchOutcome.PROVED;
+                }
+                if (subsumption && activeSubsumption.isSubsumed(given, bindings)) {
+                    continue;
+                }
+                activate(given);
+                resolutionResults.clear();
+                base.addResolvents(given, base.getClauseIndex(), bindings, resolutionResults);
+                base.addResolvents(given, active, bindings, resolutionResults);
+                for (KnowledgeBase.ResolutionResult result : resolutionResults) {
+                    if (result.size() > maxLength) {
+                        boundReached = true;
+                        continue;
+                    }
+                    Clause resolved = result.getResolved();
+                    KnowledgeBase.log(writer, given, result.getCandidate(), resolved);
+                    if (isContradiction(resolved)) {
+                        return SearchOutcome.PROVED;
+                    }
+                    if (subsumption && isSubsumed(resolved)) {
+                        continue;
+                    }
+                    addPassive(resolved);
+                }
+            }
+            return SearchOutcome.EXHAUSTED;
+        }
+
+        @Override
+        public void cancel() {
+            this.stopped = true;
+        }
+
+        @Override
+        public boolean isBoundReached() {
+            return boundReached;
+        }
+
+        private boolean isContradiction(Clause clause) {
+            return base.isContradiction(clause, bindings) || activeUnits.isContradiction(clause, bindings);
+        }
+
+        private boolean isSubsumed(Clause clause) {
+            return base.isSubsumed(clause, bindings) || activeSubsumption.isSubsumed(clause, bindings);
+        }
+
+        /**
+         * Moves the given clause to the active set, first removing the active clauses it subsumes
+         */
+        private void activate(Clause given) {
+            if (subsumption) {
+                for (Clause subsumed : activeSubsumption.getSubsumed(given, bindings)) {
+                    active.remove(subsumed);
+                    activeSubsumption.remove(subsumed);
+                    activeUnits.remove(subsumed);
+                }
+                activeSubsumption.add(given);
+            }
+            active.add(given);
+            activeUnits.add(given);
+        }
+
+        private void addPassive(Clause clause) {
+            if (!seen.add(clause)) {
+                return;
+            }
+            PassiveClause passive = new PassiveClause(clause, getWeight(clause), age++);
+            lightest.add(passive);
+            oldest.add(passive);
+        }
+
+        /**
+         * Removes the next given clause from the passive set. Both queues hold the same entries, so an entry taken from
+         * one is marked and skipped when it surfaces in the other.
+         */
+        private Clause select() {
+            boolean byAge = pickGivenRatio > 0 && ++picks % pickGivenRatio == 0;
+            PassiveClause next;
+            do {
+                next = byAge ? oldest.poll() : lightest.poll();
+            } while (next.isSelected());
+            next.select();
+            while (!oldest.isEmpty() && oldest.peek().isSelected()) {
+                oldest.poll();
+            }
+            while (!lightest.isEmpty() && lightest.peek().isSelected()) {
+                lightest.poll();
+            }
+            return next.getClause();
+        }
+
+        /**
+         * Symbol count of the clause: one for every predicate and one for every argument
+         */
+        private int getWeight(Clause clause) {
+            int weight = 0;
+            for (int i = 0; i < clause.size(); i++) {
+                weight += 1 + clause.get(i).getArity();
+            }
+            return weight;
+        }
+
+        private boolean timeLimitElapsed() {
+            long elapsed = (System.currentTimeMillis() - startTime) / 1000;
+            return elapsed > timeLimit;
+        }
+
+        private static class PassiveClause {
+
+            private final Clause clause;
+
+            private final int weight;
+
+            private final long age;
+
+            private boolean selected;
+
+            private PassiveClause(Clause clause, int weight, long age) {
+                this.clause = clause;
+                this.weight = weight;
+                this.age = age;
+                this.selected = false;
+            }
+
+            public Clause getClause() {
+                return clause;
+            }
+
+            public int getWeight() {
+                return weight;
+            }
+
+            public long getAge() {
+                return age;
+            }
+
+            public boolean isSelected() {
+                return selected;
+            }
+
+            public void select() {
+                this.selected = true;
+            }
+        }
+    }
+
+    /**
+     * Linear resolution with independent branches forked as tasks on a {@link ForkJoinPool}. Branches share a
+     * concurrent visited set; each worker thread has its own unifier. The first branch to derive a contradiction
+     * completes the result, which every task polls so that outstanding work stops as soon as a proof is found.
+     * Every run gets a pool, a result, a visited set and unifiers of its own, and shuts the pool down when it returns.
+     */
+    public static class ParallelSearch implements ProofSearch {
+
+        private final KnowledgeBase base;
+
+        private final SearchOptions options;
+
+        private final Writer writer;
+
+        private final int maxDepth;
+
+        private final int maxLength;
+
+        private volatile Run current;
+
+        private volatile boolean stopped;
+
+        private volatile boolean boundReached;
+
+        public ParallelSearch(KnowledgeBase base, SearchOptions options, Writer writer) {
+            this.base = base;
+            this.options = options;
+            this.writer = writer;
+            this.maxDepth = base.getMaxDepth(options);
+            this.maxLength = base.getMaxLength(options);
+        }
+
+        @Override
+        public SearchOutcome run(Clause goal) throws IOException {
+            Run run = new Run(VisitedStore.of(options, true), System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(options.getTimeLimit()));
+            current = run;
+            boundReached = false;
+            if (stopped) {
+                return SearchOutcome.CANCELLED;
+            }
+            ForkJoinPool pool = new ForkJoinPool(options.getParallelism());
+            try {
+                pool.execute(new Branch(run, goal, 0, true));
+                return run.result.get(options.getTimeLimit(), TimeUnit.SECONDS);
+            }
+            catch (TimeoutException ex) {
+                return SearchOutcome.TIMED_OUT;
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return SearchOutcome.CANCELLED;
+            }
+            catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IllegalStateException("Parallel proof search failed", ex.getCause());
+            }
+            finally {
+                /* Stops the branches still queued before their pool goes away */
+                run.result.complete(SearchOutcome.CANCELLED);
+                pool.shutdownNow();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            this.stopped = true;
+            Run run = current;
+            if (Objects.nonNull(run)) {
+                run.result.complete(SearchOutcome.CANCELLED);
+            }
+        }
+
+        @Override
+        public boolean isBoundReached() {
+            return boundReached;
+        }
+
+        /**
+         * State shared by the branches of one run. Branches of an earlier run that are still queued poll their own
+         * result, so they stop without touching a later run. The unifiers are kept per worker thread of the run's pool
+         * and are dropped with the run.
+         */
+        private class Run {
+
+            private final CompletableFuture<SearchOutcome> result;
+
+            private final VisitedStore visited;
+
+            private final long deadline;
+
+            private final Map<Thread, TrailUnifier> bindings;
+
+            private Run(VisitedStore visited, long deadline) {
+                this.result = new CompletableFuture<>();
+                this.visited = visited;
+                this.deadline = deadline;
+                this.bindings = new ConcurrentHashMap<>();
+            }
+
+            private TrailUnifier getBindings() {
+                return bindings.computeIfAbsent(Thread.currentThread(), thread -> new TrailUnifier(base.getSymbols()));
+            }
+        }
+
+        private class Branch extends RecursiveAction {
+
+            /* RecursiveAction is Serializable, so the id is declared, although branches are never serialised */
+            private static final long serialVersionUID = 1L;
+
+            private final Run run;
+
+            private final Clause clause;
+
+            private final int depth;
+
+            private final boolean root;
+
+            private Branch(Run run, Clause clause, int depth, boolean root) {
+                this.run = run;
+                this.clause = clause;
+                this.depth = depth;
+                this.root = root;
+            }
+
+            @Override
+            protected void compute() {
+                try {
+                    expand();
+                }
+                catch (IOException | RuntimeException ex) {
+                    run.result.completeExceptionally(ex);
+                }
+                if (root) {
+                    run.result.complete(SearchOutcome.EXHAUSTED);
+                }
+            }
+
+            private void expand() throws IOException {
+                if (run.result.isDone()) {
+                    return;
+                }
+                if (depth > maxDepth) {
+                    boundReached = true;
+                    return;
+                }
+                TrailUnifier unifier = run.getBindings();
+                if (depth >= options.getSplitDepth()) {
+                    /* The sub-search gets what is left of the run's time limit, not a fresh one */
+                    long remaining = TimeUnit.MILLISECONDS.toSeconds(run.deadline - System.currentTimeMillis());
+                    if (remaining < 0) {
+                        run.result.complete(SearchOutcome.TIMED_OUT);
+                        return;
+                    }
+                    SearchOptions limited = options.withTimeLimit(remaining);
+                    DepthFirstSearch search = new DepthFirstSearch(base, limited, writer, unifier, run.visited, run.result::isDone, null);
+                    SearchOutcome outcome = search.run(clause, depth);
+                    if (outcome == SearchOutcome.PROVED || outcome == SearchOutcome.TIMED_OUT) {
+                        run.result.complete(outcome);
+                    }
+                    if (search.isBoundReached()) {
+                        boundReached = true;
+                    }
+                    return;
+                }
+                if (base.isContradiction(clause, unifier)) {
+                    run.result.complete(SearchOutcome.PROVED);
+                    return;
+                }
+                if (!run.visited.add(clause)) {
+                    return;
+                }
+                List<Branch> branches = new ArrayList<>();
+                for (KnowledgeBase.ResolutionResult resolution : base.getResolvents(clause, unifier)) {
+                    if (resolution.size() > maxLength) {
+                        boundReached = true;
+                        continue;
+                    }
+                    KnowledgeBase.log(writer, clause, resolution.getCandidate(), resolution.getResolved());
+                    branches.add(new Branch(run, resolution.getResolved(), depth + 1, false));
+                }
+                invokeAll(branches);
+            }
+        }
+    }
+
+    /**
+     * Runs depth-first search repeatedly with growing depth and resolvent length bounds, up to the bounds in the
+     * options, so that shallow proofs are found before the search commits to a deep branch. Expansions computed in
+     * earlier iterations, and with them the candidate order, are kept in a bounded cache and reused. The search stops
+     * early once an iteration explores its space without hitting either bound.
+     */
+    public static class IterativeDeepeningSearch implements ProofSearch {
+
+        private static final int RESOLVENT_CACHE_SIZE = 1 << 16;
+
+        private final KnowledgeBase base;
+
+        private final SearchOptions options;
+
+        private final Writer writer;
+
+        private final TrailUnifier bindings;
+
+        private final Map<Clause, List<KnowledgeBase.ResolutionResult>> resolventCache;
+
+        private final int maxDepth;
+
+        private final int maxLength;
+
+        private volatile DepthFirstSearch current;
+
+        private volatile boolean stopped;
+
+        private int depthBound;
+
+        private int lengthBound;
+
+        public IterativeDeepeningSearch(KnowledgeBase base, SearchOptions options, Writer writer) {
+            this.base = base;
+            this.options = options;
+            this.writer = writer;
+            this.bindings = new TrailUnifier(base.getSymbols());
+            this.resolventCache = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Clause, List<KnowledgeBase.ResolutionResult>> eldest) {
+                    return size() > RESOLVENT_CACHE_SIZE;
+                }
+            };
+            this.maxDepth = base.getMaxDepth(options);
+            this.maxLength = base.getMaxLength(options);
+        }
+
+        @Override
+        public SearchOutcome run(Clause goal) throws IOException {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(options.getTimeLimit());
+            int step = Math.max(1, options.getDeepeningStep());
+            depthBound = Math.min(step, maxDepth);
+            lengthBound = Math.min(Math.max(base.getMaxLiterals(), goal.size()), maxLength);
+            while (true) {
+                if (stopped) {
+                    return SearchOutcome.CANCELLED;
+                }
+                long remaining = TimeUnit.MILLISECONDS.toSeconds(deadline - System.currentTimeMillis());
+                if (remaining < 0) {
+                    return SearchOutcome.TIMED_OUT;
+                }
+                SearchOptions iteration = options.withMaxDepth(depthBound).withMaxLength(lengthBound).withTimeLimit(remaining);
+                current = new DepthFirstSearch(base, iteration, writer, bindings, VisitedStore.of(options, false), () -> stopped, resolventCache);
+                SearchOutcome outcome = current.run(goal);
+                if (outcome != SearchOutcome.EXHAUSTED || !current.isBoundReached()) {
+                    return outcome;
+                }
+                if (depthBound >= maxDepth && lengthBound >= maxLength) {
+                    return SearchOutcome.EXHAUSTED;
+                }
+                depthBound = (int) Math.min((long) depthBound + step, maxDepth);
+                lengthBound = Math.min(lengthBound + 1, maxLength);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            this.stopped = true;
+        }
+
+        @Override
+        public boolean isBoundReached() {
+            return Objects.nonNull(current) && current.isBoundReached();
+        }
+
+        /**
+         * Depth bound of the last iteration, which is the bound a proof was found at
+         */
+        public int getDepthBound() {
+            return depthBound;
+        }
+
+        /**
+         * Resolvent length bound of the last iteration, which is the bound a proof was found at
+         */
+        public int getLengthBound() {
+            return lengthBound;
+        }
+    }
+
+    /**
+     * Races several search configurations over one knowledge base, each on its own thread with its own search state.
+     * The first definitive outcome wins and cancels the others. A member that exhausted its search only up to its
+     * bounds does not refute the goal, and neither it nor a member that times out or is cancelled decides the outcome
+     * while another member can still reach a definitive one.
+     */
+    public static class PortfolioSearch implements ProofSearch {
+
+        private final long timeLimit;
+
+        private final List<ProofSearch> searches;
+
+        public PortfolioSearch(KnowledgeBase base, SearchOptions options, Writer writer) {
+            this.timeLimit = options.getTimeLimit();
+            this.searches = new ArrayList<>();
+            for (SearchOptions member : getMembers(options)) {
+                if (member.getStrategy() == SearchStrategy.PORTFOLIO) {
+                    throw new IllegalArgumentException("A portfolio cannot contain another portfolio");
+                }
+                this.searches.add(base.newSearch(member, writer));
+            }
+        }
+
+        @Override
+        public SearchOutcome run(Clause goal) throws IOException {
+            ExecutorService executor = Executors.newFixedThreadPool(searches.size());
+            CompletionService<SearchOutcome> completion = new ExecutorCompletionService<>(executor);
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeLimit);
+            SearchOutcome combined = SearchOutcome.EXHAUSTED;
+            Map<Future<SearchOutcome>, ProofSearch> members = new IdentityHashMap<>();
+            try {
+                for (ProofSearch search : searches) {
+                    members.put(completion.submit(() -> search.run(goal)), search);
+                }
+                for (int i = 0; i < searches.size(); i++) {
+                    Future<SearchOutcome> next = completion.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (Objects.isNull(next)) {
+                        return SearchOutcome.TIMED_OUT;
+                    }
+                    SearchOutcome outcome = next.get();
+                    if (outcome == SearchOutcome.PROVED || outcome == SearchOutcome.EXHAUSTED && !members.get(next).isBoundReached()) {
+                        return outcome;
+                    }
+                    if (!outcome.isDefinitive()) {
+                        combined = outcome;
+                    }
+                }
+                return combined;
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return SearchOutcome.CANCELLED;
+            }
+            catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IllegalStateException("Portfolio member failed", ex.getCause());
+            }
+            finally {
+                cancel();
+                executor.shutdownNow();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            for (ProofSearch search : searches) {
+                search.cancel();
+            }
+        }
+
+        private static List<SearchOptions> getMembers(SearchOptions options) {
+            if (!options.getPortfolio().isEmpty()) {
+                return options.getPortfolio();
+            }
+            return Arrays.asList(
+                    options.withStrategy(SearchStrategy.DEPTH_FIRST),
+                    options.withStrategy(SearchStrategy.BREADTH_FIRST),
+                    options.withStrategy(SearchStrategy.SATURATION)
+            );
+        }
+    }
+
+    public static class Configuration {
+
+        private final List<String> queries;
+
+        private final int size;
+
+        private final List<String> facts;
+
+        public Configuration(String query, int size, List<String> facts) {
+            this(Collections.singletonList(query), size, facts);
+        }
+
+        public Configuration(List<String> queries, int size, List<String> facts) {
+            if (queries.isEmpty()) {
+                throw new IllegalArgumentException("Configuration has no query");
+            }
+            this.size = size;
+            this.queries = queries;
+            this.facts = facts;
+        }
+
+        /**
+         * The first query, which is the only one in single-query input
+         */
+        public String getQuery() {
+            return queries.get(0);
+        }
+
+        public List<String> getQueries() {
+            return queries;
+        }
+
+        public List<String> getFacts() {
+            return facts;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            if (queries.size() > 1) {
+                builder.append(String.format("%d\n", queries.size()));
+            }
+            for (String query : queries) {
+                builder.append(String.format("%s\n", query));
+            }
+            builder.append(String.format("%d\n", size));
+            for (String fact : facts) {
+                builder.append(String.format("%s\n", fact));
+            }
+            return builder.toString();
+        }
+    }
+
+    public static class ExpressionParser {
+
+        /**
+         * Facts whose distributed CNF would have more clauses than this are converted with definitions instead
+         */
+        public static final int DEFAULT_DEFINITION_THRESHOLD = 64;
+
+        /**
+         * Prefix of the fresh predicates introduced by definitional CNF. The tokeniser only reads letters, digits and
+         * underscores in names, so a parsed predicate can never take one of these names.
+         */
+        public static final String DEFINITION_PREFIX = "$Def";
+
+        private final Tokeniser tokeniser;
+
+        private final AlgebraHandler handler;
+
+        private final SymbolTable symbols;
+
+        private final int definitionThreshold;
+
+        private int fresh;
+
+        public ExpressionParser(Tokeniser tokeniser, AlgebraHandler handler) {
+            this(tokeniser, handler, DEFAULT_DEFINITION_THRESHOLD);
+        }
+
+        public ExpressionParser(Tokeniser tokeniser, AlgebraHandler handler, int definitionThreshold) {
+            this.tokeniser = tokeniser;
+            this.handler = handler;
+            this.symbols = tokeniser.getSymbols();
+            this.definitionThreshold = definitionThreshold;
+            this.fresh = 0;
+        }
+
+        public int getDefinitionThreshold() {
+            return definitionThreshold;
+        }
+
+        public SymbolTable getSymbols() {
+            return symbols;
+        }
+
+        /**
+         * Number of definitions introduced so far, which is also the number of the next one
+         */
+        int getDefinitions() {
+            return fresh;
+        }
+
+        /**
+         * Reserves numbers for definitions introduced by another parser and returns the first of them
+         */
+        int reserveDefinitions(int count) {
+            int first = fresh;
+            fresh += count;
+            return first;
+        }
+
+        /**
+         * Maps the symbols of the given range of definitions, as numbered by the converting parser, to their names once
+         * renumbered to start at the offset
+         */
+        Map<Integer, String> renumbering(int first, int count, int offset) {
+            Map<Integer, String> names = new HashMap<>();
+            for (int number = first; number < first + count; number++) {
+                names.put(symbols.intern(DEFINITION_PREFIX + number), DEFINITION_PREFIX + (number - first + offset));
+            }
+            return names;
+        }
+
+        /**
+         * Renames the definitions of a disjunction by symbol, so predicates outside the renumbering are never touched
+         */
+        Sentence renumberDefinitions(Sentence disjunction, Map<Integer, String> renumbering) {
+            for (int i = 0; i < disjunction.getExpressions().size(); i++) {
+                Expression expression = disjunction.getExpressions().get(i);
+                if (expression.getType() != ExpressionType.PREDICATE) {
+                    continue;
+                }
+                Predicate predicate = (Predicate) expression;
+                String name = renumbering.get(predicate.getSymbol());
+                if (Objects.nonNull(name)) {
+                    disjunction.getExpressions().set(i, new Predicate(symbols, symbols.intern(name), name, predicate.getArguments(), predicate.isNegated()));
+                }
+            }
+            return disjunction;
+        }
+
+        public List<Sentence> splitAndCleanup(Sentence cnf) {
+            List<Sentence> disjunctions = new ArrayList<>();
+            for (Expression cnfExpression : cnf.getExpressions()) {
+                if (cnfExpression.getType() == ExpressionType.OPERATOR) {
+                    if (cnfExpression == Operator.OR) {
+                        throw new UnsupportedOperationException(String.format("Sentence %s is not in CNF", cnf));
+                    }
+                    else {
+                        continue;
+                    }
+                }
+                if (cnfExpression.getType() == ExpressionType.PREDICATE) {
+                    Predicate predicate = (Predicate) cnfExpression;
+                    Sentence disjunction = new Sentence(predicate);
+                    disjunctions.add(disjunction);
+                }
+                else if (cnfExpression.getType() == ExpressionType.SENTENCE) {
+                    Sentence cleanup = cleanup((Sentence) cnfExpression);
+                    if (Objects.nonNull(cleanup)) {
+                        disjunctions.add(cleanup);
+                    }
+                }
+            }
+            return disjunctions;
+        }
+
+        public Sentence standardise(Sentence sentence, int index) {
+            for (int i = 0; i < sentence.getExpressions().size(); i++) {
+                Expression expression = sentence.getExpressions().get(i);
+                if (expression.getType() == ExpressionType.SENTENCE) {
+                    throw new IllegalArgumentException(String.format("Sentence %s is not a pure disjunction", sentence));
+                }
+                else if (expression.getType() == ExpressionType.PREDICATE) {
+                    sentence.getExpressions().set(i, standardise((Predicate) expression, index));
+                }
+            }
+            return sentence;
+        }
+
+        public Sentence toCNF(CharSequence line) {
+            List<Atom> atoms = tokeniser.tokenise(line);
+            Operand operand = (Operand) fromAtoms(atoms);
+            return toCNF(operand);
+        }
+
+        Expression fromString(CharSequence line) {
+            List<Atom> atoms = tokeniser.tokenise(line);
+            return fromAtoms(atoms);
+        }
+
+        /**
+         * Converts an operand to CNF in a single bottom-up pass over its negation normal form. Clauses and their
+         * literals come out in the order distribution produces them.
+         * <p>
+         * Operands whose distributed CNF would have more clauses than the definition threshold are converted with
+         * definitions instead. In negation normal form every subformula occurs positively, so a disjunct can be
+         * replaced by a fresh predicate D over its variables together with the clauses ~D | C for each of its clauses
+         * C. This is done whenever distributing a disjunction would produce more clauses than defining its larger
+         * side, which keeps the clause count linear in the size of the operand. The result entails the same facts
+         * over the original predicates.
+         */
+        Sentence toCNF(Operand operand) {
+            Formula formula = toFormula(operand, false);
+            List<List<Predicate>> definitions = new ArrayList<>();
+            List<List<Predicate>> clauses = new ArrayList<>(getClauses(formula, formula.getClauses() > definitionThreshold, definitions));
+            clauses.addAll(definitions);
+            List<Expression> expressions = new ArrayList<>();
+            for (List<Predicate> clause : clauses) {
+                if (!expressions.isEmpty()) {
+                    expressions.add(Operator.AND);
+                }
+                if (clause.size() == 1) {
+                    expressions.add(clause.get(0));
+                    continue;
+                }
+                List<Expression> disjunction = new ArrayList<>();
+                for (Predicate literal : clause) {
+                    if (!disjunction.isEmpty()) {
+                        disjunction.add(Operator.OR);
+                    }
+                    disjunction.add(literal);
+                }
+                expressions.add(new Sentence(disjunction));
+            }
+            return new Sentence(expressions);
+        }
+
+        /**
+         * Negation normal form of an expression, or of its negation. Implications are rewritten as disjunctions.
+         */
+        Formula toFormula(Expression expression, boolean negated) {
+            if (expression.getType() == ExpressionType.PREDICATE) {
+                Predicate predicate = (Predicate) expression;
+                if (negated) {
+                    predicate = new Predicate(predicate, !predicate.isNegated());
+                }
+                return Formula.literal(predicate);
+            }
+            List<Expression> expressions = ((Sentence) expression).getExpressions();
+            if (expressions.size() == 1) {
+                return toFormula(expressions.get(0), negated);
+            }
+            if (expressions.size() != 3) {
+                return toFormula(fromExpressions(expressions), negated);
+            }
+            Expression first = expressions.get(0);
+            Expression second = expressions.get(2);
+            switch ((Operator) expressions.get(1)) {
+                case AND:
+                    return negated
+                            ? Formula.or(toFormula(first, true), toFormula(second, true))
+                            : Formula.and(toFormula(first, false), toFormula(second, false));
+                case OR:
+                    return negated
+                            ? Formula.and(toFormula(first, true), toFormula(second, true))
+                            : Formula.or(toFormula(first, false), toFormula(second, false));
+                case IMPLIES:
+                    return negated
+                            ? Formula.and(toFormula(first, false), toFormula(second, true))
+                            : Formula.or(toFormula(first, true), toFormula(second, false));
+                default:
+                    throw new UnsupportedOperationException(String.format("Cannot convert %s to CNF", expression));
+            }
+        }
+
+        private List<List<Predicate>> getClauses(Formula formula, boolean define, List<List<Predicate>> definitions) {
+            switch (formula.getConnective()) {
+                case LITERAL:
+                    return Collections.singletonList(Collections.singletonList(formula.getLiteral()));
+                case AND:
+                    List<List<Predicate>> clauses = new ArrayList<>(getClauses(formula.getFirst(), define, definitions));
+                    clauses.addAll(getClauses(formula.getSecond(), define, definitions));
+                    return clauses;
+                case OR:
+                    return disjoin(getClauses(formula.getFirst(), define, definitions),
+                            getClauses(formula.getSecond(), define, definitions), define, definitions);
+                default:
+                    throw new UnsupportedOperationException(String.format("Unsupported connective %s", formula.getConnective()));
+            }
+        }
+
+        private List<List<Predicate>> disjoin(List<List<Predicate>> first, List<List<Predicate>> second, boolean define,
+                                              List<List<Predicate>> definitions) {
+            if (define && first.size() * second.size() > first.size() + second.size()) {
+                if (first.size() >= second.size()) {
+                    first = define(first, definitions);
+                }
+                else {
+                    second = define(second, definitions);
+                }
+            }
+            List<List<Predicate>> clauses = new ArrayList<>(first.size() * second.size());
+            for (List<Predicate> a : first) {
+                for (List<Predicate> b : second) {
+                    List<Predicate> clause = new ArrayList<>(a.size() + b.size());
+                    clause.addAll(a);
+                    clause.addAll(b);
+                    clauses.add(clause);
+                }
+            }
+            return clauses;
+        }
+
+        /**
+         * Adds ~D | C for every clause C and returns the single unit clause D
+         */
+        private List<List<Predicate>> define(List<List<Predicate>> clauses, List<List<Predicate>> definitions) {
+            Set<Predicate.Argument> variables = new LinkedHashSet<>();
+            for (List<Predicate> clause : clauses) {
+                for (Predicate literal : clause) {
+                    for (Predicate.Argument argument : literal.getArguments()) {
+                        if (argument.getArgumentType() == Predicate.ArgumentType.VARIABLE) {
+                            variables.add(argument);
+                        }
+                    }
+                }
+            }
+            String name = DEFINITION_PREFIX + fresh++;
+            List<Predicate.Argument> arguments = new ArrayList<>(variables);
+            Predicate definition = new Predicate(symbols, symbols.intern(name), name, arguments, false);
+            Predicate negation = new Predicate(symbols, symbols.intern(name), name, arguments, true);
+            for (List<Predicate> clause : clauses) {
+                List<Predicate> implication = new ArrayList<>(clause.size() + 1);
+                implication.add(negation);
+                implication.addAll(clause);
+                definitions.add(implication);
+            }
+            return Collections.singletonList(Collections.singletonList(definition));
+        }
+
+        public Sentence cleanup(Sentence disjunction) {
+            Map<Predicate, Predicate> predicates = new LinkedHashMap<>();
+            for (Expression expression : disjunction.getExpressions()) {
+                if (expression == Operator.AND) {
+                    throw new IllegalArgumentException("Disjunction should not contain any ANDs");
+                }
+                else if (expression.getType() == ExpressionType.SENTENCE) {
+                    throw new IllegalArgumentException("Sentence must be a pure disjunction");
+                }
+                else if (expression.getType() == ExpressionType.PREDICATE) {
+                    Predicate predicate = (Predicate) expression;
+                    Predicate existing = predicates.get(predicate);
+                    if (Objects.nonNull(existing) && existing.isNegation(predicate)) {
+                        return null;
+                    }
+                    else {
+                        predicates.put(predicate, predicate);
+                    }
+                }
+            }
+            List<Expression> expressions = new ArrayList<>();
+            Iterator<Predicate> iterator = predicates.values().iterator();
+            expressions.add(iterator.next());
+            while (iterator.hasNext()) {
+                Predicate predicate = iterator.next();
+                expressions.add(Operator.OR);
+                expressions.add(predicate);
+            }
+            return new Sentence(expressions);
+        }
+
+        private Predicate standardise(Predicate predicate, int index) {
+            List<Predicate.Argument> standardisedArguments = new ArrayList<>();
+            for (Predicate.Argument argument : predicate.getArguments()) {
+                if (argument.getArgumentType() == Predicate.ArgumentType.CONSTANT) {
+                    standardisedArguments.add(argument);
+                }
+                else {
+                    String standardisedName = argument.getName() + index;
+                    standardisedArguments.add(symbols.variable(standardisedName));
+                }
+            }
+            return new Predicate(symbols, predicate.getSymbol(), predicate.getName(), standardisedArguments, predicate.isNegated());
+        }
+
+        /**
+         * Generates a sentence from a list of atoms
+         */
+        private Expression fromAtoms(List<Atom> atoms) {
+            return fromExpressions(new ArrayList<>(atoms));
+        }
+
+        /**
+         * Generates a binary parse tree from an infix list of operands and operators
+         */
+        private Expression fromExpressions(List<Expression> expressions) {
+            Stack<Expression> stack = new Stack<>();
+            List<Expression> postfix = toPostfix(expressions);
+            for (Expression expression : postfix) {
+                switch (expression.getType()) {
+                    case PREDICATE:
+                    case SENTENCE:
+                        stack.add(expression);
+                        break;
+                    case OPERATOR:
+                        Operator operator = (Operator) expression;
+                        Expression first = stack.pop();
+                        Expression second = stack.pop();
+                        Sentence next = new Sentence(Arrays.asList(second, operator, first));
+                        stack.add(next);
+                        break;
+                    default:
+                        throw new UnsupportedOperationException(String.format("Expression type %s is not an operand or operator", expression.getType()));
+                }
+            }
+            return stack.pop();
+        }
+
+        private List<Expression> toPostfix(List<Expression> expressions) {
+            Stack<Operator> stack = new Stack<>();
+            List<Expression> postfix = new ArrayList<>();
+            for (Expression expression : expressions) {
+                switch (expression.getType()) {
+                    case SENTENCE:
+                    case PREDICATE:
+                        postfix.add(expression);
+                        break;
+                    case OPERATOR:
+                        Operator operator = (Operator) expression;
+                        while (!stack.isEmpty() && operator.getPrecedence() <= stack.peek().getPrecedence()) {
+                            Operator next = stack.pop();
+                            postfix.add(next);
+                        }
+                        stack.add(operator);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(String.format("Expression cannot be of type %s", expression.getType()));
+                }
+            }
+            while (!stack.isEmpty()) {
+                Operator next = stack.pop();
+                postfix.add(next);
+            }
+            return postfix;
+        }
+    }
+
+    /**
+     * Single-scan lexer and parser for facts and queries. Whitespace is skipped inline and names are looked up in a
+     * cache keyed by their characters, so a name only becomes a String the first time it is seen. Not thread-safe.
+     */
+    public static class Tokeniser {
+
+        private static final int INITIAL_CACHE_CAPACITY = 256;
+
+        private final SymbolTable symbols;
+
+        /* Open-addressing cache from name text to its interned symbol and shared argument instance */
+        private String[] names;
+
+        private int[] ids;
+
+        private Predicate.Argument[] arguments;
+
+        private int cached;
+
+        /**
+         * Creates a tokeniser with a symbol table of its own, which lives as long as the parsers and knowledge bases
+         * built on it
+         */
+        public Tokeniser() {
+            this(new SymbolTable());
+        }
+
+        public Tokeniser(SymbolTable symbols) {
+            this.symbols = symbols;
+            this.names = new String[INITIAL_CACHE_CAPACITY];
+            this.ids = new int[INITIAL_CACHE_CAPACITY];
+            this.arguments = new Predicate.Argument[INITIAL_CACHE_CAPACITY];
+            this.cached = 0;
+        }
+
+        public SymbolTable getSymbols() {
+            return symbols;
+        }
+
+        /**
+         * Splits a line into predicates and binary operators, in the order they appear. Negation is folded into the
+         * predicate that follows it. Throws an IllegalArgumentException naming the column of the first error.
+         */
+        public List<Atom> tokenise(CharSequence line) {
+            List<Atom> atoms = new ArrayList<>();
+            boolean operand = true;
+            int i = skipWhitespace(line, 0);
+            while (i < line.length()) {
+                i = operand ? parsePredicate(line, i, atoms) : parseOperator(line, i, atoms);
+                operand = !operand;
+                i = skipWhitespace(line, i);
+            }
+            if (operand) {
+                throw getParseError(line, i, "Expected a predicate");
+            }
+            return atoms;
+        }
+
+        private int parseOperator(CharSequence line, int i, List<Atom> atoms) {
+            char c = line.charAt(i);
+            if (c == Operator.AND.getPrefix() || c == Operator.OR.getPrefix()) {
+                atoms.add(Operator.from(c));
+                return i + 1;
+            }
+            if (c == Operator.IMPLIES.getPrefix() && i + 1 < line.length() && line.charAt(i + 1) == Operator.IMPLIES.getLabel().charAt(1)) {
+                atoms.add(Operator.IMPLIES);
+                return i + Operator.IMPLIES.getLength();
+            }
+            throw getParseError(line, i, String.format("Expected one of %s, %s or %s", Operator.AND, Operator.OR, Operator.IMPLIES));
+        }
+
+        private int parsePredicate(CharSequence line, int i, List<Atom> atoms) {
+            boolean negated = line.charAt(i) == Operator.NOT.getPrefix();
+            if (negated) {
+                i = skipWhitespace(line, i + 1);
+            }
+
+            /* Parse predicate name */
+            int end = skipName(line, i);
+            if (end == i) {
+                throw getParseError(line, i, "Expected a predicate name");
+            }
+            /* Looking up the arguments may grow the cache and move the slot, so the symbol is read out first */
+            int slot = lookup(line, i, end);
+            int symbol = ids[slot];
+            String name = names[slot];
+            i = expect(line, skipWhitespace(line, end), Constants.OPEN_BRACE);
+
+            /* Parse arguments, interning each one through the cache */
+            List<Predicate.Argument> predicateArguments = new ArrayList<>();
+            do {
+                i = skipWhitespace(line, i + 1);
+                end = skipName(line, i);
+                if (end == i) {
+                    throw getParseError(line, i, "Expected an argument");
+                }
+                predicateArguments.add(getArgument(lookup(line, i, end)));
+                i = skipWhitespace(line, end);
+            }
+            while (i < line.length() && line.charAt(i) == ',');
+            i = expect(line, i, Constants.CLOSE_BRACE);
+
+            atoms.add(new Predicate(symbols, symbol, name, predicateArguments, negated));
+            return i + 1;
+        }
+
+        private int expect(CharSequence line, int i, char expected) {
+            if (i >= line.length() || line.charAt(i) != expected) {
+                throw getParseError(line, i, String.format("Expected '%s'", expected));
+            }
+            return i;
+        }
+
+        private static int skipWhitespace(CharSequence line, int i) {
+            while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+
+        private static int skipName(CharSequence line, int i) {
+            while (i < line.length() && (Character.isLetterOrDigit(line.charAt(i)) || line.charAt(i) == '_')) {
+                i++;
+            }
+            return i;
+        }
+
+        private static IllegalArgumentException getParseError(CharSequence line, int i, String message) {
+            String found = i < line.length() ? String.format("found '%s'", line.charAt(i)) : "found end of line";
+            return new IllegalArgumentException(String.format("%s at column %d, %s: %s", message, i + 1, found, line));
+        }
+
+        /**
+         * Returns the cache slot of the name between start and end, interning it on first sight
+         */
+        private int lookup(CharSequence line, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + line.charAt(i);
+            }
+            int mask = names.length - 1;
+            int slot = mix(hash) & mask;
+            while (Objects.nonNull(names[slot])) {
+                if (matches(names[slot], line, start, end)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            String name = line.subSequence(start, end).toString();
+            names[slot] = name;
+            ids[slot] = symbols.intern(name);
+            if (++cached * 2 > names.length) {
+                grow();
+                return lookup(line, start, end);
+            }
+            return slot;
+        }
+
+        private Predicate.Argument getArgument(int slot) {
+            if (Objects.isNull(arguments[slot])) {
+                String name = names[slot];
+                arguments[slot] = Character.isUpperCase(name.charAt(0)) ? symbols.constant(name) : symbols.variable(name);
+            }
+            return arguments[slot];
+        }
+
+        private void grow() {
+            String[] oldNames = names;
+            int[] oldIds = ids;
+            Predicate.Argument[] oldArguments = arguments;
+            names = new String[2 * oldNames.length];
+            ids = new int[names.length];
+            arguments = new Predicate.Argument[names.length];
+            int mask = names.length - 1;
+            for (int i = 0; i < oldNames.length; i++) {
+                if (Objects.nonNull(oldNames[i])) {
+                    int slot = mix(oldNames[i].hashCode()) & mask;
+                    while (Objects.nonNull(names[slot])) {
+                        slot = (slot + 1) & mask;
+                    }
+                    names[slot] = oldNames[i];
+                    ids[slot] = oldIds[i];
+                    arguments[slot] = oldArguments[i];
+                }
+            }
+        }
+
+        private static boolean matches(String name, CharSequence line, int start, int end) {
+            if (name.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != line.charAt(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    public static class AlgebraHandler {
+
+        public boolean isCNF(Expression expression) {
+            if (expression.getType() == ExpressionType.OPERATOR && expression != Operator.AND) {
+                return false;
+            }
+            if (expression == Operator.AND) {
+                return true;
+            }
+            if (expression.getType() == ExpressionType.PREDICATE) {
+                return true;
+            }
+            Sentence sentence = (Sentence) expression;
+            Sentence pureDisjunction = (Sentence) getPureDisjunction(sentence);
+            if (Objects.nonNull(pureDisjunction)) {
+                return true;
+            }
+            boolean check = true;
+            for (Expression sentenceExpression : sentence.getExpressions()) {
+                check = check && isCNF(sentenceExpression);
+            }
+            return check;
+        }
+
+        /**
+         * Conjuncts two operables in CNF form and returns the result in CNF form
+         */
+        public Expression and(Operand first, Operand second) {
+            Sentence flattenedFirst = flatten(first);
+            Sentence flattenedSecond = flatten(second);
+            List<Expression> expressions = new ArrayList<>(flattenedFirst.getExpressions());
+            expressions.add(Operator.AND);
+            expressions.addAll(flattenedSecond.getExpressions());
+            return new Sentence(expressions);
+        }
+
+        /**
+         * Disjuncts two operables in CNF form and returns the result in CNF form
+         */
+        public Expression or(Operand first, Operand second) {
+            Sentence flattenedFirst = flatten(first);
+            Sentence flattenedSecond = flatten(second);
+            List<Expression> expressions = new ArrayList<>();
+            for (Expression a : flattenedFirst.getExpressions()) {
+                if (a == Operator.AND) {
+                    expressions.add(a);
+                }
+                else {
+                    for (Expression b : flattenedSecond.getExpressions()) {
+                        if (b == Operator.AND) {
+                            expressions.add(b);
+                        }
+                        else {
+                            Sentence disjunction = new Sentence(a, Operator.OR, b);
+                            expressions.add(disjunction);
+                        }
+                    }
+                }
+            }
+            return new Sentence(expressions);
+        }
+
+        /**
+         * Negates a sentence in CNF and returns it in CNF form
+         */
+        public Expression negate(Operand operand) {
+            return negateHelper(operand);
+        }
+
+        /**
+         * Flattens a CNF operable into a single sentence
+         */
+        public Sentence flatten(Operand operand) {
+            if (operand.getType() == ExpressionType.PREDICATE) {
+                return new Sentence(operand);
+            }
+            Sentence sentence = (Sentence) operand;
+            Sentence pureDisjunction = (Sentence) getPureDisjunction(sentence);
+            if (Objects.nonNull(pureDisjunction)) {
+                return new Sentence(pureDisjunction);
+            }
+            return (Sentence) flattenHelper(operand).getExpression();
+        }
+
+        private FlattenResult flattenHelper(Expression expression) {
+            if (expression.getType() == ExpressionType.OPERATOR && expression != Operator.AND) {
+                throw new UnsupportedOperationException(String.format("Cannot flatten operator to CNF %s", expression));
+            }
+            if (expression == Operator.AND) {
+                return new FlattenResult(expression, false);
+            }
+            if (expression.getType() == ExpressionType.PREDICATE) {
+                return new FlattenResult(expression, false);
+            }
+            Sentence sentence = (Sentence) expression;
+            Sentence pureDisjunction = (Sentence) getPureDisjunction(sentence);
+            if (Objects.nonNull(pureDisjunction)) {
+                return new FlattenResult(pureDisjunction, true);
+            }
+            List<Expression> expressions = new ArrayList<>();
+            for (Expression sentenceExpression : sentence.getExpressions()) {
+                FlattenResult result = flattenHelper(sentenceExpression);
+                addFlattenedExpression(expressions, result);
+            }
+            return new FlattenResult(new Sentence(expressions), false);
+        }
+
+        private Operand getPureDisjunction(Sentence operable) {
+            return getPureOperable(operable, Operator.OR);
+        }
+
+        /**
+         * The operand as a flat sentence over the given operator, or null if it contains any other operator
+         */
+        private Operand getPureOperable(Operand operand, Operator operator) {
+            if (operand.getType() == ExpressionType.PREDICATE) {
+                return operand;
+            }
+            List<Expression> pureExpressions = new ArrayList<>();
+            Sentence sentence = (Sentence) operand;
+            for (Expression expression : sentence.getExpressions()) {
+                if (expression == operator) {
+                    pureExpressions.add(expression);
+                    continue;
+                }
+                else if (expression.getType() == ExpressionType.OPERATOR) {
+                    return null;
+                }
+                Operand pure = getPureOperable((Operand) expression, operator);
+                if (Objects.isNull(pure)) {
+                    return null;
+                }
+                else if (pure.getType() == ExpressionType.PREDICATE) {
+                    pureExpressions.add(pure);
+                }
+                else {
+                    pureExpressions.addAll(((Sentence) pure).getExpressions());
+                }
+            }
+            return new Sentence(pureExpressions);
+        }
+
+        private void addFlattenedExpression(List<Expression> expressions, FlattenResult flattenResult) {
+            switch (flattenResult.getExpression().getType()) {
+                case OPERATOR:
+                case PREDICATE:
+                    expressions.add(flattenResult.getExpression());
+                    break;
+                case SENTENCE:
+                    Sentence sentence = (Sentence) flattenResult.getExpression();
+                    if (flattenResult.isDisjunction()) {
+                        expressions.add(sentence);
+                    }
+                    else {
+                        expressions.addAll(sentence.getExpressions());
+                    }
+                    break;
+                default:
+                    throw new UnsupportedOperationException(String.format("Expression of type %s not supported for flattening", flattenResult.getExpression()));
+            }
+        }
+
+        private Expression negateHelper(Operand operand) {
+            ExpressionType type = operand.getType();
+            switch (type) {
+                case PREDICATE:
+                    return negatePredicate((Predicate) operand);
+                case SENTENCE:
+                    return negateSentence((Sentence) operand);
+                default:
+                    throw new IllegalArgumentException(String.format("Expression of type %s cannot be negated", operand.getType()));
+            }
+        }
+
+        private Predicate negatePredicate(Predicate predicate) {
+            return new Predicate(predicate, !predicate.isNegated());
+        }
+
+        private Sentence negateSentence(Sentence sentence) {
+            List<Expression> negatedExpressions = new ArrayList<>();
+            for (Expression _expression : sentence.getExpressions()) {
+                if (_expression.getType() == ExpressionType.OPERATOR) {
+                    Operator operator = (Operator) _expression;
+                    negatedExpressions.add(operator.complement());
+                }
+                else {
+                    negatedExpressions.add(negateHelper((Operand) _expression));
+                }
+            }
+            return new Sentence(negatedExpressions);
+        }
+
+        private static class FlattenResult {
+
+            private final Expression expression;
+
+            private final boolean disjunction;
+
+            public FlattenResult(Expression expression, Boolean disjunction) {
+                this.expression = expression;
+                this.disjunction = disjunction;
+            }
+
+            public Expression getExpression() {
+                return expression;
+            }
+
+            public boolean isDisjunction() {
+                return disjunction;
+            }
+        }
+    }
+
+    public static class Unifier {
+
+        public Map<String, Predicate.Argument> getSubstitution(Predicate p, Predicate q) {
+            if (p.getSymbol() != q.getSymbol()) {
+                throw new IllegalArgumentException(String.format("Cannot unify predicates with different names %s and %s", p, q));
+            }
+            if (p.getArity() != q.getArity()) {
+                throw new IllegalArgumentException(String.format("Cannot unify predicates with different number of arguments %s and %s", p, q));
+            }
+            try {
+                Map<String, Predicate.Argument> substitution = new HashMap<>();
+                for (int i = 0; i < p.getArity(); i++) {
+                    Predicate.Argument a = p.getArgument(i);
+                    Predicate.Argument b = q.getArgument(i);
+                    if (a.getArgumentType() == Predicate.ArgumentType.CONSTANT && b.getArgumentType() == Predicate.ArgumentType.CONSTANT) {
+                        handleConstantSubstitution((Predicate.Constant) a, (Predicate.Constant) b, substitution);
+                    }
+                    else if (a.getArgumentType() == Predicate.ArgumentType.VARIABLE) {
+                        handleVariableSubstitution((Predicate.Variable) a, b, substitution);
+                    }
+                    else if (b.getArgumentType() == Predicate.ArgumentType.VARIABLE) {
+                        handleVariableSubstitution((Predicate.Variable) b, a, substitution);
+                    }
+                }
+                return substitution;
+            } catch (Exception ex) {
+                return null;
+            }
+        }
+
+        public Sentence apply(Sentence sentence, Map<String, Predicate.Argument> substitution) {
+            List<Expression> expressions = new ArrayList<>();
+            for (Expression expression : sentence.getExpressions()) {
+                if (expression.getType() == ExpressionType.OPERATOR) {
+                    expressions.add(expression);
+                }
+                if (expression.getType() == ExpressionType.PREDICATE) {
+                    Predicate predicate = (Predicate) expression;
+                    expressions.add(apply(predicate, substitution));
+                }
+            }
+            return new Sentence(expressions);
+        }
+
+        public Clause apply(Clause clause, Map<String, Predicate.Argument> substitution) {
+            Predicate[] literals = new Predicate[clause.size()];
+            for (int i = 0; i < clause.size(); i++) {
+                literals[i] = apply(clause.get(i), substitution);
+            }
+            return new Clause(literals);
+        }
+
+        Predicate apply(Predicate predicate, Map<String, Predicate.Argument> substitution) {
+            List<Predicate.Argument> arguments = new ArrayList<>();
+            for (Predicate.Argument argument : predicate.getArguments()) {
+                if (argument.getArgumentType() == Predicate.ArgumentType.VARIABLE && substitution.containsKey(argument.getName())) {
+                    arguments.add(substitution.get(argument.getName()));
+                }
+                else {
+                    arguments.add(argument);
+                }
+            }
+            return new Predicate(predicate.getSymbols(), predicate.getSymbol(), predicate.getName(), arguments, predicate.isNegated());
+        }
+
+        private void handleConstantSubstitution(Predicate.Constant a, Predicate.Constant b, Map<String, Predicate.Argument> substitution) {
+            if (a.getId() != b.getId()) {
+                throw new IllegalArgumentException("Cannot unify constants with different values");
+            }
+            substitution.put(a.getName(), b);
+        }
+
+        private void handleVariableSubstitution(Predicate.Variable variable, Predicate.Argument argument, Map<String, Predicate.Argument> substitution) {
+            Predicate.Argument existing = substitution.get(variable.getName());
+            if (Objects.isNull(existing)) {
+                substitution.put(variable.getName(), argument);
+            } else if (!existing.equals(argument)) {
+                throw new IllegalArgumentException(String.format("Cannot unify a variable %s with two different constants %s %s", variable.getName(), argument.getName(), substitution.get(variable.getName()).getName()));
+            }
+        }
+    }
+
+    /**
+     * Table of subgoal results shared by the searches over one compiled knowledge base. A clause is recorded as proved
+     * once a search derives a contradiction from it, and as failed once a search explores it completely without one,
+     * for the remaining depth budget and resolvent length bound it had. Proofs that used the negated query as a side
+     * clause, and all failures, only hold for that query, so they are keyed by the query as well. Clauses are keyed by
+     * their variant-normalized canonical form, see {@link FingerprintSet#canonicalForm}.
+     * <p>
+     * Instances are thread safe.
+     */
+    public static class LemmaCache {
+
+        public static final int DEFAULT_CAPACITY = 1 << 16;
+
+        private final int capacity;
+
+        private final EvictionPolicy policy;
+
+        private final Map<Key, Lemma> lemmas;
+
+        private long hits;
+
+        private long misses;
+
+        public LemmaCache() {
+            this(DEFAULT_CAPACITY, EvictionPolicy.LRU);
+        }
+
+        public LemmaCache(int capacity, EvictionPolicy policy) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException(String.format("Lemma cache capacity %d is not positive", capacity));
+            }
+            this.capacity = capacity;
+            this.policy = policy;
+            this.lemmas = new LinkedHashMap<>(16, 0.75f, policy == EvictionPolicy.LRU) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Lemma> eldest) {
+                    return size() > LemmaCache.this.capacity;
+                }
+            };
+        }
+
+        /**
+         * Whether the clause is known to lead to a contradiction, either on its own or given the negated query
+         */
+        public synchronized boolean isProved(Clause query, Clause clause) {
+            int[] form = FingerprintSet.canonicalForm(clause);
+            Lemma lemma = lemmas.get(new Key(null, form));
+            if (Objects.isNull(lemma) || !lemma.isProved()) {
+                lemma = lemmas.get(new Key(FingerprintSet.canonicalForm(query), form));
+            }
+            return count(Objects.nonNull(lemma) && lemma.isProved());
+        }
+
+        /**
+         * Whether the clause is known to fail for the query within the given depth budget and length bound
+         */
+        public synchronized boolean isFailed(Clause query, Clause clause, int depth, int length) {
+            Lemma lemma = lemmas.get(new Key(FingerprintSet.canonicalForm(query), FingerprintSet.canonicalForm(clause)));
+            return count(Objects.nonNull(lemma) && !lemma.isProved() && lemma.getDepth() >= depth && lemma.getLength() >= length);
+        }
+
+        /**
+         * Records a proved clause; a null query means the proof did not use the negated query
+         */
+        public synchronized void recordProved(Clause query, Clause clause) {
+            int[] queryForm = Objects.isNull(query) ? null : FingerprintSet.canonicalForm(query);
+            lemmas.put(new Key(queryForm, FingerprintSet.canonicalForm(clause)), Lemma.PROVED);
+        }
+
+        public synchronized void recordFailed(Clause query, Clause clause, int depth, int length) {
+            Key key = new Key(FingerprintSet.canonicalForm(query), FingerprintSet.canonicalForm(clause));
+            Lemma existing = lemmas.get(key);
+            if (Objects.isNull(existing) || (!existing.isProved() && (existing.getDepth() < depth || existing.getLength() < length))) {
+                int widerDepth = Objects.isNull(existing) ? depth : Math.max(depth, existing.getDepth());
+                int widerLength = Objects.isNull(existing) ? length : Math.max(length, existing.getLength());
+                lemmas.put(key, new Lemma(false, widerDepth, widerLength));
+            }
+        }
+
+        public synchronized int size() {
+            return lemmas.size();
+        }
+
+        public synchronized void clear() {
+            lemmas.clear();
+        }
+
+        public synchronized long getHits() {
+            return hits;
+        }
+
+        public synchronized long getMisses() {
+            return misses;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public EvictionPolicy getPolicy() {
+            return policy;
+        }
+
+        private boolean count(boolean hit) {
+            if (hit) {
+                hits++;
+            }
+            else {
+                misses++;
+            }
+            return hit;
+        }
+
+        private static class Key {
+
+            private final int[] query;
+
+            private final int[] clause;
+
+            private final int hash;
+
+            private Key(int[] query, int[] clause) {
+                this.query = query;
+                this.clause = clause;
+                this.hash = 31 * Arrays.hashCode(query) + Arrays.hashCode(clause);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (this == o) {
+                    return true;
+                }
+                if (o == null || getClass() != o.getClass()) {
+                    return false;
+                }
+                Key key = (Key) o;
+                return hash == key.hash && Arrays.equals(query, key.query) && Arrays.equals(clause, key.clause);
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+        }
+
+        private static class Lemma {
+
+            private static final Lemma PROVED = new Lemma(true, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+            private final boolean proved;
+
+            private final int depth;
+
+            private final int length;
+
+            private Lemma(boolean proved, int depth, int length) {
+                this.proved = proved;
+                this.depth = depth;
+                this.length = length;
+            }
+
+            public boolean isProved() {
+                return proved;
+            }
+
+            public int getDepth() {
+                return depth;
+            }
+
+            public int getLength() {
+                return length;
+            }
+        }
+    }
+
+    public enum EvictionPolicy {
+        LRU,
+        FIFO
+    }
+
+    /**
+     * Set of clauses a search has already seen. Stores differ in how much memory they use and in what they give up
+     * for it: an exact store never errs; a bounded store forgets clauses, which only costs repeated work; an
+     * approximate store may report an unseen clause as seen, which can hide a proof.
+     */
+    public interface VisitedStore {
+
+        /**
+         * Records the clause and returns true, or returns false if it (or a variant) is already recorded
+         */
+        boolean add(Clause clause);
+
+        boolean contains(Clause clause);
+
+        /**
+         * Number of clauses currently recorded
+         */
+        int size();
+
+        /**
+         * Fraction of the store's current or designed capacity in use
+         */
+        double getOccupancy();
+
+        /**
+         * Approximate heap footprint in bytes
+         */
+        long getMemoryFootprint();
+
+        /**
+         * Creates the store configured in the options, safe for concurrent use if asked for
+         */
+        static VisitedStore of(SearchOptions options, boolean concurrent) {
+            switch (options.getVisitedStore()) {
+                case EXACT:
+                case FINGERPRINT:
+                    boolean exact = options.getVisitedStore() == VisitedStoreType.EXACT;
+                    return concurrent ? FingerprintSet.concurrent(exact) : new FingerprintSet(exact);
+                case BOUNDED:
+                    ClockVisitedStore clock = new ClockVisitedStore(options.getVisitedCapacity());
+                    return concurrent ? new SynchronizedVisitedStore(clock) : clock;
+                case BLOOM:
+                    BloomVisitedStore bloom = new BloomVisitedStore(options.getVisitedCapacity(), options.getFalsePositiveRate());
+                    return concurrent ? new SynchronizedVisitedStore(bloom) : bloom;
+                default:
+                    throw new UnsupportedOperationException(String.format("Visited store %s is not supported", options.getVisitedStore()));
+            }
+        }
+    }
+
+    public enum VisitedStoreType {
+        EXACT,
+        FINGERPRINT,
+        BOUNDED,
+        BLOOM
+    }
+
+    /**
+     * Visited store with a fixed number of fingerprint slots. Slots are grouped into small buckets and, when a bucket
+     * is full, the CLOCK policy picks the victim: the hand sweeps the bucket, sparing (and clearing) slots that were
+     * hit since its last pass. Evicted clauses may be expanded again, so searches stay complete and only repeat work.
+     */
+    public static class ClockVisitedStore implements VisitedStore {
+
+        private static final int WAYS = 8;
+
+        private static final long EMPTY = 0L;
+
+        private final long[] fingerprints;
+
+        private final boolean[] referenced;
+
+        private final byte[] hands;
+
+        private final int mask;
+
+        private int size;
+
+        private long evictions;
+
+        public ClockVisitedStore(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException(String.format("Visited store capacity %d is not positive", capacity));
+            }
+            int needed = (capacity + WAYS - 1) / WAYS;
+            int buckets = needed == 1 ? 1 : Integer.highestOneBit(needed - 1) << 1;
+            this.fingerprints = new long[buckets * WAYS];
+            this.referenced = new boolean[buckets * WAYS];
+            this.hands = new byte[buckets];
+            this.mask = buckets - 1;
+            this.size = 0;
+            this.evictions = 0;
+        }
+
+        @Override
+        public boolean add(Clause clause) {
+            long fingerprint = FingerprintSet.fingerprint(clause);
+            int bucket = (int) fingerprint & mask;
+            int first = bucket * WAYS;
+            for (int slot = first; slot < first + WAYS; slot++) {
+                if (fingerprints[slot] == fingerprint) {
+                    referenced[slot] = true;
+                    return false;
+                }
+            }
+            for (int slot = first; slot < first + WAYS; slot++) {
+                if (fingerprints[slot] == EMPTY) {
+                    fingerprints[slot] = fingerprint;
+                    referenced[slot] = true;
+                    size++;
+                    return true;
+                }
+            }
+            int hand = hands[bucket];
+            while (referenced[first + hand]) {
+                referenced[first + hand] = false;
+                hand = (hand + 1) % WAYS;
+            }
+            fingerprints[first + hand] = fingerprint;
+            referenced[first + hand] = true;
+            hands[bucket] = (byte) ((hand + 1) % WAYS);
+            evictions++;
+            return true;
+        }
+
+        @Override
+        public boolean contains(Clause clause) {
+            long fingerprint = FingerprintSet.fingerprint(clause);
+            int first = ((int) fingerprint & mask) * WAYS;
+            for (int slot = first; slot < first + WAYS; slot++) {
+                if (fingerprints[slot] == fingerprint) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        public int getCapacity() {
+            return fingerprints.length;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        @Override
+        public double getOccupancy() {
+            return (double) size / fingerprints.length;
+        }
+
+        @Override
+        public long getMemoryFootprint() {
+            return 9L * fingerprints.length + hands.length;
+        }
+    }
+
+    /**
+     * Visited store backed by a Bloom filter sized for an expected number of clauses and a false-positive rate. Memory
+     * is fixed up front; past the expected size the false-positive rate grows. A false positive prunes a clause that
+     * was never expanded, so proofs can be missed with roughly that probability per node.
+     */
+    public static class BloomVisitedStore implements VisitedStore {
+
+        private final long[] words;
+
+        private final long bits;
+
+        private final int hashes;
+
+        private final int expected;
+
+        private int size;
+
+        public BloomVisitedStore(int expected, double falsePositiveRate) {
+            if (expected <= 0) {
+                throw new IllegalArgumentException(String.format("Expected number of clauses %d is not positive", expected));
+            }
+            if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+                throw new IllegalArgumentException(String.format("False-positive rate %s is not between 0 and 1", falsePositiveRate));
+            }
+            double ln2 = Math.log(2);
+            long wanted = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (ln2 * ln2));
+            this.words = new long[(int) Math.max(1, (wanted + 63) >>> 6)];
+            this.bits = 64L * words.length;
+            this.hashes = Math.max(1, (int) Math.round((double) bits / expected * ln2));
+            this.expected = expected;
+            this.size = 0;
+        }
+
+        @Override
+        public boolean add(Clause clause) {
+            long fingerprint = FingerprintSet.fingerprint(clause);
+            int low = (int) fingerprint;
+            int high = (int) (fingerprint >>> 32);
+            boolean added = false;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(low + (long) i * high, bits);
+                long flag = 1L << bit;
+                if ((words[(int) (bit >>> 6)] & flag) == 0) {
+                    words[(int) (bit >>> 6)] |= flag;
+                    added = true;
+                }
+            }
+            if (added) {
+                size++;
+            }
+            return added;
+        }
+
+        @Override
+        public boolean contains(Clause clause) {
+            long fingerprint = FingerprintSet.fingerprint(clause);
+            int low = (int) fingerprint;
+            int high = (int) (fingerprint >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(low + (long) i * high, bits);
+                if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        public int getHashes() {
+            return hashes;
+        }
+
+        /**
+         * False-positive rate expected at the current number of clauses
+         */
+        public double getFalsePositiveRate() {
+            return Math.pow(1 - Math.exp(-(double) hashes * size / bits), hashes);
+        }
+
+        @Override
+        public double getOccupancy() {
+            return (double) size / expected;
+        }
+
+        @Override
+        public long getMemoryFootprint() {
+            return 8L * words.length;
+        }
+    }
+
+    /**
+     * Serialises access to a store that is not thread safe itself
+     */
+    static class SynchronizedVisitedStore implements VisitedStore {
+
+        private final VisitedStore store;
+
+        SynchronizedVisitedStore(VisitedStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public synchronized boolean add(Clause clause) {
+            return store.add(clause);
+        }
+
+        @Override
+        public synchronized boolean contains(Clause clause) {
+            return store.contains(clause);
+        }
+
+        @Override
+        public synchronized int size() {
+            return store.size();
+        }
+
+        @Override
+        public synchronized double getOccupancy() {
+            return store.getOccupancy();
+        }
+
+        @Override
+        public synchronized long getMemoryFootprint() {
+            return store.getMemoryFootprint();
+        }
+    }
+
+    /**
+     * Set of visited clauses that stores a 64-bit fingerprint per clause in an open-addressing table of primitive
+     * longs. Fingerprints are variant-normalized: literals are put in a canonical order (by symbol, sign and argument
+     * shape, ties keeping clause order) and variables are numbered by first occurrence, so clauses that differ only in
+     * variable names share a fingerprint without building a key string.
+     * <p>
+     * A fingerprint collision makes an unvisited clause look visited. When exact checking is enabled the canonical
+     * form of every clause is kept as well and compared on a fingerprint match, at the cost of one small array per
+     * entry.
+     * <p>
+     * Instances are not thread safe, see {@link #concurrent(boolean)}.
+     */
+    public static class FingerprintSet implements VisitedStore {
+
+        private static final int INITIAL_CAPACITY = 1 << 10;
+
+        private static final long EMPTY = 0L;
+
+        private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+        private final boolean exact;
+
+        private long[] fingerprints;
+
+        private int[][] forms;
+
+        private int size;
+
+        private long formBytes;
+
+        public FingerprintSet() {
+            this(false);
+        }
+
+        public FingerprintSet(boolean exact) {
+            this.exact = exact;
+            this.fingerprints = new long[INITIAL_CAPACITY];
+            this.forms = exact ? new int[INITIAL_CAPACITY][] : null;
+            this.size = 0;
+        }
+
+        /**
+         * Creates a set that can be shared by several threads; the table is split into stripes with a lock each
+         */
+        public static FingerprintSet concurrent(boolean exact) {
+            return new Striped(exact, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4));
+        }
+
+        @Override
+        public boolean add(Clause clause) {
+            if (!exact) {
+                return add(fingerprint(clause), null);
+            }
+            int[] form = canonicalForm(clause);
+            return add(hash(form), form);
+        }
+
+        @Override
+        public boolean contains(Clause clause) {
+            if (!exact) {
+                return indexOf(fingerprint(clause), null) >= 0;
+            }
+            int[] form = canonicalForm(clause);
+            return indexOf(hash(form), form) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Load factor of the table, which grows when it passes one half
+         */
+        @Override
+        public double getOccupancy() {
+            return (double) size / fingerprints.length;
+        }
+
+        @Override
+        public long getMemoryFootprint() {
+            return 8L * fingerprints.length + (exact ? 8L * forms.length + formBytes : 0);
+        }
+
+        public boolean isExact() {
+            return exact;
+        }
+
+        boolean add(long fingerprint, int[] form) {
+            int mask = fingerprints.length - 1;
+            int slot = (int) fingerprint & mask;
+            while (fingerprints[slot] != EMPTY) {
+                if (fingerprints[slot] == fingerprint && (!exact || Arrays.equals(forms[slot], form))) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            fingerprints[slot] = fingerprint;
+            if (exact) {
+                forms[slot] = form;
+                formBytes += 16L + 4L * form.length;
+            }
+            if (++size * 2 > fingerprints.length) {
+                grow();
+            }
+            return true;
+        }
+
+        private int indexOf(long fingerprint, int[] form) {
+            int mask = fingerprints.length - 1;
+            int slot = (int) fingerprint & mask;
+            while (fingerprints[slot] != EMPTY) {
+                if (fingerprints[slot] == fingerprint && (!exact || Arrays.equals(forms[slot], form))) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void grow() {
+            long[] oldFingerprints = fingerprints;
+            int[][] oldForms = forms;
+            fingerprints = new long[oldFingerprints.length * 2];
+            forms = exact ? new int[fingerprints.length][] : null;
+            int mask = fingerprints.length - 1;
+            for (int i = 0; i < oldFingerprints.length; i++) {
+                if (oldFingerprints[i] == EMPTY) {
+                    continue;
+                }
+                int slot = (int) oldFingerprints[i] & mask;
+                while (fingerprints[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                fingerprints[slot] = oldFingerprints[i];
+                if (exact) {
+                    forms[slot] = oldForms[i];
+                }
+            }
+        }
+
+        /**
+         * Variant-normalized 64-bit fingerprint of a clause
+         */
+        public static long fingerprint(Clause clause) {
+            return canonicalise(clause, null);
+        }
+
+        /**
+         * Canonical form of a clause: per literal in canonical order its symbol and sign, its arity and its argument
+         * codes, with variables renumbered by first occurrence. Two clauses with equal forms are variants.
+         */
+        public static int[] canonicalForm(Clause clause) {
+            int length = 0;
+            for (int i = 0; i < clause.size(); i++) {
+                length += 2 + clause.get(i).getArity();
+            }
+            int[] form = new int[length];
+            canonicalise(clause, form);
+            return form;
+        }
+
+        static long hash(int[] form) {
+            long hash = form.length;
+            for (int value : form) {
+                hash = mix(hash, value);
+            }
+            return finish(hash);
+        }
+
+        /**
+         * Walks the clause in canonical order, writing the canonical form if an array is given, and returns the
+         * fingerprint, which equals {@link #hash(int[])} of that form
+         */
+        private static long canonicalise(Clause clause, int[] form) {
+            int size = clause.size();
+            int[] order = new int[size];
+            long[] shapes = new long[size];
+            int arguments = 0;
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+                shapes[i] = getShape(clause.get(i), clause.isNegated(i));
+                arguments += clause.get(i).getArity();
+            }
+            /* Insertion sort keeps equal shapes in clause order; clauses are short */
+            for (int i = 1; i < size; i++) {
+                int current = order[i];
+                int j = i - 1;
+                while (j >= 0 && shapes[order[j]] > shapes[current]) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = current;
+            }
+            int[] variables = new int[arguments];
+            int count = 0;
+            int position = 0;
+            long hash = 2L * size + arguments;
+            for (int i : order) {
+                Predicate literal = clause.get(i);
+                int header = (literal.getSymbol() << 1) | (clause.isNegated(i) ? 1 : 0);
+                hash = mix(mix(hash, header), literal.getArity());
+                if (Objects.nonNull(form)) {
+                    form[position++] = header;
+                    form[position++] = literal.getArity();
+                }
+                for (int k = 0; k < literal.getArity(); k++) {
+                    int code = literal.getArgumentCode(k);
+                    if (code < 0) {
+                        int index = 0;
+                        while (index < count && variables[index] != code) {
+                            index++;
+                        }
+                        if (index == count) {
+                            variables[count++] = code;
+                        }
+                        code = ~index;
+                    }
+                    hash = mix(hash, code);
+                    if (Objects.nonNull(form)) {
+                        form[position++] = code;
+                    }
+                }
+            }
+            return finish(hash);
+        }
+
+        /**
+         * Hash of a literal that ignores variable names, used only to order literals
+         */
+        private static long getShape(Predicate literal, boolean negated) {
+            long shape = mix(literal.getSymbol(), negated ? 1 : 0);
+            for (int k = 0; k < literal.getArity(); k++) {
+                int code = literal.getArgumentCode(k);
+                shape = mix(shape, code < 0 ? -1 : code);
+            }
+            return shape;
+        }
+
+        private static long mix(long hash, long value) {
+            return Long.rotateLeft(hash ^ (value * MULTIPLIER), 31) * 0xBF58476D1CE4E5B9L;
+        }
+
+        /**
+         * Final avalanche; zero is reserved for empty slots
+         */
+        private static long finish(long hash) {
+            hash ^= hash >>> 33;
+            hash *= 0xFF51AFD7ED558CCDL;
+            hash ^= hash >>> 33;
+            hash *= 0xC4CEB9FE1A85EC53L;
+            hash ^= hash >>> 33;
+            return hash == EMPTY ? 1L : hash;
+        }
+
+        /**
+         * Thread-safe set made of independently locked stripes, chosen by the high bits of the fingerprint
+         */
+        private static class Striped extends FingerprintSet {
+
+            private final FingerprintSet[] stripes;
+
+            private final int shift;
+
+            Striped(boolean exact, int count) {
+                super(exact);
+                this.stripes = new FingerprintSet[count];
+                for (int i = 0; i < count; i++) {
+                    stripes[i] = new FingerprintSet(exact);
+                }
+                this.shift = 64 - Integer.numberOfTrailingZeros(count);
+            }
+
+            @Override
+            public boolean contains(Clause clause) {
+                int[] form = isExact() ? canonicalForm(clause) : null;
+                long fingerprint = isExact() ? hash(form) : fingerprint(clause);
+                FingerprintSet stripe = getStripe(fingerprint);
+                synchronized (stripe) {
+                    return stripe.indexOf(fingerprint, form) >= 0;
+                }
+            }
+
+            @Override
+            boolean add(long fingerprint, int[] form) {
+                FingerprintSet stripe = getStripe(fingerprint);
+                synchronized (stripe) {
+                    return stripe.add(fingerprint, form);
+                }
+            }
+
+            @Override
+            public int size() {
+                int size = 0;
+                for (FingerprintSet stripe : stripes) {
+                    synchronized (stripe) {
+                        size += stripe.size();
+                    }
+                }
+                return size;
+            }
+
+            @Override
+            public double getOccupancy() {
+                long slots = 0;
+                for (FingerprintSet stripe : stripes) {
+                    synchronized (stripe) {
+                        slots += stripe.fingerprints.length;
+                    }
+                }
+                return (double) size() / slots;
+            }
+
+            @Override
+            public long getMemoryFootprint() {
+                long bytes = 0;
+                for (FingerprintSet stripe : stripes) {
+                    synchronized (stripe) {
+                        bytes += stripe.getMemoryFootprint();
+                    }
                 }
+                return bytes;
             }
-            return expressions;
-        }
 
-        private int parseOperator(String sentence, List<Atom> expressions, int currentIndex) {
-            Operator operator = Operator.from(sentence.charAt(currentIndex));
-            if (operator == Operator.NOT) {
-                currentIndex += operator.getLength();
-                return parsePredicate(sentence, expressions, currentIndex, true);
+            private FingerprintSet getStripe(long fingerprint) {
+                return shift == 64 ? stripes[0] : stripes[(int) (fingerprint >>> shift)];
             }
-            expressions.add(operator);
-            return currentIndex + operator.getLength();
         }
+    }
 
-        private int parsePredicate(String sentence, List<Atom> expressions, int currentIndex, boolean negated) {
-            int i;
-            int j;
-            String name;
-            List<String> argumentNames;
+    /**
+     * Unifier that binds variables in place and records every change on an undo trail, so a failed attempt is rolled
+     * back instead of being signalled with an exception. Variable to variable bindings form chains that are followed
+     * (and compressed) union-find style. Unifying, dereferencing and undoing do not allocate; only {@link #apply}
+     * builds new literals, and only when a binding actually changes one.
+     * <p>
+     * Instances hold search state and are not thread safe.
+     */
+    public static class TrailUnifier {
 
-            /* Parse predicate name */
-            i = currentIndex;
-            j = sentence.indexOf(Constants.OPEN_BRACE, i);
-            name = sentence.substring(i, j);
+        public static final int UNIFIED = 0;
 
-            /* Parse argument names */
-            i = j + 1;
-            j = sentence.indexOf(Constants.CLOSE_BRACE, i);
-            argumentNames = Arrays.asList(sentence.substring(i, j).split(","));
+        public static final int SYMBOL_CLASH = 1;
 
-            /* Add predicate to the expressions list */
-            Predicate predicate = new Predicate(name, parseArguments(argumentNames), negated);
-            expressions.add(predicate);
+        public static final int ARITY_CLASH = 2;
 
-            return j + 1;
-        }
+        public static final int CONSTANT_CLASH = 3;
 
-        private List<Predicate.Argument> parseArguments(List<String> names) {
-            return names.stream()
-                    .map(this::parseArgument)
-                    .collect(Collectors.toList());
-        }
+        private static final int UNBOUND = Integer.MIN_VALUE;
 
-        private Predicate.Argument parseArgument(String name) {
-            char first = name.charAt(0);
-            if (Character.isUpperCase(first)) {
-                return new Predicate.Constant(name);
-            }
-            return new Predicate.Variable(name);
-        }
-    }
+        private static final int INITIAL_CAPACITY = 64;
 
-    public static class AlgebraHandler {
+        /* Argument code bound to each variable id, or UNBOUND */
+        private int[] bindings;
 
-        public boolean isCNF(Expression expression) {
-            if (expression.getType() == ExpressionType.OPERATOR && expression != Operator.AND) {
-                return false;
-            }
-            if (expression == Operator.AND) {
-                return true;
-            }
-            if (expression.getType() == ExpressionType.PREDICATE) {
-                return true;
-            }
-            Sentence sentence = (Sentence) expression;
-            Sentence pureDisjunction = (Sentence) getPureDisjunction(sentence);
-            if (Objects.nonNull(pureDisjunction)) {
-                return true;
-            }
-            boolean check = true;
-            for (Expression sentenceExpression : sentence.getExpressions()) {
-                check = check && isCNF(sentenceExpression);
-            }
-            return check;
-        }
+        /* Pairs of (variable id, previous binding) */
+        private int[] trail;
+
+        private int trailSize;
 
         /**
-         * Conjuncts two operables in CNF form and returns the result in CNF form
+         * Sizes the bindings for the variables interned so far; variables interned later grow them on demand
          */
-        public Expression and(Operand first, Operand second) {
-            Sentence flattenedFirst = flatten(first);
-            Sentence flattenedSecond = flatten(second);
-            List<Expression> expressions = new ArrayList<>(flattenedFirst.getExpressions());
-            expressions.add(Operator.AND);
-            expressions.addAll(flattenedSecond.getExpressions());
-            return new Sentence(expressions);
+        public TrailUnifier(SymbolTable symbols) {
+            this.bindings = new int[Math.max(INITIAL_CAPACITY, symbols.size())];
+            this.trail = new int[2 * INITIAL_CAPACITY];
+            this.trailSize = 0;
+            Arrays.fill(this.bindings, UNBOUND);
         }
 
         /**
-         * Disjuncts two operables in CNF form and returns the result in CNF form
+         * Unifies the arguments of two literals, ignoring their signs. On failure every binding made by this call is
+         * undone before the status code is returned.
          */
-        public Expression or(Operand first, Operand second) {
-            Sentence flattenedFirst = flatten(first);
-            Sentence flattenedSecond = flatten(second);
-            List<Expression> expressions = new ArrayList<>();
-            for (Expression a : flattenedFirst.getExpressions()) {
-                if (a == Operator.AND) {
-                    expressions.add(a);
+        public int unify(Predicate p, Predicate q) {
+            if (p.getSymbol() != q.getSymbol()) {
+                return SYMBOL_CLASH;
+            }
+            if (p.getArity() != q.getArity()) {
+                return ARITY_CLASH;
+            }
+            int mark = mark();
+            for (int i = 0; i < p.getArity(); i++) {
+                int a = dereference(p.getArgumentCode(i));
+                int b = dereference(q.getArgumentCode(i));
+                if (a == b) {
+                    continue;
+                }
+                if (a < 0) {
+                    bind(~a, b);
+                }
+                else if (b < 0) {
+                    bind(~b, a);
                 }
                 else {
-                    for (Expression b : flattenedSecond.getExpressions()) {
-                        if (b == Operator.AND) {
-                            expressions.add(b);
-                        }
-                        else {
-                            Sentence disjunction = new Sentence(a, Operator.OR, b);
-                            expressions.add(disjunction);
-                        }
-                    }
+                    undo(mark);
+                    return CONSTANT_CLASH;
                 }
             }
-            return new Sentence(expressions);
+            return UNIFIED;
         }
 
         /**
-         * Negates a sentence in CNF and returns it in CNF form
+         * One-way matching: binds only the variables of the pattern, treating the arguments of the target as fixed.
+         * Pattern variables are bound to raw target codes, so bindings made here must be undone before the unifier is
+         * used for {@link #unify} again.
          */
-        public Expression negate(Operand operand) {
-            return negateHelper(operand);
+        public int match(Predicate pattern, Predicate target) {
+            if (pattern.getSymbol() != target.getSymbol()) {
+                return SYMBOL_CLASH;
+            }
+            if (pattern.getArity() != target.getArity()) {
+                return ARITY_CLASH;
+            }
+            int mark = mark();
+            for (int i = 0; i < pattern.getArity(); i++) {
+                int a = pattern.getArgumentCode(i);
+                int b = target.getArgumentCode(i);
+                if (a >= 0 ? a != b : !matchVariable(~a, b)) {
+                    undo(mark);
+                    return CONSTANT_CLASH;
+                }
+            }
+            return UNIFIED;
+        }
+
+        public int mark() {
+            return trailSize;
         }
 
         /**
-         * Flattens a CNF operable into a single sentence
+         * Rolls every binding back to the state captured by {@link #mark()}
          */
-        public Sentence flatten(Operand operand) {
-            if (operand.getType() == ExpressionType.PREDICATE) {
-                return new Sentence(operand);
-            }
-            Sentence sentence = (Sentence) operand;
-            Sentence pureDisjunction = (Sentence) getPureDisjunction(sentence);
-            if (Objects.nonNull(pureDisjunction)) {
-                return new Sentence(pureDisjunction);
+        public void undo(int mark) {
+            while (trailSize > mark) {
+                trailSize -= 2;
+                bindings[trail[trailSize]] = trail[trailSize + 1];
             }
-            return (Sentence) flattenHelper(operand).getExpression();
         }
 
-        private FlattenResult flattenHelper(Expression expression) {
-            if (expression.getType() == ExpressionType.OPERATOR && expression != Operator.AND) {
-                throw new UnsupportedOperationException(String.format("Cannot flatten operator to CNF %s", expression));
-            }
-            if (expression == Operator.AND) {
-                return new FlattenResult(expression, false);
-            }
-            if (expression.getType() == ExpressionType.PREDICATE) {
-                return new FlattenResult(expression, false);
+        /**
+         * Follows the binding chain of an argument code down to a constant or an unbound variable
+         */
+        public int dereference(int code) {
+            if (code >= 0 || binding(~code) == UNBOUND) {
+                return code;
             }
-            Sentence sentence = (Sentence) expression;
-            Sentence pureDisjunction = (Sentence) getPureDisjunction(sentence);
-            if (Objects.nonNull(pureDisjunction)) {
-                return new FlattenResult(pureDisjunction, true);
+            int root = code;
+            while (root < 0 && binding(~root) != UNBOUND) {
+                root = bindings[~root];
             }
-            List<Expression> expressions = new ArrayList<>();
-            for (Expression sentenceExpression : sentence.getExpressions()) {
-                FlattenResult result = flattenHelper(sentenceExpression);
-                addFlattenedExpression(expressions, result);
+            /* Path compression, recorded on the trail so that undo restores the original chain */
+            while (code != root) {
+                int next = bindings[~code];
+                if (next != root) {
+                    bind(~code, root);
+                }
+                code = next;
             }
-            return new FlattenResult(new Sentence(expressions), false);
+            return root;
         }
 
-        private Operand getPureDisjunction(Sentence operable) {
-            try {
-                return getPureOperable(operable, Operator.OR);
-            }
-            catch (Exception ex) {
-                return null;
+        public Predicate apply(Predicate predicate) {
+            int[] codes = null;
+            for (int i = 0; i < predicate.getArity(); i++) {
+                int code = predicate.getArgumentCode(i);
+                int resolved = dereference(code);
+                if (resolved != code) {
+                    if (Objects.isNull(codes)) {
+                        codes = predicate.getArgumentCodes();
+                    }
+                    codes[i] = resolved;
+                }
             }
+            return Objects.isNull(codes) ? predicate : new Predicate(predicate, codes);
         }
 
-        private Operand getPureOperable(Operand operand, Operator operator) {
-            if (operand.getType() == ExpressionType.PREDICATE) {
-                return operand;
-            }
-            List<Expression> pureExpressions = new ArrayList<>();
-            Sentence sentence = (Sentence) operand;
-            for (Expression expression : sentence.getExpressions()) {
-                if (expression == operator) {
-                    pureExpressions.add(expression);
-                    continue;
-                }
-                else if (expression == operator.complement()) {
-                    throw new IllegalStateException(String.format("Not a pure %s expression", operator));
-                }
-                Operand pure = getPureOperable((Operand) expression, operator);
-                if (pure.getType() == ExpressionType.PREDICATE) {
-                    pureExpressions.add(pure);
+        public Clause apply(Clause clause) {
+            Predicate[] literals = null;
+            for (int i = 0; i < clause.size(); i++) {
+                Predicate literal = clause.get(i);
+                Predicate applied = apply(literal);
+                if (applied != literal && Objects.isNull(literals)) {
+                    literals = clause.getLiterals();
                 }
-                else {
-                    pureExpressions.addAll(((Sentence) pure).getExpressions());
+                if (Objects.nonNull(literals)) {
+                    literals[i] = applied;
                 }
             }
-            return new Sentence(pureExpressions);
+            return Objects.isNull(literals) ? clause : new Clause(literals);
         }
 
-        private void addFlattenedExpression(List<Expression> expressions, FlattenResult flattenResult) {
-            switch (flattenResult.getExpression().getType()) {
-                case OPERATOR:
-                case PREDICATE:
-                    expressions.add(flattenResult.getExpression());
-                    break;
-                case SENTENCE:
-                    Sentence sentence = (Sentence) flattenResult.getExpression();
-                    if (flattenResult.isDisjunction()) {
-                        expressions.add(sentence);
-                    }
-                    else {
-                        expressions.addAll(sentence.getExpressions());
-                    }
-                    break;
-                default:
-                    throw new UnsupportedOperationException(String.format("Expression of type %s not supported for flattening", flattenResult.getExpression()));
+        /**
+         * Checks whether two literals are equal under the current bindings, ignoring their signs
+         */
+        public boolean isEqual(Predicate p, Predicate q) {
+            if (p == q) {
+                return true;
             }
-        }
-
-        private Expression negateHelper(Operand operand) {
-            ExpressionType type = operand.getType();
-            switch (type) {
-                case PREDICATE:
-                    return negatePredicate((Predicate) operand);
-                case SENTENCE:
-                    return negateSentence((Sentence) operand);
-                default:
-                    throw new IllegalArgumentException(String.format("Expression of type %s cannot be negated", operand.getType()));
+            if (p.getSymbol() != q.getSymbol() || p.getArity() != q.getArity()) {
+                return false;
             }
+            for (int i = 0; i < p.getArity(); i++) {
+                if (dereference(p.getArgumentCode(i)) != dereference(q.getArgumentCode(i))) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        private Predicate negatePredicate(Predicate predicate) {
-            return new Predicate(predicate.getName(), predicate.getArguments(), !predicate.isNegated());
-        }
-
-        private Sentence negateSentence(Sentence sentence) {
-            List<Expression> negatedExpressions = new ArrayList<>();
-            for (Expression _expression : sentence.getExpressions()) {
-                if (_expression.getType() == ExpressionType.OPERATOR) {
-                    Operator operator = (Operator) _expression;
-                    negatedExpressions.add(operator.complement());
+        /**
+         * Snapshot of the current bindings, each variable mapped to the end of its binding chain, that stays valid
+         * after the bindings are undone
+         */
+        public Substitution capture() {
+            int[] variables = new int[trailSize / 2];
+            int count = 0;
+            for (int i = 0; i < trailSize; i += 2) {
+                int variable = trail[i];
+                if (bindings[variable] != UNBOUND && indexOf(variables, count, variable) < 0) {
+                    variables[count++] = variable;
                 }
-                else {
-                    negatedExpressions.add(negateHelper((Operand) _expression));
+            }
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                int code = ~variables[i];
+                while (code < 0 && binding(~code) != UNBOUND) {
+                    code = bindings[~code];
                 }
+                values[i] = code;
             }
-            return new Sentence(negatedExpressions);
+            return new Substitution(Arrays.copyOf(variables, count), values);
         }
 
-        private static class FlattenResult {
-
-            private final Expression expression;
-
-            private final boolean disjunction;
-
-            public FlattenResult(Expression expression, Boolean disjunction) {
-                this.expression = expression;
-                this.disjunction = disjunction;
-            }
-
-            public Expression getExpression() {
-                return expression;
+        private static int indexOf(int[] values, int length, int value) {
+            for (int i = 0; i < length; i++) {
+                if (values[i] == value) {
+                    return i;
+                }
             }
+            return -1;
+        }
 
-            public boolean isDisjunction() {
-                return disjunction;
+        private boolean matchVariable(int variable, int code) {
+            int bound = binding(variable);
+            if (bound == UNBOUND) {
+                bind(variable, code);
+                return true;
             }
+            return bound == code;
         }
-    }
 
-    public static class Unifier {
+        private int binding(int variable) {
+            return variable < bindings.length ? bindings[variable] : UNBOUND;
+        }
 
-        public Map<String, Predicate.Argument> getSubstitution(Predicate p, Predicate q) {
-            if (!p.getName().equals(q.getName())) {
-                throw new IllegalArgumentException(String.format("Cannot unify predicates with different names %s and %s", p, q));
+        private void bind(int variable, int code) {
+            if (variable >= bindings.length) {
+                int length = bindings.length;
+                bindings = Arrays.copyOf(bindings, Math.max(2 * length, variable + 1));
+                Arrays.fill(bindings, length, bindings.length, UNBOUND);
             }
-            if (p.getArguments().size() != q.getArguments().size()) {
-                throw new IllegalArgumentException(String.format("Cannot unify predicates with different number of arguments %s and %s", p, q));
-            }
-            try {
-                Map<String, Predicate.Argument> substitution = new HashMap<>();
-                for (int i = 0; i < p.getArguments().size(); i++) {
-                    Predicate.Argument a = p.getArguments().get(i);
-                    Predicate.Argument b = q.getArguments().get(i);
-                    if (a.getArgumentType() == Predicate.ArgumentType.CONSTANT && b.getArgumentType() == Predicate.ArgumentType.CONSTANT) {
-                        handleConstantSubstitution((Predicate.Constant) a, (Predicate.Constant) b, substitution);
-                    }
-                    else if (a.getArgumentType() == Predicate.ArgumentType.VARIABLE) {
-                        handleVariableSubstitution((Predicate.Variable) a, b, substitution);
-                    }
-                    else if (b.getArgumentType() == Predicate.ArgumentType.VARIABLE) {
-                        handleVariableSubstitution((Predicate.Variable) b, a, substitution);
-                    }
-                }
-                return substitution;
-            } catch (Exception ex) {
-                return null;
+            if (trailSize == trail.length) {
+                trail = Arrays.copyOf(trail, 2 * trail.length);
             }
+            trail[trailSize++] = variable;
+            trail[trailSize++] = bindings[variable];
+            bindings[variable] = code;
         }
+    }
 
-        public Sentence apply(Sentence sentence, Map<String, Predicate.Argument> substitution) {
-            List<Expression> expressions = new ArrayList<>();
-            for (Expression expression : sentence.getExpressions()) {
-                if (expression.getType() == ExpressionType.OPERATOR) {
-                    expressions.add(expression);
-                }
-                if (expression.getType() == ExpressionType.PREDICATE) {
-                    Predicate predicate = (Predicate) expression;
-                    expressions.add(apply(predicate, substitution));
-                }
-            }
-            return new Sentence(expressions);
+    /**
+     * Variable bindings captured from a {@link TrailUnifier}, applied to clauses on demand
+     */
+    public static class Substitution {
+
+        private final int[] variables;
+
+        private final int[] values;
+
+        public Substitution(int[] variables, int[] values) {
+            this.variables = variables;
+            this.values = values;
         }
 
-        Predicate apply(Predicate predicate, Map<String, Predicate.Argument> substitution) {
-            List<Predicate.Argument> arguments = new ArrayList<>();
-            for (Predicate.Argument argument : predicate.getArguments()) {
-                if (argument.getArgumentType() == Predicate.ArgumentType.VARIABLE && substitution.containsKey(argument.getName())) {
-                    arguments.add(substitution.get(argument.getName()));
-                }
-                else {
-                    arguments.add(argument);
-                }
-            }
-            return new Predicate(predicate.getName(), arguments, predicate.isNegated());
+        public int size() {
+            return variables.length;
         }
 
-        private void handleConstantSubstitution(Predicate.Constant a, Predicate.Constant b, Map<String, Predicate.Argument> substitution) {
-            if (!a.getName().equals(b.getName())) {
-                throw new IllegalArgumentException("Cannot unify constants with different values");
+        public int apply(int code) {
+            if (code >= 0) {
+                return code;
             }
-            substitution.put(a.getName(), b);
+            for (int i = 0; i < variables.length; i++) {
+                if (variables[i] == ~code) {
+                    return values[i];
+                }
+            }
+            return code;
         }
 
-        private void handleVariableSubstitution(Predicate.Variable variable, Predicate.Argument argument, Map<String, Predicate.Argument> substitution) {
-            Predicate.Argument existing = substitution.get(variable.getName());
-            if (Objects.isNull(existing)) {
-                substitution.put(variable.getName(), argument);
-            } else if (!existing.equals(argument)) {
-                throw new IllegalArgumentException(String.format("Cannot unify a variable %s with two different constants %s %s", variable.getName(), argument.getName(), substitution.get(variable.getName()).getName()));
+        public Predicate apply(Predicate predicate) {
+            int[] codes = null;
+            for (int i = 0; i < predicate.getArity(); i++) {
+                int code = predicate.getArgumentCode(i);
+                int resolved = apply(code);
+                if (resolved != code) {
+                    if (Objects.isNull(codes)) {
+                        codes = predicate.getArgumentCodes();
+                    }
+                    codes[i] = resolved;
+                }
             }
+            return Objects.isNull(codes) ? predicate : new Predicate(predicate, codes);
+        }
+
+        public Clause apply(Clause clause) {
+            Predicate[] literals = null;
+            for (int i = 0; i < clause.size(); i++) {
+                Predicate literal = clause.get(i);
+                Predicate applied = apply(literal);
+                if (applied != literal && Objects.isNull(literals)) {
+                    literals = clause.getLiterals();
+                }
+                if (Objects.nonNull(literals)) {
+                    literals[i] = applied;
+                }
+            }
+            return Objects.isNull(literals) ? clause : new Clause(literals);
         }
     }
 
@@ -963,16 +5337,67 @@ public class homework {
 
     public static class Predicate implements Atom, Operand {
 
-        private final String name;
+        private final SymbolTable symbols;
 
-        private final List<Argument> arguments;
+        private final int symbol;
+
+        private final String name;
 
         private final boolean negated;
 
-        public Predicate(String name, List<Argument> arguments, boolean negated) {
+        /**
+         * Packed literal: the interned predicate symbol followed by the code of every argument. The arguments
+         * themselves are not kept, they are looked up in the symbol table by code when asked for.
+         */
+        private final int[] packed;
+
+        private final int hash;
+
+        public Predicate(SymbolTable symbols, String name, List<Argument> arguments, boolean negated) {
+            this(symbols, symbols.intern(name), name, arguments, negated);
+        }
+
+        public Predicate(SymbolTable symbols, int symbol, String name, List<Argument> arguments, boolean negated) {
+            this(symbols, name, pack(symbol, arguments), negated);
+        }
+
+        /**
+         * The same literal with the given sign
+         */
+        public Predicate(Predicate predicate, boolean negated) {
+            this(predicate.symbols, predicate.name, predicate.packed, negated);
+        }
+
+        /**
+         * The same literal with the given argument codes, see {@link Argument#getCode()}
+         */
+        Predicate(Predicate predicate, int[] codes) {
+            this(predicate.symbols, predicate.name, pack(predicate.symbol, codes), predicate.negated);
+        }
+
+        private Predicate(SymbolTable symbols, String name, int[] packed, boolean negated) {
+            this.symbols = symbols;
+            this.symbol = packed[0];
             this.name = name;
-            this.arguments = arguments;
             this.negated = negated;
+            this.packed = packed;
+            this.hash = Arrays.hashCode(packed);
+        }
+
+        private static int[] pack(int symbol, List<Argument> arguments) {
+            int[] packed = new int[arguments.size() + 1];
+            packed[0] = symbol;
+            for (int i = 0; i < arguments.size(); i++) {
+                packed[i + 1] = arguments.get(i).getCode();
+            }
+            return packed;
+        }
+
+        private static int[] pack(int symbol, int[] codes) {
+            int[] packed = new int[codes.length + 1];
+            packed[0] = symbol;
+            System.arraycopy(codes, 0, packed, 1, codes.length);
+            return packed;
         }
 
         @Override
@@ -980,14 +5405,54 @@ public class homework {
             return ExpressionType.PREDICATE;
         }
 
+        public int getSymbol() {
+            return symbol;
+        }
+
         public String getName() {
             return name;
         }
 
+        /**
+         * Table the symbol and arguments of this literal are interned in
+         */
+        public SymbolTable getSymbols() {
+            return symbols;
+        }
+
+        /**
+         * Looks the arguments up by their codes; every call builds a new list
+         */
         public List<Argument> getArguments() {
+            List<Argument> arguments = new ArrayList<>(getArity());
+            for (int i = 0; i < getArity(); i++) {
+                arguments.add(getArgument(i));
+            }
             return arguments;
         }
 
+        public Argument getArgument(int position) {
+            return symbols.argument(packed[position + 1]);
+        }
+
+        public int getArity() {
+            return packed.length - 1;
+        }
+
+        /**
+         * Returns the code of the argument at the given position, see {@link Argument#getCode()}
+         */
+        public int getArgumentCode(int position) {
+            return packed[position + 1];
+        }
+
+        /**
+         * Copies the codes of all arguments, in order
+         */
+        int[] getArgumentCodes() {
+            return Arrays.copyOfRange(packed, 1, packed.length);
+        }
+
         public boolean isNegated() {
             return negated;
         }
@@ -1003,7 +5468,7 @@ public class homework {
         }
 
         public String getKey() {
-            return String.format("%s(%s)", name, arguments.stream().map(Argument::toString).collect(Collectors.joining(",")));
+            return String.format("%s(%s)", name, getArguments().stream().map(Argument::toString).collect(Collectors.joining(",")));
         }
 
         @Override
@@ -1011,7 +5476,7 @@ public class homework {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             Predicate predicate = (Predicate) o;
-            return name.equals(predicate.name) && arguments.equals(predicate.arguments);
+            return hash == predicate.hash && Arrays.equals(packed, predicate.packed);
         }
 
         public boolean isNegation(Predicate other) {
@@ -1020,20 +5485,34 @@ public class homework {
 
         @Override
         public int hashCode() {
-            return Objects.hash(name, arguments);
+            return hash;
         }
 
         public static abstract class Argument {
 
+            private final int id;
+
             private final String name;
 
             private final ArgumentType argumentType;
 
-            protected Argument(String name, ArgumentType argumentType) {
+            protected Argument(int id, String name, ArgumentType argumentType) {
+                this.id = id;
                 this.name = name;
                 this.argumentType = argumentType;
             }
 
+            public int getId() {
+                return id;
+            }
+
+            /**
+             * Encodes the argument as a single int: constants map to their symbol, variables to its complement
+             */
+            public int getCode() {
+                return argumentType == ArgumentType.CONSTANT ? id : ~id;
+            }
+
             public String getName() {
                 return name;
             }
@@ -1052,25 +5531,26 @@ public class homework {
                 if (this == o) return true;
                 if (o == null || getClass() != o.getClass()) return false;
                 Argument argument = (Argument) o;
-                return name.equals(argument.name) && argumentType == argument.argumentType;
+                return id == argument.id && argumentType == argument.argumentType;
             }
 
             @Override
             public int hashCode() {
-                return Objects.hash(name, argumentType);
+                return getCode();
             }
         }
 
         public static class Variable extends Argument {
-            public Variable(String name) {
-                super(name, ArgumentType.VARIABLE);
+
+            Variable(int id, String name) {
+                super(id, name, ArgumentType.VARIABLE);
             }
         }
 
         public static class Constant extends Argument {
 
-            public Constant(String name) {
-                super(name, ArgumentType.CONSTANT);
+            Constant(int id, String name) {
+                super(id, name, ArgumentType.CONSTANT);
             }
         }
 
@@ -1081,6 +5561,139 @@ public class homework {
         }
     }
 
+    /**
+     * Interns predicate names, constants and variables into dense integer ids, so that the prover compares ints
+     * instead of strings. Arguments are interned as well, so every occurrence of a symbol shares one instance. A
+     * table belongs to the tokeniser it was created for and to the knowledge bases parsed with it, and is released
+     * together with them.
+     */
+    public static class SymbolTable {
+
+        private final Map<String, Integer> ids;
+
+        private final List<String> names;
+
+        private final Map<Integer, Predicate.Constant> constants;
+
+        private final Map<Integer, Predicate.Variable> variables;
+
+        public SymbolTable() {
+            this.ids = new ConcurrentHashMap<>();
+            this.names = new ArrayList<>();
+            this.constants = new ConcurrentHashMap<>();
+            this.variables = new ConcurrentHashMap<>();
+        }
+
+        public int intern(String name) {
+            Integer id = ids.get(name);
+            if (Objects.nonNull(id)) {
+                return id;
+            }
+            synchronized (this) {
+                return ids.computeIfAbsent(name, key -> {
+                    names.add(key);
+                    return names.size() - 1;
+                });
+            }
+        }
+
+        public synchronized String getName(int id) {
+            return names.get(id);
+        }
+
+        public synchronized int size() {
+            return names.size();
+        }
+
+        public Predicate.Constant constant(String name) {
+            int id = intern(name);
+            return constants.computeIfAbsent(id, key -> new Predicate.Constant(key, name));
+        }
+
+        public Predicate.Variable variable(String name) {
+            int id = intern(name);
+            return variables.computeIfAbsent(id, key -> new Predicate.Variable(key, name));
+        }
+
+        /**
+         * Returns the shared argument instance for an argument code, see {@link Predicate.Argument#getCode()}
+         */
+        public Predicate.Argument argument(int code) {
+            if (code >= 0) {
+                return constants.computeIfAbsent(code, key -> new Predicate.Constant(key, getName(key)));
+            }
+            return variables.computeIfAbsent(~code, key -> new Predicate.Variable(key, getName(key)));
+        }
+    }
+
+    /**
+     * Immutable formula in negation normal form: literals combined by conjunction and disjunction. Every node caches
+     * the number of clauses that distributing it into CNF would produce, so size checks never rescan a subtree.
+     */
+    public static class Formula {
+
+        public enum Connective {
+            LITERAL,
+            AND,
+            OR
+        }
+
+        private final Connective connective;
+
+        private final Predicate literal;
+
+        private final Formula first;
+
+        private final Formula second;
+
+        private final long clauses;
+
+        private Formula(Connective connective, Predicate literal, Formula first, Formula second, long clauses) {
+            this.connective = connective;
+            this.literal = literal;
+            this.first = first;
+            this.second = second;
+            this.clauses = clauses;
+        }
+
+        public static Formula literal(Predicate literal) {
+            return new Formula(Connective.LITERAL, literal, null, null, 1);
+        }
+
+        public static Formula and(Formula first, Formula second) {
+            long clauses = first.clauses > Long.MAX_VALUE - second.clauses ? Long.MAX_VALUE : first.clauses + second.clauses;
+            return new Formula(Connective.AND, null, first, second, clauses);
+        }
+
+        public static Formula or(Formula first, Formula second) {
+            long clauses = second.clauses > Long.MAX_VALUE / first.clauses ? Long.MAX_VALUE : first.clauses * second.clauses;
+            return new Formula(Connective.OR, null, first, second, clauses);
+        }
+
+        public Connective getConnective() {
+            return connective;
+        }
+
+        public Predicate getLiteral() {
+            return literal;
+        }
+
+        public Formula getFirst() {
+            return first;
+        }
+
+        public Formula getSecond() {
+            return second;
+        }
+
+        /**
+         * Number of clauses in the distributed CNF, saturating at Long.MAX_VALUE
+         */
+        public long getClauses() {
+            return clauses;
+        }
+    }
+
     public static class Sentence implements Operand {
 
         private final List<Expression> expressions;
@@ -1114,6 +5727,103 @@ public class homework {
         }
     }
 
+    /**
+     * Immutable pure disjunction used by the resolution engine. Literals are kept in a flat array alongside a sign
+     * bitmap, so the prover never has to skip over interleaved OR operators.
+     */
+    public static class Clause {
+
+        private final Predicate[] literals;
+
+        private final int size;
+
+        private final long[] signs;
+
+        private final int hash;
+
+        public Clause(Predicate... literals) {
+            this.literals = literals;
+            this.size = literals.length;
+            this.signs = new long[(size + 63) >>> 6];
+            int hash = 1;
+            for (int i = 0; i < size; i++) {
+                if (literals[i].isNegated()) {
+                    signs[i >>> 6] |= 1L << i;
+                }
+                hash = 31 * hash + (literals[i].hashCode() ^ (literals[i].isNegated() ? 1 : 0));
+            }
+            this.hash = hash;
+        }
+
+        /**
+         * Converts a pure disjunction sentence into a clause
+         */
+        public static Clause of(Sentence disjunction) {
+            List<Predicate> predicates = new ArrayList<>();
+            for (Expression expression : disjunction.getExpressions()) {
+                if (expression.getType() == ExpressionType.PREDICATE) {
+                    predicates.add((Predicate) expression);
+                }
+                else if (expression != Operator.OR) {
+                    throw new IllegalArgumentException(String.format("Sentence %s is not a pure disjunction", disjunction));
+                }
+            }
+            return new Clause(predicates.toArray(new Predicate[0]));
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isUnit() {
+            return size == 1;
+        }
+
+        public Predicate get(int index) {
+            return literals[index];
+        }
+
+        public boolean isNegated(int index) {
+            return (signs[index >>> 6] & (1L << index)) != 0;
+        }
+
+        /**
+         * Returns a copy of the literal array
+         */
+        public Predicate[] getLiterals() {
+            return Arrays.copyOf(literals, size);
+        }
+
+        public Sentence toSentence() {
+            List<Expression> expressions = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    expressions.add(Operator.OR);
+                }
+                expressions.add(literals[i]);
+            }
+            return new Sentence(expressions);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Clause clause = (Clause) o;
+            return hash == clause.hash && Arrays.equals(signs, clause.signs) && Arrays.equals(literals, clause.literals);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return toSentence().toString();
+        }
+    }
+
     public enum ExpressionType {
 
         PREDICATE,
@@ -1212,25 +5922,93 @@ public class homework {
         public static final char CLOSE_BRACE = ')';
 
         public static final char OPEN_BRACE = '(';
-
-        public static final String VAR = "var";
     }
 
     public static class FileHandler {
 
+        /**
+         * Loads a query, a fact count and the facts. Several queries can be given instead of one by starting the file
+         * with the number of queries, followed by one query per line. The fact count may be missing or wrong, see
+         * {@link #stream}.
+         */
         public Configuration load(String path) throws IOException {
-            String query;
-            int size;
             List<String> facts = new ArrayList<>();
-            File file = new File(path);
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            query = reader.readLine();
-            size = Integer.parseInt(reader.readLine());
-            for (int i = 0; i < size; i++) {
-                facts.add(reader.readLine());
+            List<String> queries = stream(path, fact -> facts.add(fact.toString()));
+            return new Configuration(queries, facts.size(), facts);
+        }
+
+        /**
+         * Reads the same input as {@link #load}, but hands every fact to the consumer as soon as it is read instead of
+         * keeping it, and returns the queries. The sequence passed to the consumer is only valid during the call. The
+         * fact count is only skipped, never trusted: every non-blank line after the queries is a fact.
+         */
+        public List<String> stream(String path, Consumer<CharSequence> facts) throws IOException {
+            return stream(path, (fact, line) -> {
+                try {
+                    facts.accept(fact);
+                }
+                catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException(String.format("%s, line %d: %s", path, line, ex.getMessage()), ex);
+                }
+            });
+        }
+
+        /**
+         * Like {@link #stream(String, Consumer)}, but also hands over the line number of every fact, and leaves error
+         * reporting to the consumer. Queries are trimmed and never blank, and the returned list is never empty: a
+         * file without any query, with a blank query line or with a query count of zero is rejected.
+         */
+        public List<String> stream(String path, ObjIntConsumer<CharSequence> facts) throws IOException {
+            List<String> queries = new ArrayList<>();
+            try (MappedLineReader reader = new MappedLineReader(path)) {
+                CharSequence line = reader.readLine();
+                if (Objects.isNull(line)) {
+                    throw new IllegalArgumentException(String.format("%s has no query", path));
+                }
+                String first = line.toString().trim();
+                if (first.isEmpty() || first.chars().allMatch(c -> c == '0')) {
+                    throw new IllegalArgumentException(String.format("%s, line %d: no query", path, reader.getLineNumber()));
+                }
+                if (isCount(first)) {
+                    int count = Integer.parseInt(first);
+                    for (int i = 0; i < count; i++) {
+                        line = reader.readLine();
+                        if (Objects.isNull(line)) {
+                            throw new IllegalArgumentException(String.format("%s has %d of %d queries", path, i, count));
+                        }
+                        String query = line.toString().trim();
+                        if (query.isEmpty()) {
+                            throw new IllegalArgumentException(String.format("%s, line %d: no query", path, reader.getLineNumber()));
+                        }
+                        queries.add(query);
+                    }
+                }
+                else {
+                    queries.add(first);
+                }
+                boolean header = true;
+                while (Objects.nonNull(line = reader.readLine())) {
+                    if (isBlank(line)) {
+                        continue;
+                    }
+                    if (header) {
+                        header = false;
+                        if (isCount(line.toString().trim())) {
+                            continue;
+                        }
+                    }
+                    facts.accept(line, reader.getLineNumber());
+                }
             }
-            reader.close();
-            return new Configuration(query, size, facts);
+            return queries;
+        }
+
+        private boolean isCount(String line) {
+            return !line.isEmpty() && line.chars().allMatch(Character::isDigit);
+        }
+
+        private boolean isBlank(CharSequence line) {
+            return line.chars().allMatch(Character::isWhitespace);
         }
 
         public void writeOutput(boolean result, String path) throws IOException {
@@ -1239,6 +6017,147 @@ public class homework {
             writer.write(resultString);
             writer.close();
         }
+
+        /**
+         * Writes one answer per line, in query order
+         */
+        public void writeOutput(List<Boolean> results, String path) throws IOException {
+            BufferedWriter writer = new BufferedWriter(new FileWriter(path, false));
+            for (boolean result : results) {
+                writer.write(result ? Constants.TRUE : Constants.FALSE);
+                writer.newLine();
+            }
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads the lines of a file through memory-mapped windows, decoding each line into a reused buffer. Only the
+     * current window is mapped, so files larger than the address range of one buffer can be read.
+     */
+    static class MappedLineReader implements Closeable {
+
+        static final int DEFAULT_WINDOW = 1 << 26;
+
+        private final FileChannel channel;
+
+        private final long length;
+
+        private final int windowSize;
+
+        private final CharsetDecoder decoder;
+
+        private MappedByteBuffer window;
+
+        private long base;
+
+        private long position;
+
+        private int lineNumber;
+
+        private CharBuffer line;
+
+        MappedLineReader(String path) throws IOException {
+            this(path, DEFAULT_WINDOW);
+        }
+
+        MappedLineReader(String path, int windowSize) throws IOException {
+            this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            this.length = channel.size();
+            this.windowSize = windowSize;
+            this.decoder = StandardCharsets.UTF_8.newDecoder();
+            this.base = 0;
+            this.position = 0;
+            this.lineNumber = 0;
+            this.line = CharBuffer.allocate(256);
+        }
+
+        /**
+         * Returns the next line without its terminator, or null at the end of the file. The returned buffer is
+         * overwritten by the next call.
+         */
+        CharSequence readLine() throws IOException {
+            if (position >= length) {
+                return null;
+            }
+            long end = indexOfNewline(position);
+            long next = end + 1;
+            if (end > position && getByte(end - 1) == '\r') {
+                end--;
+            }
+            if (end - position > Integer.MAX_VALUE) {
+                throw new IllegalStateException(String.format("Line %d is longer than %d bytes", lineNumber + 1, Integer.MAX_VALUE));
+            }
+            int size = (int) (end - position);
+            if (position < base || end > base + window.limit()) {
+                map(position, size);
+            }
+            ByteBuffer bytes = window.duplicate();
+            bytes.limit((int) (end - base)).position((int) (position - base));
+            decode(bytes);
+            position = next;
+            lineNumber++;
+            return line;
+        }
+
+        /**
+         * Number of lines read so far, which is the number of the last line returned
+         */
+        int getLineNumber() {
+            return lineNumber;
+        }
+
+        private long indexOfNewline(long from) throws IOException {
+            long i = from;
+            while (i < length) {
+                if (Objects.isNull(window) || i < base || i >= base + window.limit()) {
+                    map(i, 0);
+                }
+                for (int j = (int) (i - base); j < window.limit(); j++) {
+                    if (window.get(j) == '\n') {
+                        return base + j;
+                    }
+                }
+                i = base + window.limit();
+            }
+            return length;
+        }
+
+        private byte getByte(long offset) throws IOException {
+            if (offset < base || offset >= base + window.limit()) {
+                map(offset, 0);
+            }
+            return window.get((int) (offset - base));
+        }
+
+        /**
+         * Maps a window starting at the given offset that covers at least the given number of bytes
+         */
+        private void map(long offset, int size) throws IOException {
+            base = offset;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(length - offset, Math.max(size, windowSize)));
+        }
+
+        private void decode(ByteBuffer bytes) throws CharacterCodingException {
+            /* UTF-8 never decodes to more chars than it has bytes */
+            if (line.capacity() < bytes.remaining()) {
+                line = CharBuffer.allocate(Math.max(bytes.remaining(), 2 * line.capacity()));
+            }
+            line.clear();
+            decoder.reset();
+            CoderResult result = decoder.decode(bytes, line, true);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+            decoder.flush(line);
+            line.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
     }
 
     public static class Utils {
@@ -1249,5 +6168,12 @@ public class homework {
             }
             return list;
         }
+
+        public static <E> Set<E> emptyIfNull(Set<E> set) {
+            if (Objects.isNull(set)) {
+                return Collections.emptySet();
+            }
+            return set;
+        }
     }
 }
@@ -1,23 +1,32 @@
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class HomeworkTest {
 
     private homework.ExpressionParser expressionParser;
+    private homework.SymbolTable symbols;
+
     private homework.AlgebraHandler algebraHandler;
 
     private homework.Unifier unifier;
@@ -26,23 +35,96 @@ class HomeworkTest {
 
     @BeforeEach
     void setUp() throws IOException {
-        this.expressionParser = new homework.ExpressionParser(new homework.Tokeniser(), new homework.AlgebraHandler());
+        this.symbols = new homework.SymbolTable();
+        this.expressionParser = new homework.ExpressionParser(new homework.Tokeniser(symbols), new homework.AlgebraHandler());
         this.algebraHandler = new homework.AlgebraHandler();
         this.unifier = new homework.Unifier();
-        this.base = new homework.KnowledgeBase(getConfiguration(), expressionParser, algebraHandler, unifier);
+        this.base = new homework.KnowledgeBase(getConfiguration(), expressionParser, algebraHandler);
     }
 
     @Test
     void testPredicateEqualityWorksAsExpected() {
-        homework.Predicate a = new homework.Predicate("Pred123", Collections.singletonList(new homework.Predicate.Variable("x")), false);
-        homework.Predicate b = new homework.Predicate("Pred123", Collections.singletonList(new homework.Predicate.Variable("x")), false);
+        homework.Predicate a = new homework.Predicate(symbols, "Pred123", Collections.singletonList(symbols.variable("x")), false);
+        homework.Predicate b = new homework.Predicate(symbols, "Pred123", Collections.singletonList(symbols.variable("x")), false);
         assertEquals(a, b);
 
-        a = new homework.Predicate("Pred123", Collections.singletonList(new homework.Predicate.Variable("y")), false);
-        b = new homework.Predicate("Pred123", Collections.singletonList(new homework.Predicate.Variable("x")), false);
+        a = new homework.Predicate(symbols, "Pred123", Collections.singletonList(symbols.variable("y")), false);
+        b = new homework.Predicate(symbols, "Pred123", Collections.singletonList(symbols.variable("x")), false);
         assertNotEquals(a, b);
     }
 
+    @Test
+    void testSymbolInterningWorksAsExpected() {
+        assertEquals(symbols.intern("Pred123"), symbols.intern("Pred123"));
+        assertNotEquals(symbols.intern("Pred123"), symbols.intern("Pred124"));
+        assertEquals("Pred123", symbols.getName(symbols.intern("Pred123")));
+
+        homework.Predicate a = (homework.Predicate) expressionParser.fromString("Pred123(x,Const)");
+        homework.Predicate b = (homework.Predicate) expressionParser.fromString("~Pred123(x,Const)");
+        assertEquals(a.getSymbol(), b.getSymbol());
+        assertSame(a.getArgument(0), b.getArgument(0));
+        assertSame(a.getArgument(1), b.getArgument(1));
+        assertEquals(~symbols.intern("x"), a.getArgumentCode(0));
+        assertEquals(symbols.intern("Const"), a.getArgumentCode(1));
+        assertEquals(a, b);
+        assertTrue(a.isNegation(b));
+        assertEquals(getPredicate("Pred123", false, "x", "Const"), a);
+
+        /* Arguments are looked up from the packed codes, and a literal with the other sign shares them */
+        homework.Predicate negated = new homework.Predicate(a, true);
+        assertEquals(b, negated);
+        assertTrue(negated.isNegated());
+        assertEquals(Arrays.asList(a.getArgument(0), a.getArgument(1)), negated.getArguments());
+        assertEquals("~Pred123(x,Const)", negated.toString());
+
+        /* Each tokeniser interns into a table of its own, so symbols do not outlive the knowledge bases using them */
+        homework.Tokeniser other = new homework.Tokeniser();
+        other.tokenise("Unshared(x,Elsewhere)");
+        assertEquals(3, other.getSymbols().size());
+        assertEquals(0, new homework.Tokeniser().getSymbols().size());
+    }
+
+    @Test
+    void testTokeniserWorksAsExpected() {
+        homework.Tokeniser tokeniser = new homework.Tokeniser(symbols);
+        List<homework.Atom> spaced = tokeniser.tokenise(" A(x, Const) &  ~ B_1 (y)=>C(x) ");
+        List<homework.Atom> compact = tokeniser.tokenise("A(x,Const)&~B_1(y)=>C(x)");
+        assertEquals(compact, spaced);
+        assertEquals(5, spaced.size());
+        assertEquals(homework.Operator.AND, spaced.get(1));
+        assertEquals(homework.Operator.IMPLIES, spaced.get(3));
+        assertTrue(((homework.Predicate) spaced.get(2)).isNegated());
+        assertEquals(getPredicate("B_1", true, "y"), spaced.get(2));
+        assertSame(((homework.Predicate) spaced.get(0)).getArgument(1), ((homework.Predicate) compact.get(0)).getArgument(1));
+        assertEquals(tokeniser.getSymbols().intern("A"), ((homework.Predicate) spaced.get(0)).getSymbol());
+
+        /* Enough distinct names to grow the cache */
+        for (int i = 0; i < 1000; i++) {
+            homework.Predicate predicate = (homework.Predicate) tokeniser.tokenise(String.format("Grow%d(C%d)", i, i)).get(0);
+            assertEquals(String.format("Grow%d(C%d)", i, i), predicate.toString());
+        }
+        assertEquals(compact, tokeniser.tokenise("A(x,Const)&~B_1(y)=>C(x)"));
+
+        /* The cache grows while the arguments of a predicate are looked up */
+        homework.Tokeniser growing = new homework.Tokeniser();
+        for (int i = 0; i < 1000; i++) {
+            homework.Predicate predicate = (homework.Predicate) growing.tokenise(String.format("Name%d(C%da,C%db)", i, i, i)).get(0);
+            assertEquals(String.format("Name%d(C%da,C%db)", i, i, i), predicate.toString());
+        }
+    }
+
+    @Test
+    void testTokeniserReportsErrorColumns() {
+        homework.Tokeniser tokeniser = new homework.Tokeniser(symbols);
+        assertTrue(assertThrows(IllegalArgumentException.class, () -> tokeniser.tokenise("A(x)&")).getMessage().contains("column 6"));
+        assertTrue(assertThrows(IllegalArgumentException.class, () -> tokeniser.tokenise("A(x) B(x)")).getMessage().contains("column 6"));
+        assertTrue(assertThrows(IllegalArgumentException.class, () -> tokeniser.tokenise("A(x,)")).getMessage().contains("column 5"));
+        assertTrue(assertThrows(IllegalArgumentException.class, () -> tokeniser.tokenise("A(x")).getMessage().contains("column 4"));
+        assertTrue(assertThrows(IllegalArgumentException.class, () -> tokeniser.tokenise("A(x)=B(x)")).getMessage().contains("column 5"));
+        assertTrue(assertThrows(IllegalArgumentException.class, () -> tokeniser.tokenise("(x)")).getMessage().contains("column 1"));
+        assertThrows(IllegalArgumentException.class, () -> tokeniser.tokenise("  "));
+    }
+
     @Test
     void tesParseWorksAsExpected() {
         homework.Sentence sentence = (homework.Sentence) expressionParser.fromString("A(x)|B(y)&D(z)|C(x)=>E(x)");
@@ -94,6 +176,81 @@ class HomeworkTest {
         assertEquals("((~A(x)|~B(x)|D(x))&(~A(x)|~B(x)|E(x))&(~C(x)|D(x))&(~C(x)|E(x)))", expressionParser.toCNF(getSentence("A(x)&B(x)|C(x)=>D(x)&E(x)")).toString());
     }
 
+    @Test
+    void testNormalFormWorksAsExpected() {
+        homework.Formula formula = expressionParser.toFormula(getSentence("A(x)&B(x)|C(x)=>~D(x)"), false);
+        assertEquals(homework.Formula.Connective.OR, formula.getConnective());
+        assertEquals(homework.Formula.Connective.AND, formula.getFirst().getConnective());
+        assertEquals(homework.Formula.Connective.OR, formula.getFirst().getFirst().getConnective());
+        assertEquals(getPredicate("A", true, "x"), formula.getFirst().getFirst().getFirst().getLiteral());
+        assertTrue(formula.getFirst().getFirst().getFirst().getLiteral().isNegated());
+        assertTrue(formula.getSecond().getLiteral().isNegated());
+        assertEquals(2, formula.getClauses());
+        assertEquals(3, expressionParser.toFormula(getSentence("A(x)&B(x)|C(x)=>~D(x)"), true).getClauses());
+
+        /* The single pass produces the same clauses, in the same order, as distributing with the algebra handler */
+        String[] lines = {
+                "A(x)", "~A(x)|B(x)", "A(x)&B(y)|C(x)&~D(y)|E(x)", "A(x)|B(x)&C(x)=>D(x)&E(x)|F(x)",
+                "~A(x)&B(x)|~C(x)=>~D(x)", "A(x)&A(x)|A(x)&B(x)", "A(x)=>B(x)|C(x)&D(x)&E(x)|F(x)"
+        };
+        for (String line : lines) {
+            assertEquals(getDistributedCNF(expressionParser.fromString(line)).toString(), expressionParser.toCNF(line).toString(), line);
+        }
+        assertEquals("(A(x)&B(x)&C(x))", expressionParser.toCNF(getSentence(getPredicate("A"), homework.Operator.AND,
+                getPredicate("B"), homework.Operator.AND, getPredicate("C"))).toString());
+    }
+
+    @Test
+    void testDefinitionalCNFWorksAsExpected() throws IOException {
+        String small = "A1(x)&B1(x)|A2(x)&B2(x)";
+        assertEquals(4, expressionParser.toFormula(getSentence(small), false).getClauses());
+        assertEquals("((A1(x)|A2(x))&(A1(x)|B2(x))&(B1(x)|A2(x))&(B1(x)|B2(x)))", expressionParser.toCNF(small).toString());
+
+        List<String> disjuncts = new ArrayList<>();
+        List<String> facts = new ArrayList<>();
+        for (int i = 1; i <= 7; i++) {
+            disjuncts.add(String.format("A%d(x)&B%d(x)", i, i));
+            facts.add(String.format("A%d(y)=>Q(y)", i));
+        }
+        String large = String.join("|", disjuncts);
+        facts.add(large);
+        assertEquals(128, expressionParser.toFormula(getSentence(large), false).getClauses());
+        assertEquals(7, expressionParser.toFormula(getSentence(large), true).getClauses());
+
+        homework.Sentence definitional = expressionParser.toCNF(large);
+        assertTrue(algebraHandler.isCNF(definitional));
+        assertEquals(14, expressionParser.splitAndCleanup(definitional).size());
+        assertTrue(definitional.toString().contains(homework.ExpressionParser.DEFINITION_PREFIX));
+
+        homework.ExpressionParser distributing = new homework.ExpressionParser(new homework.Tokeniser(symbols), algebraHandler, Integer.MAX_VALUE);
+        assertEquals(128, distributing.splitAndCleanup(distributing.toCNF(large)).size());
+        for (String query : new String[]{"Q(Bob)", "A1(Bob)"}) {
+            homework.Configuration configuration = new homework.Configuration(query, facts.size(), facts);
+            boolean expected = new homework.KnowledgeBase(configuration, distributing, algebraHandler).prove();
+            assertEquals(expected, new homework.KnowledgeBase(configuration, expressionParser, algebraHandler).prove());
+        }
+    }
+
+    @Test
+    void testDefinitionsDoNotCollideWithParsedPredicates() throws IOException {
+        List<String> disjuncts = new ArrayList<>();
+        for (int i = 1; i <= 7; i++) {
+            disjuncts.add(String.format("A%d(x)&B%d(x)", i, i));
+        }
+        List<String> facts = new ArrayList<>();
+        facts.add(String.join("|", disjuncts));
+        for (int i = 0; i < 7; i++) {
+            facts.add(String.format("~_Def%d(Bob)", i));
+        }
+        for (String query : new String[] {"A%d(Bob)", "B%d(Bob)"}) {
+            for (int i = 1; i <= 7; i++) {
+                homework.Configuration configuration = new homework.Configuration(String.format(query, i), facts.size(), facts);
+                assertFalse(new homework.KnowledgeBase(configuration, getParser(), algebraHandler).prove());
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> expressionParser.toCNF(homework.ExpressionParser.DEFINITION_PREFIX + "0(Bob)"));
+    }
+
     @Test
     void testIsCNFWorksAsExpected() {
         assertFalse(algebraHandler.isCNF(homework.Operator.IMPLIES));
@@ -163,6 +320,315 @@ class HomeworkTest {
         assertEquals(getArgument("AnotherConst"), substitution.get("z"));
     }
 
+    @Test
+    void testTrailUnifierWorksAsExpected() {
+        homework.TrailUnifier bindings = new homework.TrailUnifier(symbols);
+
+        assertEquals(homework.TrailUnifier.SYMBOL_CLASH, bindings.unify(getPredicate("A", false, "x"), getPredicate("B", false, "x")));
+        assertEquals(homework.TrailUnifier.ARITY_CLASH, bindings.unify(getPredicate("A", false, "x", "y"), getPredicate("A", false, "DiffConst")));
+        assertEquals(homework.TrailUnifier.CONSTANT_CLASH, bindings.unify(getPredicate("A", false, "Const"), getPredicate("A", false, "DiffConst")));
+        assertEquals(0, bindings.mark());
+
+        assertEquals(homework.TrailUnifier.CONSTANT_CLASH, bindings.unify(getPredicate("A", false, "x", "y", "x"), getPredicate("A", false, "Const", "DiffConst", "DiffConst")));
+        assertEquals(0, bindings.mark());
+
+        int mark = bindings.mark();
+        homework.Predicate p = getPredicate("A", false, "x", "y", "z", "x");
+        homework.Predicate q = getPredicate("A", true, "w", "DiffConst", "AnotherConst", "w");
+        assertEquals(homework.TrailUnifier.UNIFIED, bindings.unify(p, q));
+        assertEquals(bindings.apply(p), bindings.apply(q));
+        assertEquals(getPredicate("A", false, "w", "DiffConst", "AnotherConst", "w"), bindings.apply(p));
+        bindings.undo(mark);
+        assertSame(p, bindings.apply(p));
+
+        /* Chains x -> y -> Const are followed, where the substitution map unifier would fail */
+        homework.Predicate chained = getPredicate("A", false, "x", "x", "y");
+        assertEquals(homework.TrailUnifier.UNIFIED, bindings.unify(chained, getPredicate("A", false, "y", "z", "Const")));
+        assertEquals(getPredicate("A", false, "Const", "Const", "Const"), bindings.apply(chained));
+        assertEquals(homework.TrailUnifier.CONSTANT_CLASH, bindings.unify(getPredicate("B", false, "z"), getPredicate("B", false, "DiffConst")));
+        bindings.undo(mark);
+        assertEquals(0, bindings.mark());
+        assertSame(chained, bindings.apply(chained));
+    }
+
+    @Test
+    void testSubsumptionWorksAsExpected() {
+        homework.TrailUnifier bindings = new homework.TrailUnifier(symbols);
+        homework.Clause general = getClause(getPredicate("P", false, "x", "y"));
+        assertTrue(homework.SubsumptionIndex.subsumes(general, getClause(getPredicate("P", false, "Const", "Const"), getPredicate("Q", true, "z")), bindings));
+        assertFalse(homework.SubsumptionIndex.subsumes(general, getClause(getPredicate("P", true, "Const", "Const")), bindings));
+        assertFalse(homework.SubsumptionIndex.subsumes(getClause(getPredicate("P", false, "x", "x")), getClause(getPredicate("P", false, "Const", "DiffConst")), bindings));
+        assertFalse(homework.SubsumptionIndex.subsumes(getClause(getPredicate("P", false, "x", "y"), getPredicate("P", false, "y", "x")), getClause(getPredicate("P", false, "Const", "Const")), bindings));
+        assertTrue(homework.SubsumptionIndex.subsumes(getClause(getPredicate("P", false, "x", "y"), getPredicate("Q", false, "y")), getClause(getPredicate("Q", false, "Const"), getPredicate("P", false, "z", "Const")), bindings));
+        assertFalse(homework.SubsumptionIndex.subsumes(getClause(getPredicate("P", false, "z", "Const")), getClause(getPredicate("P", false, "z", "x")), bindings));
+        assertEquals(0, bindings.mark());
+
+        homework.SubsumptionIndex index = new homework.SubsumptionIndex();
+        homework.Clause specific = getClause(getPredicate("P", false, "Const", "DiffConst"), getPredicate("Q", false, "Const"));
+        index.add(specific);
+        assertFalse(index.isSubsumed(general, bindings));
+        assertEquals(Collections.singletonList(specific), index.getSubsumed(general, bindings));
+        index.add(general);
+        assertTrue(index.isSubsumed(getClause(getPredicate("P", false, "AnotherConst", "z")), bindings));
+        index.remove(general);
+        assertFalse(index.isSubsumed(getClause(getPredicate("P", false, "AnotherConst", "z")), bindings));
+        assertEquals(1, index.size());
+
+        homework.KnowledgeBase subsumed = getKnowledgeBase("R(Teddy)", "P(x)|Q(Teddy)", "P(Teddy)|Q(Teddy)|R(x)", "P(y)");
+        assertEquals(2, subsumed.getDisjunctions().size());
+        assertEquals("(P(y3))", subsumed.getDisjunctions().get(1).toString());
+    }
+
+    @Test
+    void testIncrementalKnowledgeBaseWorksAsExpected() throws IOException {
+        homework.KnowledgeBase base = getKnowledgeBase("C(Teddy)", "A(x)=>B(x)", "B(x)=>C(x)");
+        assertFalse(base.prove());
+        assertTrue(base.addFact("A(Teddy)"));
+        assertFalse(base.addFact("A(Teddy)"));
+        assertTrue(base.prove());
+        assertTrue(base.retractFact("A(Teddy)"));
+        assertFalse(base.retractFact("A(Teddy)"));
+        assertFalse(base.prove());
+        assertEquals(3, base.getDisjunctions().size());
+        assertEquals("(~B(x2)|C(x2))", base.getDisjunctions().get(2).toString());
+
+        homework.KnowledgeBase subsumed = getKnowledgeBase("R(Teddy)", "P(x)|Q(Teddy)", "P(Teddy)|Q(Teddy)|R(x)", "P(y)");
+        assertTrue(subsumed.retractFact("P(y)"));
+        assertEquals(2, subsumed.getDisjunctions().size());
+        assertEquals("(P(x1)|Q(Teddy))", subsumed.getDisjunctions().get(1).toString());
+        assertTrue(subsumed.retractFact("P(x)|Q(Teddy)"));
+        assertEquals("(P(Teddy)|Q(Teddy)|R(x2))", subsumed.getDisjunctions().get(1).toString());
+        assertFalse(subsumed.prove());
+    }
+
+    @Test
+    void testSubsumptionKeepsTheDefaultDepthBound() throws IOException {
+        List<String> facts = new ArrayList<>(Arrays.asList("Parent(x,y) => Anc(x,y)", "Parent(x,y) & Anc(y,z) => Anc(x,z)"));
+        for (int i = 0; i < 5; i++) {
+            facts.add(String.format("Parent(P%d,P%d)", i, i + 1));
+        }
+        /* Subsumed by the parent facts, but still counted by the depth bound */
+        for (int i = 0; i < 5; i++) {
+            facts.add(String.format("Parent(P%d,P%d) | Foo(P%d)", i, i + 1, i));
+        }
+        homework.KnowledgeBase base = getKnowledgeBase("Anc(P0,P5)", facts.toArray(new String[0]));
+        assertEquals(8, base.getDisjunctions().size());
+        assertEquals(facts.size() + 1, base.getMaxDepth());
+        assertTrue(base.prove());
+        assertTrue(base.retractFact("Parent(P0,P1)"));
+        assertEquals(facts.size(), base.getMaxDepth());
+    }
+
+    @Test
+    void testBatchProofWorksAsExpected() throws IOException {
+        homework.CompiledKnowledgeBase compiled = new homework.CompiledKnowledgeBase(
+                Arrays.asList("A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)"), expressionParser, algebraHandler);
+        homework.KnowledgeBase session = compiled.newSession("C(Teddy)");
+        assertEquals("(~C(Teddy))", session.getNegatedQuery().toString());
+        assertEquals(4, session.getDisjunctions().size());
+        assertTrue(session.prove());
+        assertFalse(compiled.newSession("C(Bob)").prove());
+
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            queries.add(i % 2 == 0 ? "B(Teddy)" : "A(Bob)");
+        }
+        queries.add("C(Bob)");
+        List<Boolean> answers = compiled.proveAll(queries, homework.SearchOptions.defaults().withParallelism(4));
+        assertEquals(queries.size(), answers.size());
+        assertTrue(answers.get(0));
+        assertFalse(answers.get(1));
+        assertFalse(answers.get(queries.size() - 1));
+        assertEquals(3, compiled.size());
+
+        homework.Configuration configuration = new homework.Configuration(Arrays.asList("B(Teddy)", "C(Bob)"), 1, Collections.singletonList("A(x)"));
+        assertEquals("2\nB(Teddy)\nC(Bob)\n1\nA(x)\n", configuration.toString());
+        assertEquals("B(Teddy)", configuration.getQuery());
+    }
+
+    @Test
+    void testLemmaCacheWorksAsExpected() throws IOException {
+        homework.CompiledKnowledgeBase compiled = new homework.CompiledKnowledgeBase(
+                Arrays.asList("A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)"), expressionParser, algebraHandler);
+        homework.SearchOptions lemmas = homework.SearchOptions.defaults().withLemmas(true);
+        homework.LemmaCache cache = compiled.getLemmaCache();
+
+        assertTrue(compiled.newSession("C(Teddy)").prove(lemmas));
+        homework.Clause subgoal = getClause(getPredicate("B", true, "Teddy"));
+        assertTrue(cache.isProved(compiled.newSession("D(Bob)").getNegatedQuery(), subgoal));
+        long hits = cache.getHits();
+        assertTrue(compiled.newSession("B(Teddy)").prove(lemmas));
+        assertTrue(cache.getHits() > hits);
+
+        homework.KnowledgeBase refuted = compiled.newSession("C(Bob)");
+        assertFalse(refuted.prove(lemmas));
+        assertTrue(cache.isFailed(refuted.getNegatedQuery(), refuted.getNegatedQuery(), 1, 1));
+        assertFalse(refuted.prove(lemmas));
+        assertTrue(compiled.addFact("A(Bob)"));
+        assertEquals(0, cache.size());
+        assertTrue(refuted.prove(lemmas));
+
+        homework.LemmaCache bounded = new homework.LemmaCache(2, homework.EvictionPolicy.FIFO);
+        for (String name : Arrays.asList("P", "Q", "R")) {
+            bounded.recordProved(null, getClause(getPredicate(name, false, "Teddy")));
+        }
+        assertEquals(2, bounded.size());
+        assertFalse(bounded.isProved(refuted.getNegatedQuery(), getClause(getPredicate("P", false, "Teddy"))));
+        assertTrue(bounded.isProved(refuted.getNegatedQuery(), getClause(getPredicate("R", false, "Teddy"))));
+    }
+
+    @Test
+    void testUnitIndexWorksAsExpected() {
+        homework.UnitIndex index = new homework.UnitIndex();
+        homework.TrailUnifier bindings = new homework.TrailUnifier(symbols);
+        homework.Clause ground = getClause(getPredicate("P", false, "Teddy", "Bob"));
+        homework.Clause open = getClause(getPredicate("Q", true, "x", "Bob"));
+        homework.Clause keyed = getClause(getPredicate("R", false, "Teddy", "y"));
+        index.add(ground);
+        index.add(open);
+        index.add(keyed);
+        index.add(getClause(getPredicate("P", false, "x"), getPredicate("Q", false, "y")));
+        assertEquals(3, index.size());
+
+        assertTrue(index.isContradiction(getClause(getPredicate("P", true, "Teddy", "Bob")), bindings));
+        assertFalse(index.isContradiction(getClause(getPredicate("P", false, "Teddy", "Bob")), bindings));
+        assertFalse(index.isContradiction(getClause(getPredicate("P", true, "Bob", "Teddy")), bindings));
+        assertTrue(index.isContradiction(getClause(getPredicate("P", true, "z", "Bob")), bindings));
+        assertTrue(index.isContradiction(getClause(getPredicate("Q", false, "Teddy", "Bob")), bindings));
+        assertFalse(index.isContradiction(getClause(getPredicate("Q", false, "Teddy", "Teddy")), bindings));
+        assertTrue(index.isContradiction(getClause(getPredicate("R", true, "Teddy", "Bob")), bindings));
+        assertFalse(index.isContradiction(getClause(getPredicate("R", true, "Bob", "Bob")), bindings));
+        assertEquals(0, bindings.mark());
+
+        index.remove(ground);
+        assertFalse(index.isContradiction(getClause(getPredicate("P", true, "Teddy", "Bob")), bindings));
+        assertFalse(index.isContradiction(getClause(getPredicate("P", true, "z", "Bob")), bindings));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    void testUnitPropagationWorksAsExpected() throws IOException {
+        homework.CompiledKnowledgeBase compiled = new homework.CompiledKnowledgeBase(Arrays.asList(
+                "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)", "B(x)&D(x)=>E(x)", "D(Teddy)", "P(Teddy)|Q(Bob)", "~P(y)", "F(x)=>G(x,x)", "F(z)"
+        ), expressionParser, algebraHandler);
+        homework.PropagationReport report = compiled.propagateUnits(10, 100);
+        List<String> units = new ArrayList<>();
+        for (homework.Clause unit : report.getUnits()) {
+            units.add(unit.toString());
+        }
+        assertTrue(units.containsAll(Arrays.asList("(B(Teddy))", "(C(Teddy))", "(E(Teddy))", "(Q(Bob))", "(G(x8,x8))")));
+        assertEquals(Arrays.asList("(Q(Bob))", "(G(x8,x8))"), report.getSimplified().stream().map(Object::toString).collect(Collectors.toList()));
+        assertTrue(report.isFixpoint());
+        assertFalse(report.isInconsistent());
+        assertFalse(compiled.getDisjunctions().stream().anyMatch(clause -> clause.toString().startsWith("(P(Teddy)")));
+        assertTrue(compiled.getUnitIndex().isContradiction(getClause(getPredicate("E", true, "Teddy")), new homework.TrailUnifier(symbols)));
+
+        assertTrue(compiled.retractFact("A(Teddy)"));
+        assertFalse(compiled.getUnitIndex().isContradiction(getClause(getPredicate("C", true, "Teddy")), new homework.TrailUnifier(symbols)));
+        assertFalse(compiled.newSession("C(Teddy)").prove());
+        assertTrue(compiled.addFact("A(Teddy)"));
+        assertTrue(compiled.getUnitIndex().isContradiction(getClause(getPredicate("C", true, "Teddy")), new homework.TrailUnifier(symbols)));
+        assertTrue(compiled.newSession("E(Teddy)").prove());
+        assertFalse(compiled.newSession("E(Bob)").prove());
+
+        homework.PropagationReport bounded = new homework.CompiledKnowledgeBase(Arrays.asList("A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)"), expressionParser, algebraHandler)
+                .propagateUnits(1, 100);
+        assertEquals(1, bounded.getRounds());
+        assertEquals(1, bounded.getUnits().size());
+        assertFalse(bounded.isFixpoint());
+    }
+
+    @Test
+    void testUnitPropagationIsIncremental() throws IOException {
+        homework.CompiledKnowledgeBase compiled = new homework.CompiledKnowledgeBase(Arrays.asList(
+                "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)", "D(x)=>B(x)", "D(Teddy)", "E(x)=>F(x)", "E(Bob)"
+        ), expressionParser, algebraHandler);
+        compiled.propagateUnits(10, 100);
+        homework.Clause derived = getStored(compiled, "(C(Teddy))");
+
+        /* Unrelated updates keep what was derived */
+        assertTrue(compiled.addFact("G(Bob)"));
+        assertTrue(compiled.retractFact("E(Bob)"));
+        assertSame(derived, getStored(compiled, "(C(Teddy))"));
+        assertNull(getStored(compiled, "(F(Bob))"));
+
+        /* B(Teddy) also follows from D(Teddy), so it survives the retraction of A(Teddy) */
+        assertTrue(compiled.retractFact("A(Teddy)"));
+        assertNotNull(getStored(compiled, "(B(Teddy))"));
+        assertNotNull(getStored(compiled, "(C(Teddy))"));
+        assertTrue(compiled.retractFact("D(Teddy)"));
+        assertNull(getStored(compiled, "(B(Teddy))"));
+        assertNull(getStored(compiled, "(C(Teddy))"));
+        assertFalse(compiled.newSession("C(Teddy)").prove());
+
+        /* Adding a fact propagates from its clauses alone */
+        assertTrue(compiled.addFact("D(Teddy)"));
+        assertNotNull(getStored(compiled, "(C(Teddy))"));
+        assertTrue(compiled.addFact("E(Bob)"));
+        assertNotNull(getStored(compiled, "(F(Bob))"));
+    }
+
+    @Test
+    void testUnitPropagationReportsOnlyUnifiableUnitsAsInconsistent() throws IOException {
+        assertTrue(new homework.CompiledKnowledgeBase(Arrays.asList("A(x)=>B(x)", "A(Teddy)", "~B(Teddy)"), expressionParser, algebraHandler)
+                .propagateUnits(10, 100).isInconsistent());
+        assertTrue(new homework.CompiledKnowledgeBase(Arrays.asList("P(x,x)", "~P(Teddy,Teddy)"), expressionParser, algebraHandler)
+                .propagateUnits(10, 100).isInconsistent());
+
+        /* The discrimination tree offers ~P(Teddy,Bob) as a candidate, but P(x,x) does not unify with it */
+        homework.CompiledKnowledgeBase compiled = new homework.CompiledKnowledgeBase(Arrays.asList("P(x,x)", "~P(Teddy,Bob)"), expressionParser, algebraHandler);
+        assertFalse(compiled.propagateUnits(10, 100).isInconsistent());
+        assertFalse(compiled.newSession("Q(Teddy)").prove());
+    }
+
+    @Test
+    void testLoadingOptionsAreOptIn() {
+        homework.SearchOptions defaults = homework.SearchOptions.defaults();
+        assertFalse(defaults.isParallelLoading());
+        assertFalse(defaults.isUnitPropagation());
+
+        homework.SearchOptions options = defaults.withParallelLoading(true).withUnitPropagation(true).withPropagationRounds(3).withPropagationUnits(7);
+        assertTrue(options.isParallelLoading());
+        assertTrue(options.isUnitPropagation());
+        assertEquals(3, options.getPropagationRounds());
+        assertEquals(7, options.getPropagationUnits());
+        assertFalse(defaults.isUnitPropagation());
+        assertEquals(homework.SearchOptions.DEFAULT_PROPAGATION_ROUNDS, defaults.getPropagationRounds());
+    }
+
+    @Test
+    void testDiscriminationTreeWorksAsExpected() {
+        homework.DiscriminationTree tree = new homework.DiscriminationTree();
+        homework.Clause ground = getClause(getPredicate("P", false, "Const", "DiffConst"));
+        homework.Clause general = getClause(getPredicate("Q", true, "z"), getPredicate("P", false, "x", "DiffConst"));
+        homework.Clause other = getClause(getPredicate("P", false, "AnotherConst", "y"));
+        homework.Clause negated = getClause(getPredicate("P", true, "Const", "DiffConst"));
+        homework.Clause arity = getClause(getPredicate("P", false, "Const"));
+        tree.add(ground, 0);
+        tree.add(general, 0);
+        tree.add(general, 1);
+        tree.add(other, 0);
+        tree.add(negated, 0);
+        tree.add(arity, 0);
+
+        assertEquals(3, tree.getUnifiable(getPredicate("P", true, "x", "y"), false).size());
+        assertEquals(2, tree.getUnifiable(getPredicate("P", true, "Const", "y"), false).size());
+        assertEquals(1, tree.getUnifiable(getPredicate("P", true, "AnotherConst", "AnotherConst"), false).size());
+        assertEquals(other, tree.getUnifiable(getPredicate("P", true, "AnotherConst", "AnotherConst"), false).get(0).getClause());
+        assertEquals(1, tree.getUnifiable(getPredicate("P", false, "x", "y"), true).size());
+        assertEquals(1, tree.getUnifiable(getPredicate("P", true, "x"), false).size());
+        assertEquals(1, tree.getUnifiable(getPredicate("Q", false, "Const"), true).size());
+        assertTrue(tree.getUnifiable(getPredicate("R", true, "x"), false).isEmpty());
+
+        homework.DiscriminationTree.Occurrence occurrence = tree.getUnifiable(getPredicate("P", true, "Const", "DiffConst"), false).get(1);
+        assertEquals(general, occurrence.getClause());
+        assertEquals(1, occurrence.getPosition());
+        assertEquals(getPredicate("P", false, "x", "DiffConst"), occurrence.getLiteral());
+
+        tree.remove(general, 1);
+        assertEquals(1, tree.getUnifiable(getPredicate("P", true, "Const", "DiffConst"), false).size());
+    }
+
     @Test
     void testApplySubstitutionWorksAsExpected() {
         homework.Predicate p = getPredicate("A", false, "x", "y", "z", "x");
@@ -178,46 +644,511 @@ class HomeworkTest {
 
     @Test
     void testResolveWorksAsExpected() {
-        homework.Sentence a = getSentence(getPredicate("A", false, "w", "DiffConst", "AnotherConst", "w"));
-        homework.Sentence b = getSentence(getPredicate("A", true, "w", "DiffConst", "AnotherConst", "w"));
-        homework.Predicate predicate = getPredicate("A", false, "w", "DiffConst", "AnotherConst", "w");
-        homework.Sentence resolved = base.resolve(a, b, predicate);
+        homework.Clause a = getClause(getPredicate("A", false, "w", "DiffConst", "AnotherConst", "w"));
+        homework.Clause b = getClause(getPredicate("A", true, "w", "DiffConst", "AnotherConst", "w"));
+        homework.Clause resolved = base.resolve(a, 0, b, 0);
         assertNull(resolved);
 
-        b = getSentence(
+        b = getClause(
                 getPredicate("A", true, "w", "DiffConst", "AnotherConst", "w"),
-                homework.Operator.OR,
                 getPredicate("B", true, "w", "DiffConst", "AnotherConst", "w")
         );
-        resolved = base.resolve(a, b, predicate);
-        System.out.println(resolved);
+        resolved = base.resolve(a, 0, b, 0);
+        assertEquals("(~B(w,DiffConst,AnotherConst,w))", resolved.toString());
+
+        a = getClause(
+                getPredicate("A", false, "w", "DiffConst", "AnotherConst", "w"),
+                getPredicate("B", false, "w", "DiffConst", "AnotherConst", "w")
+        );
+        assertNull(base.resolve(a, 0, b, 0));
+
+        a = getClause(
+                getPredicate("A", false, "w", "DiffConst", "AnotherConst", "w"),
+                getPredicate("B", true, "w", "DiffConst", "AnotherConst", "w")
+        );
+        resolved = base.resolve(a, 0, b, 0);
+        assertEquals(1, resolved.size());
+        assertTrue(resolved.isNegated(0));
+    }
+
+    @Test
+    void testResolveWorksOnGroundLiterals() throws IOException {
+        /* The unifier binds nothing, and the literals still resolve */
+        homework.KnowledgeBase base = getKnowledgeBase("B(Teddy)", "A(Teddy)=>B(Teddy)", "A(Teddy)");
+        homework.TrailUnifier bindings = new homework.TrailUnifier(symbols);
+        List<homework.KnowledgeBase.ResolutionResult> results = base.getResolvents(base.getNegatedQuery(), bindings);
+        assertEquals(1, results.size());
+        assertEquals("(~A(Teddy))", results.get(0).getResolved().toString());
+        assertTrue(base.prove());
+        assertFalse(getKnowledgeBase("B(Bob)", "A(Teddy)=>B(Teddy)", "A(Teddy)").prove());
+    }
+
+    @Test
+    void testResolveKeepsLiteralsOfTheOtherSign() throws IOException {
+        homework.Clause a = getClause(getPredicate("P", true, "A"), getPredicate("P", false, "A"));
+        homework.Clause b = getClause(getPredicate("P", false, "A"));
+        assertEquals("(P(A))", base.resolve(a, 0, b, 0).toString());
+
+        /* T(D), P(A) and ~Q(B) satisfy every fact */
+        for (homework.SearchStrategy strategy : Arrays.asList(homework.SearchStrategy.DEPTH_FIRST, homework.SearchStrategy.SATURATION,
+                homework.SearchStrategy.BREADTH_FIRST)) {
+            homework.KnowledgeBase base = getKnowledgeBase("Q(B)", "T(D)", "T(D) => P(A) | Q(B)", "P(y) => P(A)");
+            assertFalse(base.prove(homework.SearchOptions.defaults().withStrategy(strategy)), strategy.toString());
+        }
     }
 
     @Test
-    void testGetSentenceKeyWorksAsExpected() {
-        homework.Sentence a = getSentence(
+    void testLazyResolventsWorkAsExpected() {
+        homework.KnowledgeBase base = getKnowledgeBase("C(Alice)", "~B(x)|C(x)|D(x)", "~A(y)|B(y)", "~D(z)|C(z)|~D(z)");
+        homework.TrailUnifier bindings = new homework.TrailUnifier(symbols);
+        List<homework.KnowledgeBase.ResolutionResult> results = base.getResolvents(base.getNegatedQuery(), bindings);
+        assertEquals(2, results.size());
+        assertEquals(0, bindings.mark());
+        for (homework.KnowledgeBase.ResolutionResult result : results) {
+            assertFalse(result.isMaterialized());
+            int size = result.size();
+            assertEquals(size, result.getResolved().size());
+            assertTrue(result.isMaterialized());
+            assertSame(result.getResolved(), result.getResolved());
+        }
+        assertEquals("(~D(Alice))", results.get(0).getResolved().toString());
+        assertEquals("(~B(Alice)|D(Alice))", results.get(1).getResolved().toString());
+
+        /* Tautologies and empty resolvents are dropped without being built */
+        homework.Clause a = getClause(getPredicate("A", false, "x"), getPredicate("B", false, "x"));
+        homework.Clause b = getClause(getPredicate("A", true, "Const"), getPredicate("B", true, "Const"));
+        assertEquals(homework.TrailUnifier.UNIFIED, bindings.unify(a.get(0), b.get(0)));
+        assertEquals(-1, homework.KnowledgeBase.getResolventSize(a, 0, b, 0, bindings));
+        homework.Substitution substitution = bindings.capture();
+        bindings.undo(0);
+        assertEquals(1, substitution.size());
+        assertNull(homework.KnowledgeBase.resolve(substitution.apply(a), 0, substitution.apply(b), 0));
+    }
+
+    @Test
+    void testClauseWorksAsExpected() {
+        homework.Clause clause = homework.Clause.of(getDisjunction("~A(x,y)|B(x)|~C(y)"));
+        assertEquals(3, clause.size());
+        assertFalse(clause.isUnit());
+        assertTrue(clause.isNegated(0));
+        assertFalse(clause.isNegated(1));
+        assertTrue(clause.isNegated(2));
+        assertEquals("(~A(x,y)|B(x)|~C(y))", clause.toString());
+        assertEquals(clause, homework.Clause.of(getDisjunction("~A(x,y)|B(x)|~C(y)")));
+        assertEquals(clause.hashCode(), homework.Clause.of(getDisjunction("~A(x,y)|B(x)|~C(y)")).hashCode());
+        assertNotEquals(clause, homework.Clause.of(getDisjunction("~A(x,y)|B(x)|C(y)")));
+        assertThrows(IllegalArgumentException.class, () -> homework.Clause.of(getSentence("A(x)&B(x)")));
+    }
+
+    @Test
+    void testCanonicalFormIgnoresVariableNamesAndLiteralOrder() {
+        homework.Clause a = getClause(
                 getPredicate("A", true, "x", "DiffConst", "AnotherConst", "y"),
-                homework.Operator.OR,
                 getPredicate("B", true, "z", "DiffConst", "AnotherConst", "z")
         );
-        homework.Sentence b = getSentence(
+        homework.Clause b = getClause(
                 getPredicate("B", true, "c", "DiffConst", "AnotherConst", "c"),
-                homework.Operator.OR,
                 getPredicate("A", true, "a", "DiffConst", "AnotherConst", "b")
         );
-        assertEquals(base.getKey(a), base.getKey(b));
+        assertArrayEquals(homework.FingerprintSet.canonicalForm(a), homework.FingerprintSet.canonicalForm(b));
 
-        a = getSentence(
+        a = getClause(
                 getPredicate("A", true, "x", "DiffConst", "AnotherConst", "y"),
-                homework.Operator.OR,
                 getPredicate("B", true, "z", "DiffConst", "AnotherConst", "z")
         );
-        b = getSentence(
+        b = getClause(
                 getPredicate("B", true, "c", "DiffConst", "AnotherConst", "c"),
-                homework.Operator.OR,
                 getPredicate("C", true, "a", "DiffConst", "AnotherConst", "b")
         );
-        assertNotEquals(base.getKey(a), base.getKey(b));
+        assertFalse(Arrays.equals(homework.FingerprintSet.canonicalForm(a), homework.FingerprintSet.canonicalForm(b)));
+    }
+
+    @Test
+    void testFingerprintSetWorksAsExpected() {
+        homework.Clause a = getClause(
+                getPredicate("A", true, "x", "DiffConst", "y"),
+                getPredicate("B", false, "y", "x")
+        );
+        homework.Clause b = getClause(
+                getPredicate("B", false, "v", "u"),
+                getPredicate("A", true, "u", "DiffConst", "v")
+        );
+        homework.Clause c = getClause(
+                getPredicate("A", true, "x", "DiffConst", "y"),
+                getPredicate("B", false, "x", "y")
+        );
+        assertEquals(homework.FingerprintSet.fingerprint(a), homework.FingerprintSet.fingerprint(b));
+        assertArrayEquals(homework.FingerprintSet.canonicalForm(a), homework.FingerprintSet.canonicalForm(b));
+        assertNotEquals(homework.FingerprintSet.fingerprint(a), homework.FingerprintSet.fingerprint(c));
+
+        for (homework.FingerprintSet set : Arrays.asList(new homework.FingerprintSet(), new homework.FingerprintSet(true), homework.FingerprintSet.concurrent(true))) {
+            assertTrue(set.add(a));
+            assertFalse(set.add(b));
+            assertTrue(set.add(c));
+            assertTrue(set.contains(b));
+            for (int i = 0; i < 5000; i++) {
+                assertTrue(set.add(getClause(getPredicate("C", false, "x", "Const" + i))));
+            }
+            assertEquals(5002, set.size());
+            assertTrue(set.contains(getClause(getPredicate("C", false, "y", "Const42"))));
+        }
+    }
+
+    @Test
+    void testVisitedStoresWorkAsExpected() throws IOException {
+        homework.ClockVisitedStore bounded = new homework.ClockVisitedStore(64);
+        homework.BloomVisitedStore bloom = new homework.BloomVisitedStore(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            homework.Clause clause = getClause(getPredicate("C", false, "x", "Const" + i));
+            assertTrue(bounded.add(clause));
+            assertFalse(bounded.add(clause));
+            bloom.add(clause);
+            assertTrue(bloom.contains(clause));
+        }
+        assertEquals(64, bounded.getCapacity());
+        assertEquals(64, bounded.size());
+        assertEquals(1.0, bounded.getOccupancy());
+        assertEquals(1000 - 64, bounded.getEvictions());
+        assertTrue(bloom.size() > 980);
+        assertTrue(bloom.getFalsePositiveRate() < 0.02);
+        assertTrue(bloom.getMemoryFootprint() < 2000);
+        assertThrows(IllegalArgumentException.class, () -> new homework.BloomVisitedStore(1000, 1.5));
+
+        homework.KnowledgeBase proved = getKnowledgeBase("C(Teddy)", "A(x)|B(x)", "A(x)=>C(x)", "B(x)=>C(x)");
+        for (homework.VisitedStoreType type : homework.VisitedStoreType.values()) {
+            homework.SearchOptions options = homework.SearchOptions.defaults().withVisitedStore(type).withVisitedCapacity(1024);
+            homework.DepthFirstSearch search = new homework.DepthFirstSearch(proved, options, null);
+            assertTrue(search.search(proved.getNegatedQuery()));
+            assertTrue(search.getVisited().size() > 0);
+            assertTrue(search.getVisited().getMemoryFootprint() > 0);
+            assertTrue(proved.prove(options.withStrategy(homework.SearchStrategy.PARALLEL)));
+        }
+    }
+
+    @Test
+    void testDepthFirstSearchWorksAsExpected() throws IOException {
+        homework.KnowledgeBase chain = getKnowledgeBase("C(Teddy)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)");
+        assertTrue(chain.prove());
+        assertFalse(chain.prove(homework.SearchOptions.defaults().withMaxDepth(1)));
+        assertTrue(chain.prove(homework.SearchOptions.defaults().withMaxDepth(2)));
+        assertFalse(getKnowledgeBase("C(Bob)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)").prove());
+    }
+
+    @Test
+    void testSaturationSearchWorksAsExpected() throws IOException {
+        homework.SearchOptions saturation = homework.SearchOptions.defaults().withStrategy(homework.SearchStrategy.SATURATION);
+        assertTrue(getKnowledgeBase("C(Teddy)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)").prove(saturation));
+        assertFalse(getKnowledgeBase("C(Bob)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)").prove(saturation));
+        assertTrue(getKnowledgeBase("C(Teddy)", "A(x)|B(x)", "A(x)=>C(x)", "B(x)=>C(x)").prove(saturation));
+        assertTrue(getKnowledgeBase("Q(Teddy)", "P(x)&R(x)=>Q(x)", "P(Teddy)|S(Teddy)", "S(x)=>Q(x)", "R(Teddy)").prove(saturation.withPickGivenRatio(1)));
+        assertFalse(getKnowledgeBase("Sick(Bob)", "Healthy(x)=>~Sick(x)", "Runs(x)=>Healthy(x)", "Runs(Bob)").prove(saturation.withPickGivenRatio(0)));
+    }
+
+    @Test
+    void testParallelSearchWorksAsExpected() throws IOException {
+        homework.SearchOptions parallel = homework.SearchOptions.defaults()
+                .withStrategy(homework.SearchStrategy.PARALLEL)
+                .withParallelism(4)
+                .withSplitDepth(1);
+        assertTrue(getKnowledgeBase("C(Teddy)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)").prove(parallel));
+        assertFalse(getKnowledgeBase("C(Bob)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)").prove(parallel));
+        assertTrue(getKnowledgeBase("C(Teddy)", "A(x)|B(x)", "A(x)=>C(x)", "B(x)=>C(x)").prove(parallel.withSplitDepth(0)));
+        assertTrue(getKnowledgeBase("Grandparent(Liz,Billy)", "Mother(x,y)=>Parent(x,y)", "Father(x,y)=>Parent(x,y)",
+                "Parent(x,y)&Parent(y,z)=>Grandparent(x,z)", "Mother(Liz,Charley)", "Father(Charley,Billy)").prove(parallel));
+        assertFalse(getKnowledgeBase("Sick(Bob)", "Healthy(x)=>~Sick(x)", "Runs(x)=>Healthy(x)", "Runs(Bob)").prove(parallel.withSplitDepth(10)));
+    }
+
+    @Test
+    void testParallelSearchRunsAreIndependent() throws IOException {
+        homework.SearchOptions parallel = homework.SearchOptions.defaults()
+                .withStrategy(homework.SearchStrategy.PARALLEL)
+                .withParallelism(2)
+                .withSplitDepth(1);
+        homework.KnowledgeBase chain = getKnowledgeBase("C(Teddy)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)");
+        homework.ProofSearch search = chain.newSearch(parallel, null);
+        assertEquals(homework.SearchOutcome.PROVED, search.run(chain.getNegatedQuery()));
+        assertEquals(homework.SearchOutcome.EXHAUSTED, search.run(getClause(getPredicate("C", true, "Bob"))));
+        assertEquals(homework.SearchOutcome.PROVED, search.run(chain.getNegatedQuery()));
+        search.cancel();
+        assertEquals(homework.SearchOutcome.CANCELLED, search.run(chain.getNegatedQuery()));
+    }
+
+    @Test
+    void testParallelSearchReleasesItsWorkers() throws IOException, InterruptedException {
+        homework.SearchOptions parallel = homework.SearchOptions.defaults()
+                .withStrategy(homework.SearchStrategy.PARALLEL)
+                .withParallelism(3)
+                .withSplitDepth(1);
+        homework.KnowledgeBase chain = getKnowledgeBase("C(Teddy)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)");
+        for (int i = 0; i < 3; i++) {
+            assertTrue(chain.prove(parallel));
+        }
+
+        /* Idle workers of a pool that is never shut down stay alive for a minute */
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Thread.getAllStackTraces().keySet().stream().anyMatch(thread -> thread.getName().matches("ForkJoinPool-\\d+-worker-\\d+"))) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void testPortfolioSearchWorksAsExpected() throws IOException {
+        homework.SearchOptions portfolio = homework.SearchOptions.defaults().withStrategy(homework.SearchStrategy.PORTFOLIO);
+        homework.KnowledgeBase proved = getKnowledgeBase("C(Teddy)", "A(x)|B(x)", "A(x)=>C(x)", "B(x)=>C(x)");
+        homework.KnowledgeBase refuted = getKnowledgeBase("C(Bob)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)");
+        assertTrue(proved.prove(portfolio));
+        assertFalse(refuted.prove(portfolio));
+        assertEquals(homework.SearchOutcome.PROVED, proved.newSearch(portfolio, null).run(proved.getNegatedQuery()));
+        assertEquals(homework.SearchOutcome.EXHAUSTED, refuted.newSearch(portfolio, null).run(refuted.getNegatedQuery()));
+
+        homework.SearchOptions custom = portfolio.withPortfolio(Arrays.asList(
+                homework.SearchOptions.defaults().withStrategy(homework.SearchStrategy.BREADTH_FIRST),
+                homework.SearchOptions.defaults().withMaxDepth(0)
+        ));
+        assertTrue(proved.prove(custom));
+        assertThrows(IllegalArgumentException.class, () -> proved.newSearch(portfolio.withPortfolio(Collections.singletonList(portfolio)), null));
+    }
+
+    @Test
+    void testPortfolioSearchPrefersDefinitiveOutcomes() throws IOException {
+        homework.KnowledgeBase refuted = getKnowledgeBase("C(Bob)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)");
+        homework.SearchOptions timedOut = homework.SearchOptions.defaults().withTimeLimit(-1);
+        assertEquals(homework.SearchOutcome.TIMED_OUT, refuted.newSearch(timedOut, null).run(refuted.getNegatedQuery()));
+
+        homework.SearchOptions portfolio = homework.SearchOptions.defaults().withStrategy(homework.SearchStrategy.PORTFOLIO).withPortfolio(Arrays.asList(
+                timedOut,
+                homework.SearchOptions.defaults().withStrategy(homework.SearchStrategy.BREADTH_FIRST)
+        ));
+        assertEquals(homework.SearchOutcome.EXHAUSTED, refuted.newSearch(portfolio, null).run(refuted.getNegatedQuery()));
+        assertFalse(refuted.prove(portfolio));
+        assertEquals(homework.SearchOutcome.TIMED_OUT, refuted.newSearch(portfolio.withPortfolio(Collections.singletonList(timedOut)), null).run(refuted.getNegatedQuery()));
+
+        /* Exhausting the search only up to a bound does not refute the goal */
+        homework.KnowledgeBase proved = getKnowledgeBase("C(Teddy)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)");
+        homework.SearchOptions bounded = homework.SearchOptions.defaults().withMaxDepth(1);
+        homework.ProofSearch search = proved.newSearch(bounded, null);
+        assertEquals(homework.SearchOutcome.EXHAUSTED, search.run(proved.getNegatedQuery()));
+        assertTrue(search.isBoundReached());
+        assertEquals(homework.SearchOutcome.PROVED, proved.newSearch(portfolio.withPortfolio(Arrays.asList(
+                bounded,
+                homework.SearchOptions.defaults().withStrategy(homework.SearchStrategy.BREADTH_FIRST)
+        )), null).run(proved.getNegatedQuery()));
+    }
+
+    @Test
+    void testCancelledSearchIsNotDefinitive() throws IOException {
+        homework.KnowledgeBase proved = getKnowledgeBase("C(Teddy)", "A(x)|B(x)", "A(x)=>C(x)", "B(x)=>C(x)");
+        homework.ProofSearch cancelled = proved.newSearch(homework.SearchOptions.defaults(), null);
+        cancelled.cancel();
+        assertEquals(homework.SearchOutcome.CANCELLED, cancelled.run(proved.getNegatedQuery()));
+        assertFalse(homework.SearchOutcome.CANCELLED.isDefinitive());
+        assertTrue(homework.SearchOutcome.TIMED_OUT.getAnswer());
+    }
+
+    @Test
+    void testIterativeDeepeningSearchWorksAsExpected() throws IOException {
+        homework.SearchOptions deepening = homework.SearchOptions.defaults()
+                .withStrategy(homework.SearchStrategy.ITERATIVE_DEEPENING)
+                .withDeepeningStep(1);
+        homework.KnowledgeBase proved = getKnowledgeBase("D(Teddy)", "A(x)=>B(x)", "B(x)=>C(x)", "C(x)=>D(x)", "A(Teddy)");
+        homework.KnowledgeBase refuted = getKnowledgeBase("C(Bob)", "A(x)=>B(x)", "B(x)=>C(x)", "A(Teddy)");
+
+        homework.IterativeDeepeningSearch search = (homework.IterativeDeepeningSearch) proved.newSearch(deepening, null);
+        assertEquals(homework.SearchOutcome.PROVED, search.run(proved.getNegatedQuery()));
+        assertEquals(3, search.getDepthBound());
+        assertEquals(homework.SearchOutcome.EXHAUSTED, refuted.newSearch(deepening, null).run(refuted.getNegatedQuery()));
+        assertEquals(homework.SearchOutcome.EXHAUSTED, proved.newSearch(deepening.withMaxDepth(2), null).run(proved.getNegatedQuery()));
+        assertFalse(refuted.prove(deepening));
+    }
+
+    @Test
+    void testDeepProofDoesNotOverflowStack() throws IOException {
+        int length = 20000;
+        List<String> facts = new ArrayList<>();
+        for (int i = 0; i < length; i++) {
+            facts.add(String.format("P%d(x)=>P%d(x)", i, i + 1));
+        }
+        facts.add("P0(Teddy)");
+        homework.KnowledgeBase deep = getKnowledgeBase(String.format("P%d(Teddy)", length), facts.toArray(new String[0]));
+        assertTrue(deep.prove(homework.SearchOptions.defaults().withMaxDepth(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    void testKnowledgeBaseGeneratorWorksAsExpected() throws IOException {
+        KnowledgeBaseGenerator.Parameters parameters = KnowledgeBaseGenerator.Parameters.defaults().withSeed(7);
+        KnowledgeBaseGenerator.Instance first = KnowledgeBaseGenerator.generate(KnowledgeBaseGenerator.Family.HORN, parameters);
+        KnowledgeBaseGenerator.Instance second = KnowledgeBaseGenerator.generate(KnowledgeBaseGenerator.Family.HORN, parameters);
+        assertEquals(first.getQuery(), second.getQuery());
+        assertEquals(first.getFacts(), second.getFacts());
+        assertEquals(parameters.getFacts(), first.getFacts().size());
+
+        for (KnowledgeBaseGenerator.Family family : new KnowledgeBaseGenerator.Family[]{
+                KnowledgeBaseGenerator.Family.CHAIN, KnowledgeBaseGenerator.Family.TABLE, KnowledgeBaseGenerator.Family.HORN}) {
+            for (long seed = 0; seed < 4; seed++) {
+                KnowledgeBaseGenerator.Instance instance = KnowledgeBaseGenerator.generate(family, parameters.withSeed(seed));
+                assertTrue(instance.isExpectedKnown());
+                homework.KnowledgeBase base = new homework.KnowledgeBase(instance.toConfiguration(), expressionParser, algebraHandler);
+                assertEquals(instance.getExpected(), base.prove(), String.format("%s seed %d", family, seed));
+            }
+        }
+
+        /* Pigeonhole refutations need resolvents of derived clauses, which only saturation builds */
+        KnowledgeBaseGenerator.Instance pigeonhole = KnowledgeBaseGenerator.generate(KnowledgeBaseGenerator.Family.PIGEONHOLE, parameters.withConstants(2));
+        homework.KnowledgeBase base = new homework.KnowledgeBase(pigeonhole.toConfiguration(), expressionParser, algebraHandler);
+        assertTrue(pigeonhole.getExpected());
+        assertTrue(base.prove(homework.SearchOptions.defaults().withStrategy(homework.SearchStrategy.SATURATION)));
+    }
+
+    @Test
+    void testStreamingLoaderWorksAsExpected() throws IOException {
+        List<String> facts = Arrays.asList("A(x) => B(x)", "B(x) & C(x) => D(x)", "A(Alice)", "C(Alice)");
+        File input = File.createTempFile("input", ".txt");
+        input.deleteOnExit();
+
+        /* A wrong fact count, blank lines and CRLF line ends */
+        Files.write(input.toPath(), ("D(Alice)\r\n1\r\n" + String.join("\r\n\r\n", facts) + "\r\n").getBytes(StandardCharsets.UTF_8));
+        homework.Configuration configuration = new homework.FileHandler().load(input.getPath());
+        assertEquals(Collections.singletonList("D(Alice)"), configuration.getQueries());
+        assertEquals(facts, configuration.getFacts());
+
+        /* No fact count and no final line end */
+        Files.write(input.toPath(), ("D(Alice)\n" + String.join("\n", facts)).getBytes(StandardCharsets.UTF_8));
+        List<String> queries = new ArrayList<>();
+        homework.CompiledKnowledgeBase compiled = homework.CompiledKnowledgeBase.load(input.getPath(), queries, expressionParser, algebraHandler);
+        homework.KnowledgeBase loaded = new homework.KnowledgeBase(new homework.Configuration("D(Alice)", facts.size(), facts), expressionParser, algebraHandler);
+        assertEquals(loaded.getDisjunctions().toString(), compiled.newSession(queries.get(0)).getDisjunctions().toString());
+        assertTrue(compiled.newSession(queries.get(0)).prove());
+        assertFalse(compiled.retractFact("A(Alice)"));
+
+        /* Lines that straddle mapped windows */
+        try (homework.MappedLineReader reader = new homework.MappedLineReader(input.getPath(), 4)) {
+            assertEquals("D(Alice)", reader.readLine().toString());
+            for (String fact : facts) {
+                assertEquals(fact, reader.readLine().toString());
+            }
+            assertNull(reader.readLine());
+            assertEquals(facts.size() + 1, reader.getLineNumber());
+        }
+    }
+
+    @Test
+    void testStreamingLoaderReportsErrorLines() throws IOException {
+        File input = File.createTempFile("input", ".txt");
+        input.deleteOnExit();
+
+        Files.write(input.toPath(), "D(Alice)\n2\nA(x) => B(x\n".getBytes(StandardCharsets.UTF_8));
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+                () -> homework.CompiledKnowledgeBase.load(input.getPath(), new ArrayList<>(), expressionParser, algebraHandler));
+        assertTrue(error.getMessage().contains("line 3"));
+        assertTrue(error.getMessage().contains("column 12"));
+    }
+
+    @Test
+    void testStreamingLoaderRejectsMissingQueries() throws IOException {
+        File input = File.createTempFile("input", ".txt");
+        input.deleteOnExit();
+
+        for (String content : Arrays.asList("", "0\n1\nA(Alice)\n", "\nA(Alice)\n", "2\nB(Alice)\r\n \r\n1\nA(Alice)\n")) {
+            Files.write(input.toPath(), content.getBytes(StandardCharsets.UTF_8));
+            IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+                    () -> homework.CompiledKnowledgeBase.load(input.getPath(), new ArrayList<>(), expressionParser, algebraHandler));
+            assertTrue(error.getMessage().contains("no query"));
+        }
+
+        /* Query lines are trimmed like the fact lines */
+        Files.write(input.toPath(), "2\nB(Alice) \r\n\tA(Alice)\r\n1\nA(Alice)\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("B(Alice)", "A(Alice)"), new homework.FileHandler().load(input.getPath()).getQueries());
+    }
+
+    @Test
+    void testParallelCompilationWorksAsExpected() throws IOException {
+        List<String> facts = new ArrayList<>(KnowledgeBaseGenerator.generate(KnowledgeBaseGenerator.Family.NON_HORN,
+                KnowledgeBaseGenerator.Parameters.defaults().withSeed(3).withFacts(1000)).getFacts());
+        /* Facts large enough to be converted with definitions */
+        for (int i = 0; i < 20; i++) {
+            facts.add(i * 50, String.format("A%d(x) & B%d(x) & C%d(x) | D%d(x) & E%d(x) & F%d(x) | G%d(x) & H%d(x) & I%d(x) | J%d(x) & K%d(x) & L%d(x)",
+                    i, i, i, i, i, i, i, i, i, i, i, i));
+        }
+        facts.add(facts.get(10));
+
+        homework.CompiledKnowledgeBase sequential = new homework.CompiledKnowledgeBase(facts, getParser(), algebraHandler);
+        homework.CompiledKnowledgeBase parallel = new homework.CompiledKnowledgeBase(Collections.emptyList(), getParser(), algebraHandler);
+        assertEquals(facts.stream().distinct().count(), parallel.addFacts(facts, 4));
+        assertEquals(sequential.getDisjunctions().toString(), parallel.getDisjunctions().toString());
+        assertTrue(parallel.getDisjunctions().toString().contains(homework.ExpressionParser.DEFINITION_PREFIX + 19));
+        assertEquals(0, parallel.addFacts(facts.subList(0, 10), 4));
+        assertTrue(parallel.retractFact(facts.get(0)));
+
+        File input = File.createTempFile("input", ".txt");
+        input.deleteOnExit();
+        Files.write(input.toPath(), ("Q(Alice)\n" + String.join("\n", facts)).getBytes(StandardCharsets.UTF_8));
+        homework.CompiledKnowledgeBase loaded = homework.CompiledKnowledgeBase.load(input.getPath(), new ArrayList<>(), getParser(), algebraHandler, 4);
+        homework.CompiledKnowledgeBase streamed = homework.CompiledKnowledgeBase.load(input.getPath(), new ArrayList<>(), getParser(), algebraHandler);
+        assertEquals(streamed.getDisjunctions().toString(), loaded.getDisjunctions().toString());
+    }
+
+    @Test
+    void testParallelCompilationAddsNothingOnParseError() {
+        String defined = "A(x) & B(x) & C(x) | D(x) & E(x) & F(x) | G(x) & H(x) & I(x) | J(x) & K(x) & L(x)";
+        List<String> broken = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            broken.add(i % 50 == 0 ? defined.replace("x", "x" + i) : String.format("P%d(x) => Q%d(x)", i, i));
+        }
+        broken.set(300, "A(x) =>");
+        broken.set(500, "B(x");
+        homework.ExpressionParser parser = getParser();
+        homework.CompiledKnowledgeBase compiled = new homework.CompiledKnowledgeBase(Collections.singletonList(defined), parser, algebraHandler);
+        List<homework.Clause> clauses = compiled.getDisjunctions();
+        int definitions = parser.getDefinitions();
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class, () -> compiled.addFacts(broken, 4));
+        assertTrue(error.getMessage().startsWith("Fact 301"));
+        assertEquals(clauses, compiled.getDisjunctions());
+        assertEquals(definitions, parser.getDefinitions());
+
+        /* The next facts are standardised and defined as if the failed ones had never been seen */
+        List<String> facts = broken.subList(0, 300);
+        homework.CompiledKnowledgeBase expected = new homework.CompiledKnowledgeBase(Collections.singletonList(defined), getParser(), algebraHandler);
+        expected.addFacts(facts, 4);
+        compiled.addFacts(facts, 4);
+        assertEquals(expected.getDisjunctions().toString(), compiled.getDisjunctions().toString());
+    }
+
+    @Test
+    void testParallelLoadReportsParseErrorInLaterBatch() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("Q(Alice)");
+        lines.add("A(x) & B(x) & C(x) | D(x) & E(x) & F(x) | G(x) & H(x) & I(x) | J(x) & K(x) & L(x)");
+        for (int i = 0; i < homework.CompiledKnowledgeBase.LOAD_BATCH; i++) {
+            lines.add(String.format("P(C%d)", i));
+        }
+        lines.add("B(x");
+        File input = File.createTempFile("input", ".txt");
+        input.deleteOnExit();
+        Files.write(input.toPath(), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+
+        homework.ExpressionParser parser = getParser();
+        List<String> queries = new ArrayList<>();
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+                () -> homework.CompiledKnowledgeBase.load(input.getPath(), queries, parser, algebraHandler, 4));
+        assertTrue(error.getMessage().contains(String.format("line %d", lines.size())));
+        assertEquals(0, parser.getDefinitions());
+        assertTrue(queries.isEmpty());
+    }
+
+    @Test
+    void testRenumberingOnlyRenamesConvertedDefinitions() {
+        homework.ExpressionParser parser = getParser();
+        List<homework.Sentence> disjunctions = parser.splitAndCleanup(parser.toCNF("A1(x)&B1(x)|A2(x)&B2(x)|A3(x)&B3(x)|A4(x)&B4(x)|A5(x)&B5(x)|A6(x)&B6(x)|A7(x)&_Def1(x)"));
+        String prefix = homework.ExpressionParser.DEFINITION_PREFIX;
+        homework.Sentence disjunction = disjunctions.stream()
+                .filter(other -> other.toString().contains("~" + prefix + 1) && other.toString().contains(prefix + 0))
+                .findFirst().orElseThrow();
+        parser.renumberDefinitions(disjunction, parser.renumbering(1, 1, 5));
+        assertTrue(disjunction.toString().contains("~" + prefix + 5));
+        assertTrue(disjunction.toString().contains(prefix + 0));
+        assertFalse(disjunction.toString().contains(prefix + 1));
+        assertTrue(disjunctions.stream().anyMatch(other -> other.toString().contains("_Def1(x)")));
     }
 
     @Test
@@ -226,12 +1157,42 @@ class HomeworkTest {
         System.out.println(sentence);
     }
 
+    private homework.Clause getStored(homework.CompiledKnowledgeBase compiled, String clause) {
+        return compiled.getDisjunctions().stream().filter(other -> other.toString().equals(clause)).findFirst().orElse(null);
+    }
+
+    private homework.ExpressionParser getParser() {
+        return new homework.ExpressionParser(new homework.Tokeniser(symbols), new homework.AlgebraHandler());
+    }
+
+    private homework.Sentence getDistributedCNF(homework.Expression expression) {
+        if (expression.getType() == homework.ExpressionType.PREDICATE) {
+            return algebraHandler.flatten((homework.Operand) expression);
+        }
+        List<homework.Expression> expressions = ((homework.Sentence) expression).getExpressions();
+        homework.Sentence first = getDistributedCNF(expressions.get(0));
+        homework.Sentence second = getDistributedCNF(expressions.get(2));
+        switch ((homework.Operator) expressions.get(1)) {
+            case AND:
+                return algebraHandler.flatten((homework.Operand) algebraHandler.and(first, second));
+            case OR:
+                return algebraHandler.flatten((homework.Operand) algebraHandler.or(first, second));
+            default:
+                homework.Expression negated = algebraHandler.negate((homework.Operand) expressions.get(0));
+                return algebraHandler.flatten((homework.Operand) algebraHandler.or(getDistributedCNF(negated), second));
+        }
+    }
+
     private homework.Sentence getCNFSentence(String line) {
         return expressionParser.toCNF(getSentence(line));
     }
 
+    private homework.Sentence getDisjunction(String line) {
+        return (homework.Sentence) getCNFSentence(line).getExpressions().get(0);
+    }
+
     private homework.Predicate getPredicate(String name) {
-        return new homework.Predicate(name, Collections.singletonList(new homework.Predicate.Variable("x")), false);
+        return new homework.Predicate(symbols, name, Collections.singletonList(symbols.variable("x")), false);
     }
 
     private homework.Predicate getPredicate(String name, boolean isNegated, String... argumentNames) {
@@ -239,14 +1200,14 @@ class HomeworkTest {
         for (String argumentName : argumentNames) {
             arguments.add(getArgument(argumentName));
         }
-        return new homework.Predicate(name, arguments, isNegated);
+        return new homework.Predicate(symbols, name, arguments, isNegated);
     }
 
     private homework.Predicate.Argument getArgument(String name) {
         if (Character.isUpperCase(name.charAt(0))) {
-            return new homework.Predicate.Constant(name);
+            return symbols.constant(name);
         }
-        return new homework.Predicate.Variable(name);
+        return symbols.variable(name);
     }
 
     private homework.Sentence getSentence(String line) {
@@ -262,6 +1223,15 @@ class HomeworkTest {
         return new homework.Sentence(_expressions);
     }
 
+    private homework.Clause getClause(homework.Predicate... predicates) {
+        return new homework.Clause(predicates);
+    }
+
+    private homework.KnowledgeBase getKnowledgeBase(String query, String... facts) {
+        homework.Configuration configuration = new homework.Configuration(query, facts.length, Arrays.asList(facts));
+        return new homework.KnowledgeBase(configuration, expressionParser, algebraHandler);
+    }
+
     private homework.Configuration getConfiguration() {
         String query = "A(Teddy)";
         List<String> facts = Collections.singletonList("A(x)|~B(x)");